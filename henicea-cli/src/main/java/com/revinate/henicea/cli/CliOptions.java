@@ -0,0 +1,154 @@
+package com.revinate.henicea.cli;
+
+import lombok.Getter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line options of {@link MigratorCli}. Every option takes a value, given as the next argument or after an
+ * <code>=</code> sign.
+ */
+@Getter
+public class CliOptions {
+
+    static final String USAGE = String.join("\n",
+            "Usage: henicea-cli --contact-points <hosts> --keyspace <keyspace> --migrations <dir|jar> [options]",
+            "",
+            "  --contact-points <hosts>       Comma separated Cassandra hosts",
+            "  --port <port>                  Native protocol port (default: 9042)",
+            "  --keyspace <keyspace>          Keyspace to migrate",
+            "  --migrations <dir|jar>         Directory of .cql files or jar containing them",
+            "  --pattern <pattern>            Migration files inside a jar (default: cassandra/*.cql)",
+            "  --username <username>          Username, if authentication is enabled",
+            "  --password <password>          Password, if authentication is enabled",
+            "  --replication-factor <n>       Creates a missing keyspace with SimpleStrategy",
+            "  --lock-wait-seconds <seconds>  Time to wait for a migration holding the lease (default: 300)",
+            "  --help                         Prints this message",
+            "",
+            "Exit status: 0 migrated or up to date, 1 migration failed, 2 invalid arguments,",
+            "             3 lease held by another migrator, 4 no Cassandra host available");
+
+    private List<String> contactPoints = new ArrayList<>();
+    private int port = 9042;
+    private String keyspace;
+    private File migrations;
+    private String pattern = "cassandra/*.cql";
+    private String username;
+    private String password;
+    private Integer replicationFactor;
+    private long lockWaitSeconds = TimeUnit.MINUTES.toSeconds(5);
+    private boolean help;
+
+    /**
+     * @return the parsed options.
+     * @throws IllegalArgumentException if an option is unknown, has no value or an invalid one, or if a required
+     *                                  option is missing
+     */
+    public static CliOptions parse(String... args) {
+        CliOptions options = new CliOptions();
+        Iterator<String> arguments = Arrays.asList(args).iterator();
+        while (arguments.hasNext()) {
+            String argument = arguments.next();
+            if ("--help".equals(argument) || "-h".equals(argument)) {
+                options.help = true;
+                return options;
+            }
+
+            String name = argument;
+            String value = null;
+            int equals = argument.indexOf('=');
+            if (equals > 0) {
+                name = argument.substring(0, equals);
+                value = argument.substring(equals + 1);
+            } else if (arguments.hasNext()) {
+                value = arguments.next();
+            }
+            if (value == null) {
+                throw new IllegalArgumentException("Missing value of option " + name);
+            }
+            options.set(name, value);
+        }
+        options.validate();
+        return options;
+    }
+
+    public Optional<Integer> getReplicationFactor() {
+        return Optional.ofNullable(replicationFactor);
+    }
+
+    /**
+     * @return true if the migrations are read from a jar instead of a directory.
+     */
+    public boolean isJar() {
+        return migrations.isFile();
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "--contact-points":
+                Arrays.stream(value.split(","))
+                        .map(String::trim)
+                        .filter(host -> !host.isEmpty())
+                        .forEach(contactPoints::add);
+                break;
+            case "--port":
+                port = toInt(name, value);
+                break;
+            case "--keyspace":
+                keyspace = value;
+                break;
+            case "--migrations":
+                migrations = new File(value);
+                break;
+            case "--pattern":
+                pattern = value;
+                break;
+            case "--username":
+                username = value;
+                break;
+            case "--password":
+                password = value;
+                break;
+            case "--replication-factor":
+                replicationFactor = toInt(name, value);
+                break;
+            case "--lock-wait-seconds":
+                lockWaitSeconds = toInt(name, value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + name);
+        }
+    }
+
+    private void validate() {
+        if (contactPoints.isEmpty()) {
+            throw new IllegalArgumentException("Missing option --contact-points");
+        }
+        if (keyspace == null || keyspace.isEmpty()) {
+            throw new IllegalArgumentException("Missing option --keyspace");
+        }
+        if (migrations == null) {
+            throw new IllegalArgumentException("Missing option --migrations");
+        }
+        if (!migrations.exists()) {
+            throw new IllegalArgumentException("Migrations " + migrations + " do not exist");
+        }
+        if (username != null && password == null) {
+            throw new IllegalArgumentException("Missing option --password");
+        }
+    }
+
+    private static int toInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value of option " + name + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.revinate.henicea.cli;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.google.common.annotations.VisibleForTesting;
+import com.revinate.henicea.migration.MigrationResult;
+import com.revinate.henicea.migration.Migrator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs the migrations of one keyspace once and exits, for example as an init container or a job executed before the
+ * application is rolled out. The application then does not need to run {@link Migrator} at all, and its instances do
+ * not compete for the lease when they start.
+ *
+ * <pre>
+ * java -jar henicea-cli-all.jar --contact-points cassandra-0,cassandra-1 --keyspace myapp --migrations /migrations
+ * </pre>
+ *
+ * <p>The exit status tells the outcome, see {@link CliOptions#USAGE}. A migration that is already being applied by
+ * another migrator is waited for up to <code>--lock-wait-seconds</code>, after which the exit status is
+ * {@value #LOCKED} with a zero wait and {@value #FAILED} otherwise.
+ */
+@Slf4j
+public class MigratorCli {
+
+    public static final int OK = 0;
+    public static final int FAILED = 1;
+    public static final int USAGE = 2;
+    public static final int LOCKED = 3;
+    public static final int NO_HOST = 4;
+
+    private final Supplier<Migrator> migratorFactory;
+    private final Function<CliOptions, Cluster> clusterFactory;
+    private final PrintStream err;
+
+    public MigratorCli() {
+        this(Migrator::new, MigratorCli::buildCluster, System.err);
+    }
+
+    @VisibleForTesting
+    MigratorCli(Supplier<Migrator> migratorFactory, Function<CliOptions, Cluster> clusterFactory, PrintStream err) {
+        this.migratorFactory = migratorFactory;
+        this.clusterFactory = clusterFactory;
+        this.err = err;
+    }
+
+    public static void main(String... args) {
+        System.exit(new MigratorCli().run(args));
+    }
+
+    /**
+     * @return the exit status.
+     */
+    public int run(String... args) {
+        CliOptions options;
+        try {
+            options = CliOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.println();
+            err.println(CliOptions.USAGE);
+            return USAGE;
+        }
+        if (options.isHelp()) {
+            err.println(CliOptions.USAGE);
+            return OK;
+        }
+
+        try {
+            return migrate(options);
+        } catch (NoHostAvailableException e) {
+            log.error("Could not connect to Cassandra at {}", options.getContactPoints(), e);
+            return NO_HOST;
+        } catch (RuntimeException | IOException e) {
+            log.error("Migration of keyspace {} failed", options.getKeyspace(), e);
+            return FAILED;
+        }
+    }
+
+    private int migrate(CliOptions options) throws IOException {
+        Migrator migrator = migratorFactory.get();
+        migrator.setReplicationFactor(options.getReplicationFactor().orElse(null));
+        migrator.setLockWaitTimeout(options.getLockWaitSeconds(), TimeUnit.SECONDS);
+
+        Resource[] migrations = findMigrations(options);
+        log.info("Migrating keyspace {} with {} migration files from {}",
+                options.getKeyspace(), migrations.length, options.getMigrations());
+
+        try (Cluster cluster = clusterFactory.apply(options);
+             Session session = cluster.connect()) {
+            MigrationResult result = migrator.execute(session, options.getKeyspace(), migrations);
+            log.info("Migration of keyspace {} finished: {}", options.getKeyspace(), result);
+            return exitStatusOf(result);
+        }
+    }
+
+    private static int exitStatusOf(MigrationResult result) {
+        switch (result.getStatus()) {
+            case UP_TO_DATE:
+            case APPLIED:
+                return OK;
+            case LOCKED:
+                return LOCKED;
+            default:
+                return FAILED;
+        }
+    }
+
+    private static Resource[] findMigrations(CliOptions options) throws IOException {
+        String location = options.getMigrations().getAbsoluteFile().toURI().toString();
+        String pattern = options.isJar() ? "jar:" + location + "!/" + options.getPattern() : location + "*.cql";
+        return new PathMatchingResourcePatternResolver().getResources(pattern);
+    }
+
+    private static Cluster buildCluster(CliOptions options) {
+        Cluster.Builder builder = Cluster.builder()
+                .addContactPoints(options.getContactPoints().toArray(new String[0]))
+                .withPort(options.getPort());
+        if (options.getUsername() != null) {
+            builder.withCredentials(options.getUsername(), options.getPassword());
+        }
+        return builder.build();
+    }
+}
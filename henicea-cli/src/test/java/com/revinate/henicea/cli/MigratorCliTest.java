@@ -0,0 +1,151 @@
+package com.revinate.henicea.cli;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.revinate.henicea.migration.MigrationResult;
+import com.revinate.henicea.migration.Migrator;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.core.io.Resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MigratorCliTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private Migrator migrator;
+
+    @Mock
+    private Cluster cluster;
+
+    @Mock
+    private Session session;
+
+    private ByteArrayOutputStream err = new ByteArrayOutputStream();
+    private CliOptions usedOptions;
+    private MigratorCli cli;
+
+    @Before
+    public void setUp() throws Exception {
+        when(cluster.connect()).thenReturn(session);
+        cli = new MigratorCli(() -> migrator, options -> {
+            usedOptions = options;
+            return cluster;
+        }, new PrintStream(err, true));
+    }
+
+    @Test
+    public void run_shouldMigrateFilesOfDirectory() throws Exception {
+        File migrations = folder.newFolder("migrations");
+        Files.write(new File(migrations, "001_users.cql").toPath(), "CREATE TABLE users (id int PRIMARY KEY)".getBytes(UTF_8));
+        Files.write(new File(migrations, "README.md").toPath(), "not a migration".getBytes(UTF_8));
+        when(migrator.execute(eq(session), eq("myapp"), (Resource[]) anyVararg())).thenReturn(result(MigrationResult.Status.APPLIED));
+
+        int status = cli.run("--contact-points", "cassandra-0, cassandra-1", "--port=9043", "--keyspace", "myapp",
+                "--migrations", migrations.getPath(), "--lock-wait-seconds", "30");
+
+        assertThat(status).isEqualTo(MigratorCli.OK);
+        assertThat(usedOptions.getContactPoints()).containsExactly("cassandra-0", "cassandra-1");
+        assertThat(usedOptions.getPort()).isEqualTo(9043);
+        assertThat(executedFilenames()).containsExactly("001_users.cql");
+        verify(migrator).setLockWaitTimeout(30, TimeUnit.SECONDS);
+        verify(session).close();
+        verify(cluster).close();
+    }
+
+    @Test
+    public void run_shouldMigrateFilesOfJar() throws Exception {
+        File jar = folder.newFile("migrations.jar");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jar))) {
+            zip.putNextEntry(new ZipEntry("cassandra/"));
+            zip.putNextEntry(new ZipEntry("cassandra/001_users.cql"));
+            zip.write("CREATE TABLE users (id int PRIMARY KEY)".getBytes(UTF_8));
+            zip.putNextEntry(new ZipEntry("other/002_orders.cql"));
+            zip.write("CREATE TABLE orders (id int PRIMARY KEY)".getBytes(UTF_8));
+        }
+        when(migrator.execute(eq(session), eq("myapp"), (Resource[]) anyVararg())).thenReturn(result(MigrationResult.Status.UP_TO_DATE));
+
+        int status = cli.run("--contact-points", "cassandra-0", "--keyspace", "myapp", "--migrations", jar.getPath(),
+                "--replication-factor", "3");
+
+        assertThat(status).isEqualTo(MigratorCli.OK);
+        assertThat(executedFilenames()).containsExactly("001_users.cql");
+        verify(migrator).setReplicationFactor(3);
+    }
+
+    @Test
+    public void run_shouldReturnLockedStatus() throws Exception {
+        when(migrator.execute(eq(session), eq("myapp"), (Resource[]) anyVararg())).thenReturn(result(MigrationResult.Status.LOCKED));
+
+        assertThat(cli.run(validArguments())).isEqualTo(MigratorCli.LOCKED);
+    }
+
+    @Test
+    public void run_shouldReturnFailedStatusWhenMigrationThrows() throws Exception {
+        when(migrator.execute(eq(session), eq("myapp"), (Resource[]) anyVararg())).thenThrow(new IllegalStateException("unit test"));
+
+        assertThat(cli.run(validArguments())).isEqualTo(MigratorCli.FAILED);
+        verify(session).close();
+    }
+
+    @Test
+    public void run_shouldReturnNoHostStatusWhenCassandraIsUnreachable() throws Exception {
+        when(cluster.connect()).thenThrow(new NoHostAvailableException(Collections.emptyMap()));
+
+        assertThat(cli.run(validArguments())).isEqualTo(MigratorCli.NO_HOST);
+        verify(migrator, never()).execute(any(Session.class), any(String.class), (Resource[]) anyVararg());
+    }
+
+    @Test
+    public void run_shouldPrintUsageWhenArgumentsAreInvalid() throws Exception {
+        assertThat(cli.run("--keyspace", "myapp")).isEqualTo(MigratorCli.USAGE);
+        assertThat(err.toString()).startsWith("Missing option --contact-points").contains("Usage: henicea-cli");
+
+        assertThat(cli.run("--contact-points", "cassandra-0", "--keyspace", "myapp", "--migrations", "/does/not/exist"))
+                .isEqualTo(MigratorCli.USAGE);
+        assertThat(cli.run("--contact-points", "cassandra-0", "--port", "many")).isEqualTo(MigratorCli.USAGE);
+        assertThat(cli.run("--contact-points", "cassandra-0", "--unknown", "x")).isEqualTo(MigratorCli.USAGE);
+        assertThat(cli.run("--contact-points")).isEqualTo(MigratorCli.USAGE);
+        verifyZeroInteractions(migrator, cluster);
+    }
+
+    private String[] validArguments() throws Exception {
+        return new String[]{"--contact-points", "cassandra-0", "--keyspace", "myapp", "--migrations", folder.getRoot().getPath()};
+    }
+
+    private String[] executedFilenames() {
+        ArgumentCaptor<Resource> resources = ArgumentCaptor.forClass(Resource.class);
+        verify(migrator).execute(eq(session), eq("myapp"), resources.capture());
+        return resources.getAllValues().stream().map(Resource::getFilename).toArray(String[]::new);
+    }
+
+    private static MigrationResult result(MigrationResult.Status status) {
+        return new MigrationResult("myapp", status, 0, null);
+    }
+}
@@ -0,0 +1,115 @@
+package com.revinate.henicea.migration;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link MigrationClient} that keeps its state in memory and simulates the round trip to Cassandra by parking the
+ * calling thread for a fixed latency on every call.
+ */
+class InMemoryMigrationClient implements MigrationClient {
+
+    private volatile long latencyNanos;
+    private final Map<String, String> applied = new ConcurrentHashMap<>();
+    private final AtomicReference<String> lockOwner = new AtomicReference<>();
+    private volatile String fingerprint;
+
+    InMemoryMigrationClient(long latency, TimeUnit unit) {
+        setLatency(latency, unit);
+    }
+
+    void setLatency(long latency, TimeUnit unit) {
+        this.latencyNanos = unit.toNanos(latency);
+    }
+
+    void markApplied(Collection<Migration> migrations) {
+        migrations.forEach(migration -> applied.put(migration.getName(), migration.getChecksum()));
+    }
+
+    @Override
+    public void init(Optional<Integer> replicationFactor) {
+        roundTrip();
+    }
+
+    @Override
+    public boolean acquireLock() {
+        roundTrip();
+        return lockOwner.compareAndSet(null, "benchmark");
+    }
+
+    @Override
+    public boolean renewLock() {
+        roundTrip();
+        return "benchmark".equals(lockOwner.get());
+    }
+
+    @Override
+    public boolean isLocked() {
+        roundTrip();
+        return lockOwner.get() != null;
+    }
+
+    @Override
+    public void releaseLock() {
+        roundTrip();
+        lockOwner.set(null);
+    }
+
+    @Override
+    public SortedSet<String> getAppliedMigrations() {
+        roundTrip();
+        return new TreeSet<>(applied.keySet());
+    }
+
+    @Override
+    public SortedSet<String> getAppliedMigrations(Collection<String> candidates) {
+        return new TreeSet<>(getAppliedChecksums(candidates).keySet());
+    }
+
+    @Override
+    public SortedMap<String, String> getAppliedChecksums(Collection<String> candidates) {
+        roundTrip();
+        SortedMap<String, String> checksums = new TreeMap<>();
+        candidates.stream()
+                .filter(applied::containsKey)
+                .forEach(name -> checksums.put(name, applied.get(name)));
+        return checksums;
+    }
+
+    @Override
+    public void runMigration(Migration migration) {
+        // bookkeeping insert, the statement itself and the status update
+        roundTrip();
+        roundTrip();
+        roundTrip();
+        applied.put(migration.getName(), migration.getChecksum());
+    }
+
+    @Override
+    public Optional<String> getFingerprint() {
+        roundTrip();
+        return Optional.ofNullable(fingerprint);
+    }
+
+    @Override
+    public void saveFingerprint(String fingerprint) {
+        roundTrip();
+        this.fingerprint = fingerprint;
+    }
+
+    private void roundTrip() {
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.revinate.henicea.migration;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Session;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+
+/**
+ * Measures the startup cost of the {@link Migrator} as the number of migration files grows. The execute benchmarks
+ * run against an {@link InMemoryMigrationClient} that adds <code>latencyMicros</code> to every call instead of a
+ * Cassandra cluster.
+ *
+ * <pre>
+ * ./gradlew jmh -PjmhArgs='MigratorBenchmark -p migrations=1000 -p latencyMicros=500'
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MigratorBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int migrations;
+
+    @Param({"0", "200"})
+    public long latencyMicros;
+
+    private Resource[] resources;
+    private List<Migration> parsed;
+    private Set<String> halfApplied;
+    private Cluster cluster;
+    private Migrator migrator;
+    private InMemoryMigrationClient client;
+    private InMemoryMigrationClient upToDate;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        resources = IntStream.range(0, migrations)
+                .mapToObj(i -> resource(String.format("%05d_create_table.cql", i),
+                        String.format("CREATE TABLE IF NOT EXISTS table_%05d (id uuid PRIMARY KEY, value text)", i)))
+                .toArray(Resource[]::new);
+        migrator = new Migrator();
+        migrator.setFactory((session, keyspace, uniqueId) -> client);
+        parsed = migrator.parseMigrations(resources);
+        halfApplied = parsed.stream().limit(migrations / 2).map(Migration::getName).collect(toSet());
+        cluster = new Cluster(Cluster.builder().addContactPoint("127.0.0.1")) {
+            @Override
+            public Session connect() {
+                return null;
+            }
+        };
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        upToDate = new InMemoryMigrationClient(0, TimeUnit.MICROSECONDS);
+        client = upToDate;
+        migrator.execute(cluster, "benchmark", resources);
+        upToDate.setLatency(latencyMicros, TimeUnit.MICROSECONDS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        cluster.close();
+    }
+
+    @Benchmark
+    public List<Migration> parseMigrations() {
+        return migrator.parseMigrations(resources);
+    }
+
+    @Benchmark
+    public List<Migration> filterApplied() {
+        return parsed.stream()
+                .filter(Migrator.wasAppliedWith(halfApplied).negate())
+                .collect(toList());
+    }
+
+    /**
+     * Empty keyspace: every migration is applied.
+     */
+    @Benchmark
+    public void executeAll() {
+        client = new InMemoryMigrationClient(latencyMicros, TimeUnit.MICROSECONDS);
+        migrator.execute(cluster, "benchmark", resources);
+    }
+
+    /**
+     * Every migration was applied but the fingerprint is missing, so the applied set is checked.
+     */
+    @Benchmark
+    public void executeApplied() {
+        client = new InMemoryMigrationClient(latencyMicros, TimeUnit.MICROSECONDS);
+        client.markApplied(parsed);
+        migrator.execute(cluster, "benchmark", resources);
+    }
+
+    /**
+     * Warm restart: the fingerprint matches and only the files are read and hashed.
+     */
+    @Benchmark
+    public void executeFingerprintMatch() {
+        client = upToDate;
+        migrator.execute(cluster, "benchmark", resources);
+    }
+
+    private static Resource resource(String filename, String statement) {
+        return new ByteArrayResource(statement.getBytes(UTF_8)) {
+            @Override
+            public String getFilename() {
+                return filename;
+            }
+        };
+    }
+}
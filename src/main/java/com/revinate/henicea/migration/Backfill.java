@@ -0,0 +1,51 @@
+package com.revinate.henicea.migration;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A data migration that reads every row of a table and writes the statements returned by a {@link BackfillTransform},
+ * for example to copy rows into a new table. It is executed by a {@link BackfillRunner}, which tracks its progress
+ * under {@code getName()}.
+ *
+ * <pre>
+ * Backfill backfill = new Backfill("users_by_email", "users", row -&gt; singletonList(
+ *         insertInto("users_by_email").value("email", row.getString("email")).value("id", row.getUUID("id"))));
+ * </pre>
+ */
+@Getter
+@ToString(exclude = "transform")
+public class Backfill {
+
+    private final String name;
+    private final String table;
+    private final List<String> columns;
+    private final BackfillTransform transform;
+
+    /**
+     * Reads all the columns of the table.
+     *
+     * @param name      Identifies the progress of the backfill, renaming it starts over
+     * @param table     The table to read, in the keyspace of the runner
+     * @param transform Creates the writes of each row
+     */
+    public Backfill(String name, String table, BackfillTransform transform) {
+        this(name, table, Collections.emptyList(), transform);
+    }
+
+    /**
+     * @param name      Identifies the progress of the backfill, renaming it starts over
+     * @param table     The table to read, in the keyspace of the runner
+     * @param columns   The columns to read, all of them if empty
+     * @param transform Creates the writes of each row
+     */
+    public Backfill(String name, String table, List<String> columns, BackfillTransform transform) {
+        this.name = name;
+        this.table = table;
+        this.columns = Collections.unmodifiableList(columns);
+        this.transform = transform;
+    }
+}
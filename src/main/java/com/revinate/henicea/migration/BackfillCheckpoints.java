@@ -0,0 +1,122 @@
+package com.revinate.henicea.migration;
+
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.datastax.driver.core.querybuilder.QueryBuilder.*;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Stores the token ranges of every {@link Backfill} and their progress in the <code>backfills</code> table.
+ */
+@RequiredArgsConstructor
+@Slf4j
+class BackfillCheckpoints {
+
+    static final String BACKFILLS_TABLE = "backfills";
+
+    private static final String TABLE_CREATION_STATEMENT =
+            "CREATE TABLE IF NOT EXISTS %s.backfills (name text, range_id int, range_start text, range_end text, position text, done boolean, updated_at timestamp, PRIMARY KEY (name, range_id))";
+
+    enum Query {READ_RANGES, ADD_RANGE, SAVE_POSITION, MARK_DONE}
+
+    private final Session session;
+    private final String keyspace;
+
+    private final ConcurrentMap<Query, PreparedStatement> preparedStatements = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the <code>backfills</code> table unless the driver already knows it.
+     */
+    void init() {
+        KeyspaceMetadata keyspaceMetadata = session.getCluster().getMetadata().getKeyspace(keyspace);
+        if (keyspaceMetadata == null || keyspaceMetadata.getTable(BACKFILLS_TABLE) == null) {
+            session.execute(String.format(TABLE_CREATION_STATEMENT, keyspace));
+        }
+    }
+
+    /**
+     * @return the ranges of the backfill, empty if it never ran.
+     */
+    List<BackfillRange> load(String backfill) {
+        List<BackfillRange> ranges = new ArrayList<>();
+        for (Row row : session.execute(bind(Query.READ_RANGES, backfill))) {
+            ranges.add(toRange(row));
+        }
+        return ranges;
+    }
+
+    /**
+     * Saves the ranges of a backfill that never ran.
+     */
+    void create(String backfill, List<BackfillRange> ranges) {
+        List<ResultSetFuture> inserts = ranges.stream()
+                .map(range -> session.executeAsync(bind(Query.ADD_RANGE,
+                        backfill, range.getId(), range.getStart(), range.getEnd())))
+                .collect(toList());
+        inserts.forEach(ResultSetFuture::getUninterruptibly);
+        log.debug("Saved {} token ranges of backfill {}", ranges.size(), backfill);
+    }
+
+    void savePosition(String backfill, BackfillRange range, String position) {
+        session.execute(bind(Query.SAVE_POSITION, position, backfill, range.getId()));
+    }
+
+    void markDone(String backfill, BackfillRange range, String position) {
+        session.execute(bind(Query.MARK_DONE, position, backfill, range.getId()));
+    }
+
+    private Statement bind(Query query, Object... values) {
+        return preparedStatements
+                .computeIfAbsent(query, q -> session.prepare(buildQuery(q)))
+                .bind(values);
+    }
+
+    private RegularStatement buildQuery(Query query) {
+        switch (query) {
+            case READ_RANGES:
+                return select("range_id", "range_start", "range_end", "position", "done").from(keyspace, BACKFILLS_TABLE)
+                        .where(eq("name", bindMarker()));
+            case ADD_RANGE:
+                return insertInto(keyspace, BACKFILLS_TABLE)
+                        .value("name", bindMarker())
+                        .value("range_id", bindMarker())
+                        .value("range_start", bindMarker())
+                        .value("range_end", bindMarker())
+                        .value("done", false)
+                        .value("updated_at", DefaultMigrationClient.now());
+            case SAVE_POSITION:
+                return update(keyspace, BACKFILLS_TABLE)
+                        .with(set("position", bindMarker()))
+                        .and(set("updated_at", DefaultMigrationClient.now()))
+                        .where(eq("name", bindMarker()))
+                        .and(eq("range_id", bindMarker()));
+            case MARK_DONE:
+                return update(keyspace, BACKFILLS_TABLE)
+                        .with(set("position", bindMarker()))
+                        .and(set("done", true))
+                        .and(set("updated_at", DefaultMigrationClient.now()))
+                        .where(eq("name", bindMarker()))
+                        .and(eq("range_id", bindMarker()));
+            default:
+                throw new IllegalArgumentException("Unknown query " + query);
+        }
+    }
+
+    private static BackfillRange toRange(Row row) {
+        return new BackfillRange(row.getInt("range_id"), row.getString("range_start"), row.getString("range_end"),
+                row.getString("position"), row.getBool("done"));
+    }
+}
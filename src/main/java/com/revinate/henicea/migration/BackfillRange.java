@@ -0,0 +1,40 @@
+package com.revinate.henicea.migration;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * A token range of a {@link Backfill} and its checkpoint. Tokens are kept in their string form, as stored in the
+ * <code>backfills</code> table, and parsed with {@link com.datastax.driver.core.Metadata#newToken(String)}.
+ */
+@RequiredArgsConstructor
+@Getter
+@EqualsAndHashCode
+@ToString
+class BackfillRange {
+
+    private final int id;
+
+    /**
+     * Exclusive start, null for the start of the ring.
+     */
+    private final String start;
+
+    /**
+     * Inclusive end, null for the end of the ring.
+     */
+    private final String end;
+
+    /**
+     * Token of the last row whose writes completed, null if the range was not started.
+     */
+    private final String position;
+
+    private final boolean done;
+
+    BackfillRange(int id, String start, String end) {
+        this(id, start, end, null, false);
+    }
+}
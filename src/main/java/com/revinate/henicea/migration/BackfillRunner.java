@@ -0,0 +1,327 @@
+package com.revinate.henicea.migration;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.TokenRange;
+import com.datastax.driver.core.querybuilder.Select;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static com.datastax.driver.core.querybuilder.QueryBuilder.*;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Executes {@link Backfill}s. The ring is split into token ranges that are scanned in parallel with paged reads, the
+ * rows are passed to the transform and its statements are executed asynchronously, bounded by
+ * {@code maxInFlightWrites} and {@link #setWritesPerSecond(double)}.
+ *
+ * <p>The ranges and the token reached in each one are saved in the <code>backfills</code> table of the keyspace after
+ * every page, once the writes of the page completed. Running a backfill again skips the finished ranges and resumes
+ * the others from their last page, so after a failure or a restart only the work since the last checkpoint is done
+ * again. A finished backfill is a no-op.
+ *
+ * <p>The runner does not coordinate instances: run a backfill from one instance only, for example after
+ * {@link Migrator#execute(Session, String, org.springframework.core.io.Resource...)} on the instance that applied the
+ * migrations.
+ *
+ * <pre>
+ * BackfillRunner runner = new BackfillRunner(session, "myapp");
+ * runner.setWritesPerSecond(2000);
+ * runner.run(new Backfill("users_by_email", "users", row -&gt; ...));
+ * </pre>
+ */
+@Slf4j
+public class BackfillRunner {
+
+    private final Session session;
+    private final String keyspace;
+    private final BackfillCheckpoints checkpoints;
+    private final ConcurrentMap<String, PreparedStatement> scans = new ConcurrentHashMap<>();
+
+    /**
+     * Number of token ranges scanned at the same time. Defaults to 4.
+     */
+    @Setter
+    private int parallelism = 4;
+
+    /**
+     * Number of parts each token range of the ring is split into when a backfill starts, to get smaller checkpoints
+     * and more parallelism on small clusters. Defaults to 1.
+     */
+    @Setter
+    private int splitsPerRange = 1;
+
+    /**
+     * Page size of the scans. Defaults to 1000.
+     */
+    @Setter
+    private int fetchSize = 1000;
+
+    /**
+     * Maximum number of writes executing at the same time across all ranges. Defaults to 64.
+     */
+    @Setter
+    private int maxInFlightWrites = 64;
+
+    private RateLimiter rateLimiter;
+
+    private Function<Metadata, List<BackfillRange>> planner = metadata -> plan(metadata.getTokenRanges(), splitsPerRange);
+
+    /**
+     * @param session  The session used to read and write
+     * @param keyspace The keyspace of the tables and of the <code>backfills</code> table
+     */
+    public BackfillRunner(Session session, String keyspace) {
+        this.session = session;
+        this.keyspace = keyspace;
+        this.checkpoints = new BackfillCheckpoints(session, keyspace);
+    }
+
+    /**
+     * Limits the writes of the backfill to protect the latency of the application. Unlimited by default.
+     *
+     * @param writesPerSecond The maximum number of statements executed per second, or zero for no limit
+     */
+    public void setWritesPerSecond(double writesPerSecond) {
+        this.rateLimiter = writesPerSecond > 0 ? RateLimiter.create(writesPerSecond) : null;
+    }
+
+    @VisibleForTesting
+    BackfillRunner usingPlanner(Function<Metadata, List<BackfillRange>> planner) {
+        this.planner = planner;
+        return this;
+    }
+
+    /**
+     * Runs the backfill, or resumes it if it was started before.
+     *
+     * @param backfill The backfill
+     * @return the number of rows read by this run.
+     * @throws IllegalArgumentException if the table does not exist
+     */
+    public long run(Backfill backfill) {
+        Metadata metadata = session.getCluster().getMetadata();
+        TableMetadata table = tableOf(metadata, backfill);
+
+        checkpoints.init();
+        List<BackfillRange> ranges = checkpoints.load(backfill.getName());
+        if (ranges.isEmpty()) {
+            ranges = planner.apply(metadata);
+            checkpoints.create(backfill.getName(), ranges);
+        }
+
+        List<BackfillRange> pending = ranges.stream().filter(range -> !range.isDone()).collect(toList());
+        log.info("Backfill {} has {} of {} token ranges left", backfill.getName(), pending.size(), ranges.size());
+        if (pending.isEmpty()) {
+            return 0;
+        }
+
+        Scan scan = new Scan(backfill, metadata, table);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, pending.size()));
+        try {
+            // scans are collected as they finish, so the first failure cancels the run without waiting for the others
+            CompletionService<Long> scans = new ExecutorCompletionService<>(executor);
+            pending.forEach(range -> scans.submit(() -> scan.run(range)));
+            long rows = 0;
+            for (int i = 0; i < pending.size(); i++) {
+                rows += Futures.getUnchecked(scans.take());
+            }
+            log.info("Backfill {} finished after reading {} rows", backfill.getName(), rows);
+            return rows;
+        } catch (UncheckedExecutionException e) {
+            log.error("Backfill {} failed, it resumes from the last checkpoints on the next run", backfill.getName(), e);
+            throw Throwables.propagate(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running backfill " + backfill.getName(), e);
+        } finally {
+            // the scans block uninterruptibly, they stop at the next row and are awaited so none outlives the run
+            scan.cancel();
+            executor.shutdownNow();
+            awaitTermination(executor);
+        }
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.debug("Waiting for backfill scans to stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private TableMetadata tableOf(Metadata metadata, Backfill backfill) {
+        KeyspaceMetadata keyspaceMetadata = metadata.getKeyspace(keyspace);
+        TableMetadata table = keyspaceMetadata == null ? null : keyspaceMetadata.getTable(backfill.getTable());
+        if (table == null) {
+            throw new IllegalArgumentException(
+                    String.format("Table %s.%s of backfill %s does not exist", keyspace, backfill.getTable(), backfill.getName()));
+        }
+        return table;
+    }
+
+    /**
+     * Splits the ring into ranges that do not wrap around. A range ending at the minimum token or covering the whole
+     * ring is open at the end.
+     */
+    private static List<BackfillRange> plan(Collection<TokenRange> ring, int splitsPerRange) {
+        List<BackfillRange> ranges = new ArrayList<>();
+        ring.stream()
+                .sorted()
+                .flatMap(range -> range.splitEvenly(splitsPerRange).stream())
+                .flatMap(range -> range.unwrap().stream())
+                .forEach(range -> {
+                    String start = range.getStart().toString();
+                    int order = range.getStart().compareTo(range.getEnd());
+                    if (order < 0) {
+                        ranges.add(new BackfillRange(ranges.size(), start, range.getEnd().toString()));
+                    } else {
+                        ranges.add(new BackfillRange(ranges.size(), start, null));
+                        if (order == 0) {
+                            // a single range covering the whole ring
+                            ranges.add(new BackfillRange(ranges.size(), null, range.getEnd().toString()));
+                        }
+                    }
+                });
+        return ranges;
+    }
+
+    private class Scan {
+
+        private final Backfill backfill;
+        private final Metadata metadata;
+        private final String token;
+        private final String[] columns;
+        private final Semaphore writePermits = new Semaphore(maxInFlightWrites);
+        private volatile boolean cancelled = false;
+
+        private Scan(Backfill backfill, Metadata metadata, TableMetadata table) {
+            this.backfill = backfill;
+            this.metadata = metadata;
+            this.token = token(table.getPartitionKey().stream().map(ColumnMetadata::getName).toArray(String[]::new));
+            List<String> selected = backfill.getColumns().isEmpty()
+                    ? table.getColumns().stream().map(ColumnMetadata::getName).collect(toList())
+                    : backfill.getColumns();
+            this.columns = Stream.concat(Stream.of(token), selected.stream()).toArray(String[]::new);
+        }
+
+        private long run(BackfillRange range) {
+            boolean resumed = range.getPosition() != null;
+            String from = resumed ? range.getPosition() : range.getStart();
+            log.debug("Scanning {} of backfill {}{}", range, backfill.getName(), resumed ? " from its checkpoint" : "");
+
+            List<Object> values = new ArrayList<>();
+            Stream.of(from, range.getEnd())
+                    .filter(bound -> bound != null)
+                    .forEach(bound -> values.add(metadata.newToken(bound).getValue()));
+            BoundStatement statement = prepare(from == null ? null : resumed, range.getEnd() != null).bind(values.toArray());
+            statement.setFetchSize(fetchSize);
+
+            ResultSet rows = session.execute(statement);
+            List<ResultSetFuture> writes = new ArrayList<>();
+            String position = range.getPosition();
+            long count = 0;
+            for (Row row : rows) {
+                if (cancelled) {
+                    // no checkpoint, the rows since the last one are read again by the next run
+                    awaitQuietly(writes);
+                    throw new CancellationException("Backfill " + backfill.getName() + " was cancelled");
+                }
+                write(backfill.getTransform().transform(row), writes);
+                position = row.getToken(0).toString();
+                count++;
+                if (rows.getAvailableWithoutFetching() == 0 && !rows.isFullyFetched()) {
+                    awaitAll(writes);
+                    checkpoints.savePosition(backfill.getName(), range, position);
+                }
+            }
+            awaitAll(writes);
+            checkpoints.markDone(backfill.getName(), range, position);
+            log.debug("Finished {} of backfill {} after {} rows", range, backfill.getName(), count);
+            return count;
+        }
+
+        private void write(Collection<? extends Statement> statements, List<ResultSetFuture> writes) {
+            for (Statement statement : statements) {
+                if (rateLimiter != null) {
+                    rateLimiter.acquire();
+                }
+                writePermits.acquireUninterruptibly();
+                ResultSetFuture write = session.executeAsync(statement);
+                write.addListener(writePermits::release, MoreExecutors.sameThreadExecutor());
+                writes.add(write);
+            }
+        }
+
+        /**
+         * Stops the scans of every range at their next row.
+         */
+        private void cancel() {
+            cancelled = true;
+        }
+
+        private void awaitAll(List<ResultSetFuture> writes) {
+            writes.forEach(ResultSetFuture::getUninterruptibly);
+            writes.clear();
+        }
+
+        private void awaitQuietly(List<ResultSetFuture> writes) {
+            writes.forEach(write -> {
+                try {
+                    write.getUninterruptibly();
+                } catch (RuntimeException e) {
+                    log.debug("Write of cancelled backfill {} failed", backfill.getName(), e);
+                }
+            });
+            writes.clear();
+        }
+
+        /**
+         * @param inclusiveStart null without lower bound, true when resuming from the token of an already read row
+         * @param bounded        whether the range has an upper bound
+         */
+        private PreparedStatement prepare(Boolean inclusiveStart, boolean bounded) {
+            Select select = select(columns).from(keyspace, backfill.getTable());
+            Select.Where where = select.where();
+            if (inclusiveStart != null) {
+                where.and(inclusiveStart ? gte(token, bindMarker()) : gt(token, bindMarker()));
+            }
+            if (bounded) {
+                where.and(lte(token, bindMarker()));
+            }
+            return scans.computeIfAbsent(select.getQueryString(), query -> session.prepare(select));
+        }
+    }
+}
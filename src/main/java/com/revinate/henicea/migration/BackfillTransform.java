@@ -0,0 +1,23 @@
+package com.revinate.henicea.migration;
+
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Statement;
+
+import java.util.Collection;
+
+/**
+ * Turns a row read by a {@link Backfill} into the statements that write it back. A row can be written to any number of
+ * tables, or skipped by returning an empty collection.
+ *
+ * <p>A resumed backfill may read the last partition of a range again, so the statements must be idempotent, which
+ * plain inserts and updates are.
+ */
+@FunctionalInterface
+public interface BackfillTransform {
+
+    /**
+     * @param row The row, with the token of its partition key as first column
+     * @return the statements to execute for the row.
+     */
+    Collection<? extends Statement> transform(Row row);
+}
@@ -0,0 +1,191 @@
+package com.revinate.henicea.migration;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Splits a CQL script into statements while reading it, one character at a time, so a file is never held in memory
+ * as a whole. Statements are separated by <code>;</code> outside of comments (<code>--</code>, <code>//</code> and
+ * <code>/* *&#47;</code>), string literals (<code>'it''s'</code>), quoted identifiers and <code>$$</code> quoted bodies
+ * of functions.
+ *
+ * <p>The statements are trimmed and do not include the separator. Comments stay in the statement that follows them,
+ * so the header of a migration file is part of its first statement. Parts of the script without anything but comments
+ * and whitespace are dropped.
+ */
+public class CqlSplitter implements Iterator<String> {
+
+    private enum State {CODE, LINE_COMMENT, BLOCK_COMMENT, STRING, QUOTED_IDENTIFIER, DOLLAR_QUOTED}
+
+    private final Reader reader;
+    private final StringBuilder current = new StringBuilder();
+
+    private int lookahead = -2;
+    private String next;
+
+    /**
+     * @param reader The script, closing it is up to the caller
+     */
+    public CqlSplitter(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * @return the statements of the script.
+     * @throws IllegalArgumentException if a string literal, a quoted identifier or a comment is not terminated
+     */
+    public static List<String> split(String script) {
+        return split(new StringReader(script));
+    }
+
+    /**
+     * @return the statements read from <code>reader</code>.
+     * @throws UncheckedIOException     if the reader fails
+     * @throws IllegalArgumentException if a string literal, a quoted identifier or a comment is not terminated
+     */
+    public static List<String> split(Reader reader) {
+        List<String> statements = new ArrayList<>();
+        new CqlSplitter(reader).forEachRemaining(statements::add);
+        return statements;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = readStatement();
+        }
+        return next != null;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String statement = next;
+        next = null;
+        return statement;
+    }
+
+    private String readStatement() {
+        State state = State.CODE;
+        boolean hasCode = false;
+        current.setLength(0);
+
+        for (int c = read(); c != -1; c = read()) {
+            char ch = (char) c;
+            switch (state) {
+                case CODE:
+                    if (ch == ';') {
+                        if (hasCode) {
+                            return current.toString().trim();
+                        }
+                        current.setLength(0);
+                        continue;
+                    }
+                    if (ch == '-' && peek() == '-' || ch == '/' && peek() == '/') {
+                        state = State.LINE_COMMENT;
+                    } else if (ch == '/' && peek() == '*') {
+                        state = State.BLOCK_COMMENT;
+                        current.append(ch);
+                        ch = (char) read();
+                    } else if (ch == '\'') {
+                        state = State.STRING;
+                    } else if (ch == '"') {
+                        state = State.QUOTED_IDENTIFIER;
+                    } else if (ch == '$' && peek() == '$') {
+                        state = State.DOLLAR_QUOTED;
+                        current.append(ch);
+                        ch = (char) read();
+                    }
+                    hasCode |= state != State.LINE_COMMENT && state != State.BLOCK_COMMENT && !Character.isWhitespace(ch);
+                    break;
+                case LINE_COMMENT:
+                    if (ch == '\n') {
+                        state = State.CODE;
+                    }
+                    break;
+                case BLOCK_COMMENT:
+                    if (ch == '*' && peek() == '/') {
+                        current.append(ch);
+                        ch = (char) read();
+                        state = State.CODE;
+                    }
+                    break;
+                case STRING:
+                    state = closeQuote(ch, '\'', State.STRING);
+                    break;
+                case QUOTED_IDENTIFIER:
+                    state = closeQuote(ch, '"', State.QUOTED_IDENTIFIER);
+                    break;
+                case DOLLAR_QUOTED:
+                    if (ch == '$' && peek() == '$') {
+                        current.append(ch);
+                        ch = (char) read();
+                        state = State.CODE;
+                    }
+                    break;
+            }
+            current.append(ch);
+        }
+
+        if (state != State.CODE && state != State.LINE_COMMENT) {
+            throw new IllegalArgumentException("Unterminated " + describe(state) + " in CQL script");
+        }
+        return hasCode ? current.toString().trim() : null;
+    }
+
+    /**
+     * A doubled quote character is an escaped quote and does not end the literal.
+     */
+    private State closeQuote(char ch, char quote, State state) {
+        if (ch != quote) {
+            return state;
+        }
+        if (peek() == quote) {
+            current.append(ch);
+            read();
+            return state;
+        }
+        return State.CODE;
+    }
+
+    private int read() {
+        if (lookahead != -2) {
+            int c = lookahead;
+            lookahead = -2;
+            return c;
+        }
+        try {
+            return reader.read();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int peek() {
+        if (lookahead == -2) {
+            lookahead = read();
+        }
+        return lookahead;
+    }
+
+    private static String describe(State state) {
+        switch (state) {
+            case BLOCK_COMMENT:
+                return "comment";
+            case STRING:
+                return "string literal";
+            case QUOTED_IDENTIFIER:
+                return "quoted identifier";
+            default:
+                return "$$ quoted body";
+        }
+    }
+}
@@ -1,68 +1,250 @@
 package com.revinate.henicea.migration;
 
-import com.datastax.driver.core.ResultSet;
-import com.datastax.driver.core.Session;
+import com.datastax.driver.core.*;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.revinate.henicea.util.MetricsRecorder;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
 
 import static com.datastax.driver.core.querybuilder.QueryBuilder.*;
-import static java.util.stream.Collectors.toCollection;
+import static java.util.stream.Collectors.toList;
 
 /**
  * The default migration client in the library. The {@link Migrator} instantiated an instance of this client prior to
  * the execution. You can extends this class if necessary.
+ *
+ * <p>The bookkeeping queries on the <code>leases</code>, <code>migrations</code> and <code>fingerprints</code> tables
+ * are prepared once per client, see {@link Query}.
+ *
+ * <p>The time spent applying each migration is stored next to its status, see {@link #runMigration(Migration)} and
+ * {@link #getSlowestMigrations(int)}.
  */
 @RequiredArgsConstructor
 @Slf4j
 public class DefaultMigrationClient implements MigrationClient {
 
+    protected static final int LEASE_TTL_SECONDS = 180;
+
     private static final String KEYSPACE_CREATION_STATEMENT =
             "CREATE KEYSPACE IF NOT EXISTS %s WITH replication = {'class': 'SimpleStrategy', 'replication_factor': %d}";
     private static final String KEYSPACE_USE_STATEMENT = "USE %s";
-    private static final List<String> INIT_STATEMENTS = Arrays.asList(
-            "CREATE TABLE IF NOT EXISTS %s.leases (name text PRIMARY KEY, owner text, value text) with default_time_to_live = 180",
-            "CREATE TABLE IF NOT EXISTS %s.migrations (name text PRIMARY KEY, created_at timestamp, status text, statement text, reason text)"
-    );
+    private static final String ADD_COLUMN_STATEMENT = "ALTER TABLE %s.migrations ADD %s %s";
 
     protected static final String LEASES_TABLE = "leases";
     protected static final String MIGRATIONS_TABLE = "migrations";
+    protected static final String FINGERPRINTS_TABLE = "fingerprints";
+    protected static final String CHECKSUM_COLUMN = "checksum";
+    protected static final String PROGRESS_COLUMN = "progress";
+    protected static final String DURATION_COLUMN = "duration_ms";
+    protected static final String SCHEMA_AGREEMENT_COLUMN = "schema_agreement_ms";
+    protected static final String COORDINATOR_COLUMN = "coordinator";
+    protected static final String TRACE_ID_COLUMN = "trace_id";
+
+    private static final Map<String, String> TABLE_CREATION_STATEMENTS = new LinkedHashMap<>();
+
+    static {
+        TABLE_CREATION_STATEMENTS.put(LEASES_TABLE,
+                "CREATE TABLE IF NOT EXISTS %s.leases (name text PRIMARY KEY, owner text, value text) with default_time_to_live = " + LEASE_TTL_SECONDS);
+        TABLE_CREATION_STATEMENTS.put(MIGRATIONS_TABLE,
+                "CREATE TABLE IF NOT EXISTS %s.migrations (name text PRIMARY KEY, created_at timestamp, status text, statement text, reason text, checksum text, progress int, duration_ms bigint, schema_agreement_ms bigint, coordinator text, trace_id uuid)");
+        TABLE_CREATION_STATEMENTS.put(FINGERPRINTS_TABLE,
+                "CREATE TABLE IF NOT EXISTS %s.fingerprints (name text PRIMARY KEY, value text, updated_at timestamp)");
+    }
+
+    /**
+     * Columns added to the <code>migrations</code> table after its first version, with their types.
+     */
+    private static final Map<String, String> ADDED_MIGRATION_COLUMNS = new LinkedHashMap<>();
+
+    static {
+        ADDED_MIGRATION_COLUMNS.put(CHECKSUM_COLUMN, "text");
+        ADDED_MIGRATION_COLUMNS.put(PROGRESS_COLUMN, "int");
+        ADDED_MIGRATION_COLUMNS.put(DURATION_COLUMN, "bigint");
+        ADDED_MIGRATION_COLUMNS.put(SCHEMA_AGREEMENT_COLUMN, "bigint");
+        ADDED_MIGRATION_COLUMNS.put(COORDINATOR_COLUMN, "text");
+        ADDED_MIGRATION_COLUMNS.put(TRACE_ID_COLUMN, "uuid");
+    }
+
     protected static final String MIGRATION_LEASE_KEY = "migration";
+    protected static final String MIGRATION_FINGERPRINT_KEY = "migration";
     protected static final int DEFAULT_REPLICATION_FACTOR = 1;
+    protected static final int LOOKUP_BATCH_SIZE = 100;
+    private static final long SCHEMA_AGREEMENT_POLL_MILLIS = 200;
 
     protected enum MigrationStatus {APPLYING, APPLIED, FAILED}
 
+    /**
+     * The bookkeeping queries. Each one is prepared once per client and executed with bound values. The consistency
+     * and serial consistency levels can be set per query.
+     */
+    public enum Query {
+        READ_LEASE, ACQUIRE_LEASE, RENEW_LEASE, RELEASE_LEASE,
+        APPLIED_MIGRATIONS, LOOKUP_MIGRATIONS, ADD_MIGRATION, UPDATE_MIGRATION_STATUS,
+        READ_MIGRATION_PROGRESS, UPDATE_MIGRATION_PROGRESS, MIGRATION_TIMINGS,
+        READ_FINGERPRINT, SAVE_FINGERPRINT
+    }
+
     protected final Session session;
     protected final String keyspace;
     protected final String uniqueId;
 
+    private final ConcurrentMap<Query, PreparedStatement> preparedStatements = new ConcurrentHashMap<>();
+    private final Map<Query, ConsistencyLevel> consistencyLevels = new EnumMap<>(Query.class);
+    private final Map<Query, ConsistencyLevel> serialConsistencyLevels = new EnumMap<>(Query.class);
+    private final boolean legacyStatusUpdate = overrides("updateMigrationStatus", Migration.class, String.class, Optional.class);
+
+    /**
+     * Page size used when scanning the <code>migrations</code> table.
+     */
+    @Setter
+    private int fetchSize = 1000;
+
+    /**
+     * How long to wait for the schema agreement after a DDL statement the driver did not see agreed on. The run
+     * proceeds with a warning if the agreement is not reached in time, same as the driver does.
+     */
+    @Setter
+    private long schemaAgreementTimeoutMillis = TimeUnit.SECONDS.toMillis(10);
+
     /**
+     * Enables driver query tracing of the migration statements. The id of the trace of the slowest statement of each
+     * migration is stored in the <code>trace_id</code> column and the trace can be read from
+     * <code>system_traces.sessions</code>. Tracing adds writes on the coordinator, so it is off by default.
+     */
+    @Setter
+    private boolean tracing = false;
+
+    private MetricsRecorder metricsRecorder = MetricsRecorder.NONE;
+
+    private LongSupplier nanoClock = System::nanoTime;
+
+    @VisibleForTesting
+    DefaultMigrationClient usingClock(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        return this;
+    }
+
+    protected long nanoTime() {
+        return nanoClock.getAsLong();
+    }
+
+    /**
+     * Sets the serial consistency of the lightweight transactions on the lease. Use <code>LOCAL_SERIAL</code> in
+     * multi data center setups where the migration only needs to be coordinated inside the local data center.
+     *
+     * @param serialConsistencyLevel The serial consistency level
+     */
+    public void setSerialConsistencyLevel(ConsistencyLevel serialConsistencyLevel) {
+        Stream.of(Query.ACQUIRE_LEASE, Query.RENEW_LEASE, Query.RELEASE_LEASE)
+                .forEach(query -> setSerialConsistencyLevel(query, serialConsistencyLevel));
+    }
+
+    /**
+     * @param query                  The bookkeeping query
+     * @param serialConsistencyLevel The serial consistency level, or null for the driver default
+     */
+    public void setSerialConsistencyLevel(Query query, ConsistencyLevel serialConsistencyLevel) {
+        serialConsistencyLevels.put(query, serialConsistencyLevel);
+    }
+
+    /**
+     * @param query            The bookkeeping query
+     * @param consistencyLevel The consistency level, or null for the driver default
+     */
+    public void setConsistencyLevel(Query query, ConsistencyLevel consistencyLevel) {
+        consistencyLevels.put(query, consistencyLevel);
+    }
+
+    /**
+     * Records the time of every migration as {@link MetricsRecorder#MIGRATION} and counts the failed ones as
+     * {@link MetricsRecorder#MIGRATION_FAILURES}.
+     */
+    @Override
+    public void setMetricsRecorder(MetricsRecorder metricsRecorder) {
+        this.metricsRecorder = metricsRecorder;
+    }
+
+    /**
+     * Creates the keyspace and the bookkeeping tables. The schema known by the driver is checked first and only the
+     * DDL of missing objects is sent, so an up to date schema costs no round trip. The statements keep their
+     * <code>IF NOT EXISTS</code> clauses in case another instance created the objects in the meantime.
+     *
+     * <p>The session keyspace is not changed here, see {@link #useKeyspace()}.
+     *
      * @param replicationFactor The optional replication factor when creating keyspace.
      */
     @Override
     public void init(Optional<Integer> replicationFactor) {
-        session.execute(String.format(KEYSPACE_CREATION_STATEMENT, keyspace,
-                replicationFactor.orElse(DEFAULT_REPLICATION_FACTOR)));
-        session.execute(String.format(KEYSPACE_USE_STATEMENT, keyspace));
-        INIT_STATEMENTS.stream()
-                .map(s -> String.format(s, keyspace))
-                .forEach(session::execute);
+        KeyspaceMetadata keyspaceMetadata = session.getCluster().getMetadata().getKeyspace(keyspace);
+        if (keyspaceMetadata == null) {
+            session.execute(String.format(KEYSPACE_CREATION_STATEMENT, keyspace,
+                    replicationFactor.orElse(DEFAULT_REPLICATION_FACTOR)));
+        }
+
+        TABLE_CREATION_STATEMENTS.forEach((table, statement) -> {
+            if (keyspaceMetadata == null || keyspaceMetadata.getTable(table) == null) {
+                session.execute(String.format(statement, keyspace));
+            } else if (MIGRATIONS_TABLE.equals(table)) {
+                TableMetadata migrations = keyspaceMetadata.getTable(table);
+                ADDED_MIGRATION_COLUMNS.forEach((column, type) -> {
+                    if (migrations.getColumn(column) == null) {
+                        addColumn(column, type);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Switches the session to the keyspace being migrated, because migration statements usually do not qualify the
+     * keyspace. The bookkeeping statements are qualified, so this only happens when a migration is actually applied
+     * and only if the session is not using the keyspace already.
+     */
+    protected void useKeyspace() {
+        if (!keyspace.equalsIgnoreCase(session.getLoggedKeyspace())) {
+            session.execute(String.format(KEYSPACE_USE_STATEMENT, keyspace));
+        }
+    }
+
+    /**
+     * Adds a column to <code>migrations</code> tables created by earlier versions.
+     */
+    private void addColumn(String column, String type) {
+        try {
+            session.execute(String.format(ADD_COLUMN_STATEMENT, keyspace, column, type));
+        } catch (InvalidQueryException e) {
+            log.trace("Column {} already exists: {}", column, e.getMessage());
+        }
     }
 
     /**
      * Gets a lock by using paxos to insert into the <code>leases</code> table. The lock is used to prevent
      * multiple migrations from executing at the same time in a cluster deployment.
      *
+     * <p>The lease row is read first without paxos and the insert is only attempted when the lease looks free, so a
+     * mass restart does not send every instance to the paxos path of the same partition.
+     *
      * @return true if the lock was acquired sucessfully.
      */
     @Override
     public boolean acquireLock() {
         log.debug("Trying to acquire migration lock");
-        ResultSet resultSet = session.execute(insertInto(keyspace, LEASES_TABLE)
-                .value("name", MIGRATION_LEASE_KEY)
-                .value("owner", uniqueId)
-                .ifNotExists());
+        if (isLocked()) {
+            log.debug("Migration lock is held by another client");
+            return false;
+        }
+
+        ResultSet resultSet = session.execute(bind(Query.ACQUIRE_LEASE, MIGRATION_LEASE_KEY, uniqueId));
 
         boolean result = resultSet.wasApplied();
         log.debug("Migration lock acquired: {}", result);
@@ -75,71 +257,467 @@ public class DefaultMigrationClient implements MigrationClient {
     @Override
     public void releaseLock() {
         log.debug("Releasing migration lock");
-        session.execute(delete()
-                .from(keyspace, LEASES_TABLE)
-                .where(eq("name", MIGRATION_LEASE_KEY))
-                .onlyIf(eq("owner", uniqueId)));
+        session.execute(bind(Query.RELEASE_LEASE, MIGRATION_LEASE_KEY, uniqueId));
+    }
+
+    /**
+     * Renews the lease with a conditional update that resets its TTL, as long as it is still owned by this client.
+     *
+     * @return true if the lease is still owned by this client.
+     */
+    @Override
+    public boolean renewLock() {
+        log.debug("Renewing migration lock");
+        boolean result = session.execute(bind(Query.RENEW_LEASE, uniqueId, MIGRATION_LEASE_KEY, uniqueId))
+                .wasApplied();
+        log.debug("Migration lock renewed: {}", result);
+        return result;
     }
 
     /**
-     * Queries the <code>migrations</code> table for the migrations already applied.
+     * Reads the lease row without paxos.
+     *
+     * @return true if any client holds the lease.
+     */
+    @Override
+    public boolean isLocked() {
+        return session.execute(bind(Query.READ_LEASE, MIGRATION_LEASE_KEY)).one() != null;
+    }
+
+    /**
+     * Queries the <code>migrations</code> table for the migrations already applied. The table is read page by page
+     * and only the name and status columns are fetched.
      *
      * @return a sorted set of the migration files already applied.
      */
     @Override
     public SortedSet<String> getAppliedMigrations() {
-        return session.execute(select("name", "status").from(keyspace, MIGRATIONS_TABLE))
-                .all()
+        BoundStatement statement = bind(Query.APPLIED_MIGRATIONS);
+        statement.setFetchSize(fetchSize);
+        return appliedNames(session.execute(statement));
+    }
+
+    /**
+     * Looks the candidates up by primary key, {@value #LOOKUP_BATCH_SIZE} names per query with the queries running
+     * concurrently, instead of scanning the whole <code>migrations</code> table.
+     *
+     * @param candidates The names of the migrations to check.
+     * @return a sorted set with the candidates already applied.
+     */
+    @Override
+    public SortedSet<String> getAppliedMigrations(Collection<String> candidates) {
+        return new TreeSet<>(getAppliedChecksums(candidates).keySet());
+    }
+
+    /**
+     * Same lookup as {@link #getAppliedMigrations(Collection)}, reading the checksum column as well.
+     *
+     * @param candidates The names of the migrations to check.
+     * @return the applied candidates mapped to their checksum, or to null for migrations applied before checksums
+     * were recorded.
+     */
+    @Override
+    public SortedMap<String, String> getAppliedChecksums(Collection<String> candidates) {
+        List<ResultSetFuture> lookups = Lists.partition(new ArrayList<>(new LinkedHashSet<>(candidates)), LOOKUP_BATCH_SIZE)
                 .stream()
-                .filter(row -> MigrationStatus.APPLIED.name().equals(row.getString(1)))
-                .map(row -> row.getString(0))
-                .collect(toCollection(TreeSet::new));
+                .map(names -> session.executeAsync(bind(Query.LOOKUP_MIGRATIONS, names)))
+                .collect(toList());
+
+        SortedMap<String, String> applied = new TreeMap<>();
+        lookups.forEach(lookup -> {
+            for (Row row : lookup.getUninterruptibly()) {
+                if (MigrationStatus.APPLIED.name().equals(row.getString(1))) {
+                    applied.put(row.getString(0), row.getString(2));
+                }
+            }
+        });
+        return applied;
+    }
+
+    private static SortedSet<String> appliedNames(ResultSet resultSet) {
+        SortedSet<String> applied = new TreeSet<>();
+        for (Row row : resultSet) {
+            if (MigrationStatus.APPLIED.name().equals(row.getString(1))) {
+                applied.add(row.getString(0));
+            }
+        }
+        return applied;
     }
 
     /**
      * Runs the actual migration. Rethrows any exception thrown by {@link Session#execute(String)}.
      *
+     * <p>The statements of a migration with several statements are executed in order and the number of statements
+     * applied is saved in the <code>progress</code> column after each one. If an earlier attempt of the same file
+     * failed halfway, the statements it applied are skipped.
+     *
+     * <p>The time spent in the statements, the time spent waiting for schema agreement and the coordinator of the
+     * slowest statement are stored with the status, see {@link Timing}. The driver waits for schema agreement after
+     * each DDL response and that wait is part of the statement time. If the driver gave up, for example because the
+     * cluster was built with <code>withMaxSchemaAgreementWaitSeconds(0)</code>, the agreement is awaited here and
+     * measured separately.
+     *
      * @param migration The {@link Migration} to be applied.
      */
     @Override
     public void runMigration(Migration migration) {
+        useKeyspace();
+        List<String> statements = migration.getStatements();
+        int progress = statements.size() > 1 ? readProgress(migration) : 0;
         addMigrationToTable(migration);
 
-        MigrationStatus status = MigrationStatus.APPLYING;
+        MigrationStatus status = MigrationStatus.APPLIED;
         Optional<String> reason = Optional.empty();
+        Timing timing = new Timing();
 
         try {
-            ResultSet resultSet = session.execute(migration.getStatement());
-            status = resultSet.wasApplied() ? MigrationStatus.APPLIED : MigrationStatus.FAILED;
+            for (; progress < statements.size() && status == MigrationStatus.APPLIED; progress++) {
+                long start = nanoTime();
+                ResultSet resultSet = executeMigrationStatement(statements.get(progress));
+                timing.recordStatement(resultSet.getExecutionInfo(), nanoTime() - start);
+                if (!resultSet.getExecutionInfo().isSchemaInAgreement()) {
+                    long waitStart = nanoTime();
+                    awaitSchemaAgreement();
+                    timing.recordSchemaAgreement(nanoTime() - waitStart);
+                }
+                status = resultSet.wasApplied() ? MigrationStatus.APPLIED : MigrationStatus.FAILED;
+                if (statements.size() > 1 && status == MigrationStatus.APPLIED) {
+                    session.execute(bind(Query.UPDATE_MIGRATION_PROGRESS, progress + 1, migration.getName()));
+                }
+            }
         } catch (Exception e) {
             status = MigrationStatus.FAILED;
             reason = Optional.ofNullable(e.getMessage());
-            log.error("Error applying migration {}", migration.getName(), e);
+            log.error("Error applying statement {} of migration {}", progress + 1, migration.getName(), e);
             throw e;
         } finally {
-            updateMigrationStatus(migration, status.name(), reason);
-            log.debug("{} executed with status {}", migration, status);
+            recordMetrics(status, timing);
+            updateMigrationStatus(migration, status.name(), reason, timing);
+            log.debug("{} executed with status {} in {} ms", migration, status, timing.getDurationMillis());
         }
     }
 
+    protected void recordMetrics(MigrationStatus status, Timing timing) {
+        metricsRecorder.recordTime(MetricsRecorder.MIGRATION, timing.getDurationNanos(), TimeUnit.NANOSECONDS);
+        if (status == MigrationStatus.FAILED) {
+            metricsRecorder.increment(MetricsRecorder.MIGRATION_FAILURES, 1);
+        }
+    }
+
+    /**
+     * Executes a statement of a migration, with tracing if enabled.
+     */
+    protected ResultSet executeMigrationStatement(String statement) {
+        return tracing ? session.execute(new SimpleStatement(statement).enableTracing()) : session.execute(statement);
+    }
+
+    /**
+     * Sends a statement of a migration, with tracing if enabled.
+     */
+    protected ResultSetFuture executeMigrationStatementAsync(String statement) {
+        return tracing
+                ? session.executeAsync(new SimpleStatement(statement).enableTracing())
+                : session.executeAsync(statement);
+    }
+
+    /**
+     * Polls the schema versions of the hosts until they agree or {@code schemaAgreementTimeoutMillis}
+     * elapsed.
+     */
+    protected void awaitSchemaAgreement() {
+        long deadline = System.currentTimeMillis() + schemaAgreementTimeoutMillis;
+        while (!session.getCluster().getMetadata().checkSchemaAgreement()) {
+            if (System.currentTimeMillis() >= deadline) {
+                log.warn("Schema agreement not reached after {} ms", schemaAgreementTimeoutMillis);
+                return;
+            }
+            try {
+                Thread.sleep(SCHEMA_AGREEMENT_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for schema agreement", e);
+            }
+        }
+        log.debug("Schema agreement reached");
+    }
+
+    /**
+     * @return the number of statements applied by an earlier attempt of the same file, zero if the migration was never
+     * attempted or the file was edited since.
+     */
+    protected int readProgress(Migration migration) {
+        Row row = session.execute(bind(Query.READ_MIGRATION_PROGRESS, migration.getName())).one();
+        if (row == null || row.isNull(PROGRESS_COLUMN)) {
+            return 0;
+        }
+        if (!migration.getChecksum().equals(row.getString(CHECKSUM_COLUMN))) {
+            log.warn("Migration {} was edited after a failed attempt, applying it from the first statement", migration.getName());
+            session.execute(bind(Query.UPDATE_MIGRATION_PROGRESS, 0, migration.getName()));
+            return 0;
+        }
+        int progress = row.getInt(PROGRESS_COLUMN);
+        log.info("Resuming migration {} after statement {}", migration.getName(), progress);
+        return progress;
+    }
+
+    /**
+     * Reads the fingerprint from the <code>fingerprints</code> table with a plain (non-serial) read. A missing keyspace
+     * or table is treated as no fingerprint, so this can run before {@link #init(Optional)}.
+     *
+     * @return the fingerprint saved by the last complete migration run.
+     */
+    @Override
+    public Optional<String> getFingerprint() {
+        try {
+            Row row = session.execute(bind(Query.READ_FINGERPRINT, MIGRATION_FINGERPRINT_KEY)).one();
+            return Optional.ofNullable(row).map(r -> r.getString(0));
+        } catch (InvalidQueryException e) {
+            log.debug("Could not read migration fingerprint: {}", e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Saves the fingerprint into the <code>fingerprints</code> table.
+     *
+     * @param fingerprint The fingerprint computed by the {@link Migrator}.
+     */
+    @Override
+    public void saveFingerprint(String fingerprint) {
+        session.execute(bind(Query.SAVE_FINGERPRINT, MIGRATION_FINGERPRINT_KEY, fingerprint));
+    }
+
+    /**
+     * Scans the <code>migrations</code> table page by page and keeps the slowest migrations. Migrations applied before
+     * their duration was recorded are ignored.
+     *
+     * @param limit The maximum number of migrations returned
+     * @return the slowest migrations, slowest first.
+     */
+    @Override
+    public List<MigrationExecution> getSlowestMigrations(int limit) {
+        BoundStatement statement = bind(Query.MIGRATION_TIMINGS);
+        statement.setFetchSize(fetchSize);
+
+        Comparator<MigrationExecution> byDuration = Comparator.comparing(MigrationExecution::getDurationMillis);
+        PriorityQueue<MigrationExecution> slowest = new PriorityQueue<>(Math.max(1, limit), byDuration);
+        for (Row row : session.execute(statement)) {
+            if (row.isNull(DURATION_COLUMN)) {
+                continue;
+            }
+            slowest.add(new MigrationExecution(row.getString("name"), row.getString("status"),
+                    row.getTimestamp("created_at"), row.getLong(DURATION_COLUMN),
+                    row.isNull(SCHEMA_AGREEMENT_COLUMN) ? null : row.getLong(SCHEMA_AGREEMENT_COLUMN),
+                    row.getString(COORDINATOR_COLUMN), row.getUUID(TRACE_ID_COLUMN)));
+            if (slowest.size() > limit) {
+                slowest.poll();
+            }
+        }
+
+        List<MigrationExecution> result = new ArrayList<>(slowest);
+        result.sort(byDuration.reversed());
+        return result;
+    }
+
     protected void addMigrationToTable(Migration migration) {
-        session.execute(insertInto(keyspace, MIGRATIONS_TABLE)
-                .value("name", migration.getName())
-                .value("created_at", now())
-                .value("status", MigrationStatus.APPLYING.name())
-                .value("statement", migration.getStatement())
-                .ifNotExists());
+        session.execute(addMigrationStatement(migration));
     }
 
+    /**
+     * @deprecated Override {@link #updateMigrationStatus(Migration, String, Optional, Timing)} instead. Overrides of
+     * this method are still called, but the timing of the migration is then not stored.
+     */
+    @Deprecated
     protected void updateMigrationStatus(Migration migration, String status, Optional<String> reason) {
-        session.execute(update(keyspace, MIGRATIONS_TABLE)
-                .with(set("status", status))
-                .and(set("reason", reason.orElse(null)))
-                .where(eq("name", migration.getName()))
-                .onlyIf(in("status", MigrationStatus.APPLYING.name(), MigrationStatus.FAILED.name())));
+        session.execute(updateMigrationStatusStatement(migration, status, reason));
+    }
+
+    /**
+     * Stores the final status of a migration together with its {@link Timing}. Calls
+     * {@link #updateMigrationStatus(Migration, String, Optional)} instead if a subclass still overrides it.
+     */
+    protected void updateMigrationStatus(Migration migration, String status, Optional<String> reason, Timing timing) {
+        if (legacyStatusUpdate) {
+            updateMigrationStatus(migration, status, reason);
+        } else {
+            session.execute(updateMigrationStatusStatement(migration, status, reason, timing));
+        }
+    }
+
+    /**
+     * The migration row is written without a lightweight transaction: the caller holds the lease and only runs
+     * migrations that were not applied, so a plain upsert is enough.
+     */
+    protected Statement addMigrationStatement(Migration migration) {
+        return bind(Query.ADD_MIGRATION, migration.getName(), MigrationStatus.APPLYING.name(), migration.getStatement(),
+                migration.getChecksum());
+    }
+
+    /**
+     * @deprecated Use {@link #updateMigrationStatusStatement(Migration, String, Optional, Timing)}, this variant stores
+     * an empty timing.
+     */
+    @Deprecated
+    protected Statement updateMigrationStatusStatement(Migration migration, String status, Optional<String> reason) {
+        return updateMigrationStatusStatement(migration, status, reason, new Timing());
+    }
+
+    protected Statement updateMigrationStatusStatement(Migration migration, String status, Optional<String> reason,
+                                                       Timing timing) {
+        return bind(Query.UPDATE_MIGRATION_STATUS, status, reason.orElse(null), timing.getDurationMillis(),
+                timing.getSchemaAgreementMillis(), timing.getCoordinator(), timing.getTraceId(), migration.getName());
+    }
+
+    /**
+     * Binds the values to the prepared statement of the query, preparing it on first use.
+     *
+     * @param query  The bookkeeping query
+     * @param values The values in the order of the bind markers of {@link #buildQuery(Query)}
+     * @return the bound statement with the configured consistency levels.
+     */
+    protected BoundStatement bind(Query query, Object... values) {
+        BoundStatement statement = preparedStatements
+                .computeIfAbsent(query, q -> session.prepare(buildQuery(q)))
+                .bind(values);
+        Optional.ofNullable(consistencyLevels.get(query)).ifPresent(statement::setConsistencyLevel);
+        Optional.ofNullable(serialConsistencyLevels.get(query)).ifPresent(statement::setSerialConsistencyLevel);
+        return statement;
+    }
+
+    /**
+     * Builds the statement that is prepared for a bookkeeping query. Subclasses may override it to change the
+     * queries as long as the bind markers stay in the same order.
+     *
+     * @param query The bookkeeping query
+     * @return the statement with bind markers.
+     */
+    protected RegularStatement buildQuery(Query query) {
+        switch (query) {
+            case READ_LEASE:
+                return select("owner").from(keyspace, LEASES_TABLE).where(eq("name", bindMarker()));
+            case ACQUIRE_LEASE:
+                return insertInto(keyspace, LEASES_TABLE)
+                        .value("name", bindMarker())
+                        .value("owner", bindMarker())
+                        .ifNotExists();
+            case RENEW_LEASE:
+                return update(keyspace, LEASES_TABLE)
+                        .using(ttl(LEASE_TTL_SECONDS))
+                        .with(set("owner", bindMarker()))
+                        .where(eq("name", bindMarker()))
+                        .onlyIf(eq("owner", bindMarker()));
+            case RELEASE_LEASE:
+                return delete().from(keyspace, LEASES_TABLE)
+                        .where(eq("name", bindMarker()))
+                        .onlyIf(eq("owner", bindMarker()));
+            case APPLIED_MIGRATIONS:
+                return select("name", "status").from(keyspace, MIGRATIONS_TABLE);
+            case LOOKUP_MIGRATIONS:
+                return select("name", "status", "checksum").from(keyspace, MIGRATIONS_TABLE)
+                        .where(in("name", bindMarker()));
+            case ADD_MIGRATION:
+                return insertInto(keyspace, MIGRATIONS_TABLE)
+                        .value("name", bindMarker())
+                        .value("created_at", now())
+                        .value("status", bindMarker())
+                        .value("statement", bindMarker())
+                        .value("checksum", bindMarker());
+            case UPDATE_MIGRATION_STATUS:
+                return update(keyspace, MIGRATIONS_TABLE)
+                        .with(set("status", bindMarker()))
+                        .and(set("reason", bindMarker()))
+                        .and(set(DURATION_COLUMN, bindMarker()))
+                        .and(set(SCHEMA_AGREEMENT_COLUMN, bindMarker()))
+                        .and(set(COORDINATOR_COLUMN, bindMarker()))
+                        .and(set(TRACE_ID_COLUMN, bindMarker()))
+                        .where(eq("name", bindMarker()));
+            case READ_MIGRATION_PROGRESS:
+                return select(CHECKSUM_COLUMN, PROGRESS_COLUMN).from(keyspace, MIGRATIONS_TABLE)
+                        .where(eq("name", bindMarker()));
+            case MIGRATION_TIMINGS:
+                return select("name", "status", "created_at", DURATION_COLUMN, SCHEMA_AGREEMENT_COLUMN,
+                        COORDINATOR_COLUMN, TRACE_ID_COLUMN).from(keyspace, MIGRATIONS_TABLE);
+            case UPDATE_MIGRATION_PROGRESS:
+                return update(keyspace, MIGRATIONS_TABLE)
+                        .with(set(PROGRESS_COLUMN, bindMarker()))
+                        .where(eq("name", bindMarker()));
+            case READ_FINGERPRINT:
+                return select("value").from(keyspace, FINGERPRINTS_TABLE).where(eq("name", bindMarker()));
+            case SAVE_FINGERPRINT:
+                return insertInto(keyspace, FINGERPRINTS_TABLE)
+                        .value("name", bindMarker())
+                        .value("value", bindMarker())
+                        .value("updated_at", now());
+            default:
+                throw new IllegalArgumentException("Unknown query " + query);
+        }
     }
 
     protected static Object now() {
         return raw("dateOf(now())");
     }
+
+    /**
+     * @return true if a subclass overrides the method, so an extension point written against it must still be
+     * called.
+     */
+    protected boolean overrides(String name, Class<?>... parameterTypes) {
+        for (Class<?> type = getClass(); type != DefaultMigrationClient.class; type = type.getSuperclass()) {
+            try {
+                type.getDeclaredMethod(name, parameterTypes);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // not declared at this level of the hierarchy
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Time spent applying one migration. The coordinator and the trace are the ones of the slowest statement.
+     */
+    public static class Timing {
+
+        private long statementNanos;
+        private long schemaAgreementNanos;
+        private long slowestStatementNanos = -1;
+        private String coordinator;
+        private UUID traceId;
+
+        public void recordStatement(ExecutionInfo info, long nanos) {
+            statementNanos += nanos;
+            if (nanos > slowestStatementNanos) {
+                slowestStatementNanos = nanos;
+                coordinator = info.getQueriedHost() == null ? null : info.getQueriedHost().getAddress().getHostAddress();
+                traceId = info.getQueryTrace() == null ? null : info.getQueryTrace().getTraceId();
+            }
+        }
+
+        public void recordSchemaAgreement(long nanos) {
+            schemaAgreementNanos += nanos;
+        }
+
+        public long getDurationNanos() {
+            return statementNanos + schemaAgreementNanos;
+        }
+
+        /**
+         * @return the time spent in the statements and in the schema agreement, in milliseconds.
+         */
+        public long getDurationMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(getDurationNanos());
+        }
+
+        public long getSchemaAgreementMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(schemaAgreementNanos);
+        }
+
+        public String getCoordinator() {
+            return coordinator;
+        }
+
+        public UUID getTraceId() {
+            return traceId;
+        }
+    }
 }
@@ -0,0 +1,188 @@
+package com.revinate.henicea.migration;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.revinate.henicea.util.MetricsRecorder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Acquires the migration lease of a {@link MigrationClient}, keeps it alive with a background heartbeat and lets the
+ * clients that lose the race wait for the holder to finish.
+ *
+ * <p>Every attempt that finds the lease held counts as {@link MetricsRecorder#LOCK_CONTENTION} and the time the lease
+ * was held is recorded as {@link MetricsRecorder#LOCK_HOLD}.
+ */
+@Slf4j
+class LeaseManager {
+
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final long EXPIRY_MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(15);
+
+    private final MigrationClient client;
+    private final long heartbeatMillis;
+    private final long waitTimeoutMillis;
+    private final MetricsRecorder metricsRecorder;
+
+    private long expiryMillis = TimeUnit.SECONDS.toMillis(DefaultMigrationClient.LEASE_TTL_SECONDS) - EXPIRY_MARGIN_MILLIS;
+
+    private Consumer<Long> waitFunction = interval -> {
+        try {
+            Thread.sleep(interval);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the migration lease", e);
+        }
+    };
+
+    /**
+     * @param client            The client owning the lease.
+     * @param heartbeatMillis   Interval between lease renewals. Must be shorter than the lease TTL.
+     * @param waitTimeoutMillis How long to wait for another holder to release the lease. Zero does not wait at all.
+     * @param metricsRecorder   Receives the contention and the hold time of the lease.
+     */
+    LeaseManager(MigrationClient client, long heartbeatMillis, long waitTimeoutMillis, MetricsRecorder metricsRecorder) {
+        this.client = client;
+        this.heartbeatMillis = heartbeatMillis;
+        this.waitTimeoutMillis = waitTimeoutMillis;
+        this.metricsRecorder = metricsRecorder;
+    }
+
+    @VisibleForTesting
+    LeaseManager usingWaitFunction(Consumer<Long> waitFunction) {
+        this.waitFunction = waitFunction;
+        return this;
+    }
+
+    @VisibleForTesting
+    LeaseManager usingExpiry(long expiryMillis) {
+        this.expiryMillis = expiryMillis;
+        return this;
+    }
+
+    /**
+     * Tries to acquire the lease. If another client holds it, polls the lease row with a jittered exponential backoff
+     * until it is released and then asks <code>stillNeeded</code> whether there is any work left before trying again.
+     *
+     * @param stillNeeded Re-checks the pending work once the previous holder is done.
+     * @return the acquired lease, or empty if it is held by someone else and there is nothing left to wait for.
+     * @throws IllegalStateException if the lease is not released before the wait timeout.
+     */
+    Optional<Lease> acquire(BooleanSupplier stillNeeded) {
+        long deadline = System.currentTimeMillis() + waitTimeoutMillis;
+        long backoff = INITIAL_BACKOFF_MILLIS;
+
+        while (true) {
+            if (client.acquireLock()) {
+                return Optional.of(new Lease());
+            }
+            metricsRecorder.increment(MetricsRecorder.LOCK_CONTENTION, 1);
+            if (waitTimeoutMillis <= 0) {
+                return Optional.empty();
+            }
+
+            log.debug("Migration lease is held by another client, waiting");
+            do {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IllegalStateException(
+                            String.format("Migration lease was not released after %d ms", waitTimeoutMillis));
+                }
+                waitFunction.accept(Math.min(remaining, jitter(backoff)));
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            } while (client.isLocked());
+
+            if (!stillNeeded.getAsBoolean()) {
+                log.debug("Migration lease was released and there is nothing left to apply");
+                return Optional.empty();
+            }
+        }
+    }
+
+    private static long jitter(long backoff) {
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    /**
+     * An acquired lease. Closing it stops the heartbeat and releases the lease.
+     *
+     * <p>A renewal that fails with an exception is retried at the next heartbeat. The lease counts as lost once the
+     * last successful renewal is older than the TTL minus a safety margin, because the lease row may have expired and
+     * been taken by another client by then.
+     */
+    class Lease implements AutoCloseable {
+
+        private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "henicea-lease-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        private final long acquiredAt = System.nanoTime();
+
+        private volatile long renewedAt = acquiredAt;
+
+        private volatile boolean lost = false;
+
+        private Lease() {
+            heartbeat.scheduleWithFixedDelay(this::renew, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void renew() {
+            try {
+                if (client.renewLock()) {
+                    renewedAt = System.nanoTime();
+                } else {
+                    log.error("Migration lease was lost");
+                    markLost();
+                }
+            } catch (RuntimeException e) {
+                if (isExpired()) {
+                    log.error("Migration lease was not renewed for {} ms and may have expired", expiryMillis, e);
+                    markLost();
+                } else {
+                    log.warn("Could not renew migration lease", e);
+                }
+            }
+        }
+
+        private void markLost() {
+            lost = true;
+            heartbeat.shutdown();
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - renewedAt >= TimeUnit.MILLISECONDS.toNanos(expiryMillis);
+        }
+
+        /**
+         * @return true if a renewal found the lease owned by someone else or if it was not renewed in time.
+         */
+        boolean isLost() {
+            return lost || isExpired();
+        }
+
+        /**
+         * @throws IllegalStateException if the lease was lost, so no further migration should be applied.
+         */
+        void checkHeld() {
+            if (isLost()) {
+                throw new IllegalStateException("Migration lease was lost while applying migrations");
+            }
+        }
+
+        @Override
+        public void close() {
+            heartbeat.shutdownNow();
+            client.releaseLock();
+            metricsRecorder.recordTime(MetricsRecorder.LOCK_HOLD, System.nanoTime() - acquiredAt, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -1,26 +1,113 @@
 package com.revinate.henicea.migration;
 
+import com.google.common.hash.Hashing;
 import com.google.common.io.CharStreams;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 import lombok.ToString;
 import org.springframework.core.io.Resource;
 
 import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-@RequiredArgsConstructor
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A migration file. A file may contain several statements separated by <code>;</code>, see {@link CqlSplitter}. They
+ * are applied in order and the number of statements applied is recorded, so a file that failed halfway resumes after
+ * the last successful statement once it is fixed.
+ */
 @Getter
 @EqualsAndHashCode
 @ToString
 public class Migration {
+    private static final Pattern SCHEMA_CHANGE = Pattern.compile(
+            "^(\\s|--[^\\n]*\\n|//[^\\n]*\\n|/\\*.*?\\*/)*(CREATE|ALTER|DROP)\\b",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern DEPENDS_HEADER = Pattern.compile("^\\s*(--|//)\\s*depends\\s*:(.*)$",
+            Pattern.CASE_INSENSITIVE);
+
     private final String name;
-    private final String statement;
+    private final List<String> statements;
+    /**
+     * SHA-256 of the UTF-8 encoded file, stored with the applied migration to detect later edits.
+     */
+    private final String checksum;
+
+    public Migration(String name, String statement) {
+        this(name, CqlSplitter.split(statement), Hashing.sha256().hashString(statement, UTF_8).toString());
+    }
+
+    Migration(String name, List<String> statements, String checksum) {
+        this.name = name;
+        this.statements = Collections.unmodifiableList(statements);
+        this.checksum = checksum;
+    }
+
+    /**
+     * @return the statements of the migration, separated by <code>;</code>.
+     */
+    public String getStatement() {
+        return String.join(";\n", statements);
+    }
+
+    /**
+     * @return true if a statement is a DDL (<code>CREATE</code>, <code>ALTER</code> or <code>DROP</code>) and
+     * therefore requires schema agreement before it can be relied upon.
+     */
+    public boolean isSchemaChange() {
+        return statements.stream().anyMatch(statement -> SCHEMA_CHANGE.matcher(statement).find());
+    }
+
+    /**
+     * Reads the dependencies declared in the header comments of the migration file, for example:
+     *
+     * <pre>
+     * -- depends: 001_create_users.cql, 002_create_roles.cql
+     * CREATE TABLE user_roles (...)
+     * </pre>
+     *
+     * Only the comment lines before the statement are considered.
+     *
+     * @return the names of the migrations this one depends on, or an empty set if none were declared.
+     */
+    public Set<String> getDependencies() {
+        Set<String> dependencies = new LinkedHashSet<>();
+        for (String line : getStatement().split("\\r?\\n")) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            if (!trimmed.startsWith("--") && !trimmed.startsWith("//")) {
+                break;
+            }
+            Matcher matcher = DEPENDS_HEADER.matcher(trimmed);
+            if (matcher.matches()) {
+                Arrays.stream(matcher.group(2).split(","))
+                        .map(String::trim)
+                        .filter(name -> !name.isEmpty())
+                        .forEach(dependencies::add);
+            }
+        }
+        return dependencies;
+    }
 
+    /**
+     * Reads a migration file as UTF-8.
+     *
+     * @deprecated failures are swallowed, use {@link MigrationLoader} instead.
+     */
+    @Deprecated
     public static Optional<Migration> fromResource(Resource resource) {
         try {
-            String statement = CharStreams.toString(new InputStreamReader(resource.getInputStream()));
+            String statement = CharStreams.toString(new InputStreamReader(resource.getInputStream(), UTF_8));
             return Optional.of(new Migration(resource.getFilename(), statement));
         } catch (Exception e) {
             return Optional.empty();
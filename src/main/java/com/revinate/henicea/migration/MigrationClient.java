@@ -1,7 +1,15 @@
 package com.revinate.henicea.migration;
 
+import com.revinate.henicea.util.MetricsRecorder;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.SortedMap;
 import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.function.Consumer;
 
 public interface MigrationClient {
 
@@ -11,7 +19,113 @@ public interface MigrationClient {
 
     void releaseLock();
 
+    /**
+     * Extends the lease acquired by {@link #acquireLock()} while migrations are running.
+     *
+     * @return false if the lease is no longer owned by this client.
+     */
+    default boolean renewLock() {
+        return true;
+    }
+
+    /**
+     * Checks with a cheap read if any client currently holds the lease.
+     *
+     * @return true if the lease is held.
+     */
+    default boolean isLocked() {
+        return false;
+    }
+
     SortedSet<String> getAppliedMigrations();
 
+    /**
+     * Answers which of the candidates were already applied, without reading the whole migration history.
+     *
+     * @param candidates The names of the migrations to check.
+     * @return a sorted set with the candidates already applied.
+     */
+    default SortedSet<String> getAppliedMigrations(Collection<String> candidates) {
+        SortedSet<String> applied = getAppliedMigrations();
+        applied.retainAll(candidates);
+        return applied;
+    }
+
+    /**
+     * Like {@link #getAppliedMigrations(Collection)} but also returns the checksum recorded when each migration was
+     * applied (see {@code Migration.getChecksum()}).
+     *
+     * @param candidates The names of the migrations to check.
+     * @return the applied candidates mapped to their checksum, or to null if no checksum was recorded.
+     */
+    default SortedMap<String, String> getAppliedChecksums(Collection<String> candidates) {
+        SortedMap<String, String> checksums = new TreeMap<>();
+        getAppliedMigrations(candidates).forEach(name -> checksums.put(name, null));
+        return checksums;
+    }
+
     void runMigration(Migration migration);
+
+    /**
+     * Runs the pending migrations in order and stops on the first failure. Clients may override this to pipeline the
+     * statements.
+     *
+     * @param migrations The pending migrations, already sorted.
+     */
+    default void runMigrations(List<Migration> migrations) {
+        runMigrations(migrations, migration -> {
+        });
+    }
+
+    /**
+     * Like {@link #runMigrations(List)} but calls <code>beforeEach</code> right before each migration is started. The
+     * {@link Migrator} uses it to check that it still holds the lease; an exception thrown by it stops the run and
+     * the migration is not recorded.
+     *
+     * @param migrations The pending migrations, already sorted.
+     * @param beforeEach Called with every migration before it is started.
+     */
+    default void runMigrations(List<Migration> migrations, Consumer<Migration> beforeEach) {
+        migrations.forEach(migration -> {
+            beforeEach.accept(migration);
+            runMigration(migration);
+        });
+    }
+
+    /**
+     * Reads the fingerprint of the migration set that was last applied completely. This is meant to be a cheap,
+     * non-serial read that works even before {@link #init(Optional)} was called.
+     *
+     * @return the stored fingerprint or empty if there is none or it could not be read.
+     */
+    default Optional<String> getFingerprint() {
+        return Optional.empty();
+    }
+
+    /**
+     * Stores the fingerprint of a migration set after all of its migrations were applied.
+     *
+     * @param fingerprint The fingerprint computed by the {@link Migrator}.
+     */
+    default void saveFingerprint(String fingerprint) {
+    }
+
+    /**
+     * Lists the migrations that took the longest to apply, to find out which ones make deployments slow.
+     *
+     * @param limit The maximum number of migrations returned
+     * @return the slowest migrations, slowest first, or an empty list if the client does not record timings.
+     */
+    default List<MigrationExecution> getSlowestMigrations(int limit) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Called by the {@link Migrator} with its recorder before the client is used. Clients that do not record
+     * metrics ignore it.
+     *
+     * @param metricsRecorder Receives the time of each migration and the failures
+     */
+    default void setMetricsRecorder(MetricsRecorder metricsRecorder) {
+    }
 }
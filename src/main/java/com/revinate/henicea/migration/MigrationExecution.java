@@ -0,0 +1,40 @@
+package com.revinate.henicea.migration;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Timing of an applied migration as stored in the <code>migrations</code> table. Returned by
+ * {@link MigrationClient#getSlowestMigrations(int)}.
+ */
+@RequiredArgsConstructor
+@Getter
+@EqualsAndHashCode
+@ToString
+public class MigrationExecution {
+
+    private final String name;
+    private final String status;
+    private final Date createdAt;
+    /**
+     * Time spent in the statements of the migration and in the schema agreement.
+     */
+    private final long durationMillis;
+    /**
+     * Part of the duration spent waiting for schema agreement after the driver gave up, null if not recorded.
+     */
+    private final Long schemaAgreementMillis;
+    /**
+     * Address of the coordinator of the slowest statement.
+     */
+    private final String coordinator;
+    /**
+     * Id of the trace of the slowest statement in <code>system_traces.sessions</code>, null unless tracing was enabled.
+     */
+    private final UUID traceId;
+}
@@ -0,0 +1,163 @@
+package com.revinate.henicea.migration;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Dependency graph of the pending migrations.
+ *
+ * <p>A migration that declares dependencies (see {@link Migration#getDependencies()}) depends only on them. A
+ * migration without a declaration depends on every migration sorted before it, so a set without any declaration
+ * keeps the plain sorted order. Dependencies on migrations that were already applied are considered satisfied.
+ */
+@Slf4j
+class MigrationGraph {
+
+    private final Map<String, Migration> migrations = new LinkedHashMap<>();
+    private final Map<String, Integer> positions = new HashMap<>();
+    private final Map<String, Set<String>> dependencies = new HashMap<>();
+    private final Map<String, List<String>> dependents = new HashMap<>();
+
+    /**
+     * @param pending The pending migrations, already sorted.
+     * @param applied The names of the migrations already applied.
+     */
+    MigrationGraph(List<Migration> pending, Set<String> applied) {
+        pending.forEach(migration -> {
+            migrations.put(migration.getName(), migration);
+            positions.put(migration.getName(), positions.size());
+        });
+
+        Optional<String> barrier = Optional.empty();
+        List<String> sinceBarrier = new ArrayList<>();
+
+        for (Migration migration : pending) {
+            Set<String> declared = migration.getDependencies();
+            Set<String> edges = new LinkedHashSet<>();
+
+            if (declared.isEmpty()) {
+                barrier.ifPresent(edges::add);
+                edges.addAll(sinceBarrier);
+                barrier = Optional.of(migration.getName());
+                sinceBarrier.clear();
+            } else {
+                for (String dependency : declared) {
+                    if (migrations.containsKey(dependency)) {
+                        edges.add(dependency);
+                    } else if (!applied.contains(dependency)) {
+                        throw new IllegalStateException(String.format(
+                                "Migration %s depends on unknown migration %s", migration.getName(), dependency));
+                    }
+                }
+                sinceBarrier.add(migration.getName());
+            }
+
+            dependencies.put(migration.getName(), edges);
+            edges.forEach(edge -> dependents.computeIfAbsent(edge, k -> new ArrayList<>()).add(migration.getName()));
+        }
+
+        if (topologicalOrder().size() != migrations.size()) {
+            throw new IllegalStateException("Cyclic dependency between migrations");
+        }
+    }
+
+    /**
+     * @return the migrations in an order that respects the dependencies. Ties are broken by the original sort order.
+     */
+    List<Migration> topologicalOrder() {
+        Map<String, Integer> inDegree = inDegrees();
+        Queue<String> ready = new PriorityQueue<>(Comparator.comparing(positions::get));
+        inDegree.forEach((name, degree) -> {
+            if (degree == 0) {
+                ready.add(name);
+            }
+        });
+
+        List<Migration> order = new ArrayList<>();
+        while (!ready.isEmpty()) {
+            String name = ready.poll();
+            order.add(migrations.get(name));
+            for (String dependent : dependents.getOrDefault(name, Collections.emptyList())) {
+                if (inDegree.merge(dependent, -1, Integer::sum) == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Runs the migrations on the executor as soon as their dependencies are done. After the first failure no new
+     * migration is scheduled; the ones in flight are awaited and then the failure is rethrown.
+     *
+     * @param executor Executor that bounds the parallelism.
+     * @param runner   The function that applies one migration.
+     */
+    void run(Executor executor, Consumer<Migration> runner) {
+        CompletionService<String> completionService = new ExecutorCompletionService<>(executor);
+        Map<String, Integer> inDegree = inDegrees();
+        RuntimeException failure = null;
+        int inFlight = 0;
+
+        for (Map.Entry<String, Integer> entry : inDegree.entrySet()) {
+            if (entry.getValue() == 0) {
+                submit(completionService, entry.getKey(), runner);
+                inFlight++;
+            }
+        }
+
+        while (inFlight > 0) {
+            String done;
+            try {
+                Future<String> future = completionService.take();
+                inFlight--;
+                done = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while applying migrations", e);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause()
+                            : new IllegalStateException(e.getCause());
+                }
+                continue;
+            }
+
+            if (failure != null) {
+                continue;
+            }
+            for (String dependent : dependents.getOrDefault(done, Collections.emptyList())) {
+                if (inDegree.merge(dependent, -1, Integer::sum) == 0) {
+                    submit(completionService, dependent, runner);
+                    inFlight++;
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void submit(CompletionService<String> completionService, String name, Consumer<Migration> runner) {
+        log.debug("Scheduling migration {}", name);
+        completionService.submit(() -> {
+            runner.accept(migrations.get(name));
+            return name;
+        });
+    }
+
+    private Map<String, Integer> inDegrees() {
+        Map<String, Integer> inDegree = new LinkedHashMap<>();
+        migrations.keySet().forEach(name -> inDegree.put(name, dependencies.get(name).size()));
+        return inDegree;
+    }
+}
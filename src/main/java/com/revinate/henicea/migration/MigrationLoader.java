@@ -0,0 +1,92 @@
+package com.revinate.henicea.migration;
+
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Reads migration files concurrently as UTF-8 and computes their checksum from the bytes read. Unlike
+ * {@link Migration#fromResource(Resource)} a file that cannot be read or is not valid UTF-8 fails the load instead of
+ * being skipped, since skipping a migration silently would change the schema being applied.
+ */
+public class MigrationLoader {
+
+    private final Comparator<Resource> resourceComparator;
+    private final int parallelism;
+
+    /**
+     * @param resourceComparator The order of the migrations
+     * @param parallelism        Maximum number of files read at the same time
+     */
+    public MigrationLoader(Comparator<Resource> resourceComparator, int parallelism) {
+        this.resourceComparator = resourceComparator;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param resources The migration files. Resources that do not exist are ignored.
+     * @return the migrations sorted by the resource comparator.
+     * @throws IllegalStateException if a migration file cannot be read.
+     */
+    public List<Migration> load(Resource... resources) {
+        List<Resource> sorted = Stream.of(resources)
+                .filter(Resource::exists)
+                .sorted(resourceComparator)
+                .collect(toList());
+        if (sorted.size() <= 1 || parallelism <= 1) {
+            return sorted.stream().map(MigrationLoader::read).collect(toList());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, sorted.size()));
+        try {
+            List<Future<Migration>> futures = sorted.stream()
+                    .map(resource -> executor.submit(() -> read(resource)))
+                    .collect(toList());
+            return futures.stream().map(MigrationLoader::await).collect(toList());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Splits the file into statements while it is read and hashed, without loading it as a whole.
+     */
+    static Migration read(Resource resource) {
+        try (HashingInputStream input = new HashingInputStream(Hashing.sha256(), resource.getInputStream());
+             Reader reader = new InputStreamReader(input, UTF_8.newDecoder())) {
+            List<String> statements = CqlSplitter.split(reader);
+            return new Migration(resource.getFilename(), statements, input.hash().toString());
+        } catch (IOException | UncheckedIOException e) {
+            throw new IllegalStateException("Could not read migration " + resource.getFilename(), e);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Could not parse migration " + resource.getFilename(), e);
+        }
+    }
+
+    private static Migration await(Future<Migration> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading migrations", e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+}
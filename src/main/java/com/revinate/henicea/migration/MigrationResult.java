@@ -0,0 +1,65 @@
+package com.revinate.henicea.migration;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+import java.util.Optional;
+
+/**
+ * Outcome of migrating one keyspace. Returned per keyspace by
+ * {@link Migrator#execute(com.datastax.driver.core.Cluster, java.util.Collection, org.springframework.core.io.Resource...)}.
+ */
+@RequiredArgsConstructor
+@Getter
+@EqualsAndHashCode
+@ToString
+public class MigrationResult {
+
+    public enum Status {
+        /**
+         * Nothing to apply, either by fingerprint or because every migration was already applied.
+         */
+        UP_TO_DATE,
+        /**
+         * At least one migration was applied.
+         */
+        APPLIED,
+        /**
+         * Another client held the lease.
+         */
+        LOCKED,
+        /**
+         * The migration failed, see {@link MigrationResult#getError()}.
+         */
+        FAILED
+    }
+
+    private final String keyspace;
+    private final Status status;
+    private final int appliedMigrations;
+    private final Throwable error;
+
+    public Optional<Throwable> getError() {
+        return Optional.ofNullable(error);
+    }
+
+    static MigrationResult upToDate(String keyspace) {
+        return new MigrationResult(keyspace, Status.UP_TO_DATE, 0, null);
+    }
+
+    static MigrationResult applied(String keyspace, int appliedMigrations) {
+        return appliedMigrations == 0
+                ? upToDate(keyspace)
+                : new MigrationResult(keyspace, Status.APPLIED, appliedMigrations, null);
+    }
+
+    static MigrationResult locked(String keyspace) {
+        return new MigrationResult(keyspace, Status.LOCKED, 0, null);
+    }
+
+    static MigrationResult failed(String keyspace, Throwable error) {
+        return new MigrationResult(keyspace, Status.FAILED, 0, error);
+    }
+}
@@ -2,6 +2,12 @@ package com.revinate.henicea.migration;
 
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.Session;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.revinate.henicea.util.MetricsRecorder;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.core.io.Resource;
@@ -9,11 +15,19 @@ import org.springframework.core.io.Resource;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
-import java.util.function.Consumer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
-import java.util.stream.Stream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Comparator.comparing;
+import static java.util.stream.Collectors.toList;
 
 /**
  * Main class to execute cassandra migrations. This class does not depend on any Spring bean or other Spring runtime
@@ -68,12 +82,45 @@ import static java.util.Comparator.comparing;
  * useful for local development. If you are using Docker you do not need much more setup. For production you probably
  * want to have your keyspace created upfront with the right strategy, security and replication factory. Let this
  * library deal with tables and types only.
+ *
+ * <p>After a complete run the migrator stores a fingerprint of the migration set. On the next execution the
+ * fingerprint is compared with a single non-serial read and, if it matches, the migrator returns without running any
+ * DDL or taking the lease. Deleting the row from the <code>fingerprints</code> table forces a full check.
+ *
+ * <p>The migration files are read and hashed in the background while the session connects and the stored
+ * fingerprint is read. When no fingerprint is stored yet the schema of the migrator is created in the meantime too.
+ *
+ * <p>The checksum of every migration is stored when it is applied. A full check fails with an
+ * {@link IllegalStateException} before anything is executed if a migration file was edited after it was applied.
+ *
+ * <p>Set a {@link MetricsRecorder} to time the executions, the initialization, the lease and each migration, and to
+ * count the contention on the lease, the failed and the skipped migrations, for example
+ * <code>migrator.setMetricsRecorder(DropwizardMetricsRecorder.of(cluster))</code>.
  */
 @Slf4j
 public class Migrator {
 
     private Optional<Integer> replicationFactor = Optional.empty();
 
+    /**
+     * Maximum number of migrations applied at the same time. Migrations only run concurrently when they declare
+     * dependencies (see {@link Migration#getDependencies()}) that make them independent of each other. The default
+     * of 1 applies them one by one.
+     */
+    @Setter
+    private int parallelism = 1;
+
+    private long leaseHeartbeatMillis = TimeUnit.SECONDS.toMillis(60);
+
+    private long lockWaitTimeoutMillis = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Number of keyspaces migrated at the same time by
+     * {@link #execute(Cluster, Collection, Resource...)}. Each worker uses its own session.
+     */
+    @Setter
+    private int keyspaceParallelism = 4;
+
     @Setter
     private MigrationClientFactory factory = DefaultMigrationClient::new;
 
@@ -85,6 +132,19 @@ public class Migrator {
     @Setter
     private Comparator<Resource> resourceComparator = comparing(Resource::getFilename);
 
+    /**
+     * Maximum number of migration files read at the same time. Defaults to 4.
+     */
+    @Setter
+    private int loaderParallelism = 4;
+
+    /**
+     * Receives the metrics of the migrator and of its clients, see {@link MetricsRecorder} for the names. Records
+     * nothing by default.
+     */
+    @Setter
+    private MetricsRecorder metricsRecorder = MetricsRecorder.NONE;
+
     /**
      * Main method to execute the migration.
      *
@@ -94,17 +154,99 @@ public class Migrator {
      *                 {@link org.springframework.core.io.support.ResourcePatternResolver} to load the migrations files.
      */
     public void execute(Cluster cluster, String keyspace, Resource... resource) {
-        try (Session session = cluster.connect()) {
-            MigrationClient client = factory.newClient(session, keyspace,
-                    getHostname().orElseGet(() -> UUID.randomUUID().toString()));
+        CompletableFuture<List<Migration>> migrations = loadMigrations(resource);
+        CompletableFuture<String> fingerprint = migrations.thenApply(Migrator::fingerprintOf);
 
-            log.debug("Initializing cassandra schema");
-            client.init(replicationFactor);
+        metricsRecorder.time(MetricsRecorder.EXECUTE, () -> {
+            try (Session session = cluster.connect()) {
+                return migrate(session, keyspace, migrations, fingerprint, getUniqueId());
+            }
+        });
+    }
 
-            log.debug("Getting lease to apply migrations");
-            runWithLock(client, (appliedMigrations) -> parseMigrations(resource)
-                    .filter(wasAppliedWith(appliedMigrations).negate())
-                    .forEach(client::runMigration));
+    /**
+     * Executes the migration with a session the application already opened, for example the session bean that is
+     * used afterwards, instead of opening and closing a connection pool just for the migration. The session is not
+     * closed.
+     *
+     * <p>Migration statements usually do not qualify the keyspace, so the session is switched to
+     * <code>keyspace</code> when a migration is applied. Do not share it with other work while the migration runs.
+     *
+     * @param session  An open {@link Session}
+     * @param keyspace Cassandra' keyspace/column family
+     * @param resource An array of Spring {@link Resource} of migration files.
+     * @return the result of the migration.
+     */
+    public MigrationResult execute(Session session, String keyspace, Resource... resource) {
+        CompletableFuture<List<Migration>> migrations = loadMigrations(resource);
+        return metricsRecorder.time(MetricsRecorder.EXECUTE,
+                () -> migrate(session, keyspace, migrations, migrations.thenApply(Migrator::fingerprintOf), getUniqueId()));
+    }
+
+    /**
+     * Migrates several keyspaces with the same migration set, for example one keyspace per tenant. The resources are
+     * read and hashed once and the keyspaces are migrated concurrently by {@code keyspaceParallelism}
+     * workers, each one holding the lease of its own keyspace. A failure in one keyspace does not stop the others.
+     *
+     * <p>Migration statements usually do not qualify the keyspace, so every worker opens one session and switches it
+     * to the keyspace being migrated. At most {@code keyspaceParallelism} sessions are opened.
+     *
+     * @param cluster   A properly initialized {@link Cluster}
+     * @param keyspaces The keyspaces to migrate
+     * @param resource  An array of Spring {@link Resource} of migration files.
+     * @return the result of each keyspace, in the iteration order of <code>keyspaces</code>.
+     */
+    public Map<String, MigrationResult> execute(Cluster cluster, Collection<String> keyspaces, Resource... resource) {
+        return metricsRecorder.time(MetricsRecorder.EXECUTE, () -> executeAll(cluster, keyspaces, resource));
+    }
+
+    private Map<String, MigrationResult> executeAll(Cluster cluster, Collection<String> keyspaces, Resource... resource) {
+        CompletableFuture<List<Migration>> migrations = loadMigrations(resource);
+        CompletableFuture<String> fingerprint = migrations.thenApply(Migrator::fingerprintOf);
+        String uniqueId = getUniqueId();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(keyspaceParallelism, keyspaces.size())));
+        BlockingQueue<Session> sessions = new LinkedBlockingQueue<>();
+        try {
+            Map<String, Future<MigrationResult>> futures = new LinkedHashMap<>();
+            keyspaces.forEach(keyspace -> futures.put(keyspace, executor.submit(() -> {
+                Session session = sessions.poll();
+                try {
+                    if (session == null) {
+                        session = cluster.connect();
+                    }
+                    return migrate(session, keyspace, migrations, fingerprint, uniqueId);
+                } catch (RuntimeException e) {
+                    log.error("Error migrating keyspace {}", keyspace, e);
+                    return MigrationResult.failed(keyspace, e);
+                } finally {
+                    if (session != null) {
+                        sessions.offer(session);
+                    }
+                }
+            })));
+
+            // a migration file that cannot be read fails the whole execution, not every keyspace
+            await(migrations);
+            Map<String, MigrationResult> results = new LinkedHashMap<>();
+            futures.forEach((keyspace, future) -> results.put(keyspace, Futures.getUnchecked(future)));
+            return results;
+        } finally {
+            executor.shutdown();
+            // the workers hand their sessions back when they finish, close them only afterwards
+            awaitTermination(executor);
+            sessions.forEach(Session::close);
+        }
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.debug("Waiting for keyspace migrations to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
         }
     }
 
@@ -118,28 +260,193 @@ public class Migrator {
         this.replicationFactor = Optional.ofNullable(replicationFactor);
     }
 
-    private Stream<Migration> parseMigrations(Resource... resource) {
-        return Stream.of(resource)
-                .filter(Resource::exists)
-                .sorted(resourceComparator)
-                .map(Migration::fromResource)
-                .filter(Optional::isPresent)
-                .map(Optional::get);
-    }
-
-    private void runWithLock(MigrationClient client, Consumer<SortedSet<String>> consumer) {
-        if (client.acquireLock()) {
-            try {
-                consumer.accept(client.getAppliedMigrations());
-            } catch (Exception e) {
-                log.error("Error applying migrations", e);
-                throw e;
-            } finally {
-                client.releaseLock();
+    /**
+     * Sets how often the lease is renewed while migrations run. It must be shorter than the 180 seconds TTL of the
+     * <code>leases</code> table. Defaults to 60 seconds.
+     *
+     * @param interval The interval between renewals
+     * @param timeUnit The unit of <code>interval</code>
+     */
+    public void setLeaseHeartbeatInterval(long interval, TimeUnit timeUnit) {
+        this.leaseHeartbeatMillis = timeUnit.toMillis(interval);
+    }
+
+    /**
+     * Sets how long an instance that did not get the lease waits for the holder to finish before failing. After the
+     * lease is released the applied migrations are checked again and the lease is only taken if something is still
+     * pending. Zero disables the wait and the instance continues without migrating. Defaults to 5 minutes.
+     *
+     * @param timeout  The maximum time to wait for the lease
+     * @param timeUnit The unit of <code>timeout</code>
+     */
+    public void setLockWaitTimeout(long timeout, TimeUnit timeUnit) {
+        this.lockWaitTimeoutMillis = timeUnit.toMillis(timeout);
+    }
+
+    @VisibleForTesting
+    List<Migration> parseMigrations(Resource... resource) {
+        return new MigrationLoader(resourceComparator, loaderParallelism).load(resource);
+    }
+
+    /**
+     * Reads the migration files in the background, so they are loaded and hashed while the session connects and the
+     * stored fingerprint is read.
+     */
+    private CompletableFuture<List<Migration>> loadMigrations(Resource... resource) {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            return CompletableFuture.supplyAsync(() -> parseMigrations(resource), executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private MigrationResult migrate(Session session, String keyspace, CompletableFuture<List<Migration>> loading,
+                                    CompletableFuture<String> fingerprinting, String uniqueId) {
+        MigrationClient client = factory.newClient(session, keyspace, uniqueId);
+        client.setMetricsRecorder(metricsRecorder);
+
+        Optional<String> storedFingerprint = client.getFingerprint();
+        boolean initialized = false;
+        if (!storedFingerprint.isPresent()) {
+            // first run, the schema is needed whatever the migration files contain
+            initialize(client);
+            initialized = true;
+        }
+
+        List<Migration> migrations = await(loading);
+        String fingerprint = await(fingerprinting);
+        if (storedFingerprint.filter(fingerprint::equals).isPresent()) {
+            log.debug("Migrations fingerprint {} of keyspace {} is up to date, skipping migrations", fingerprint, keyspace);
+            metricsRecorder.increment(MetricsRecorder.MIGRATION_SKIPPED, migrations.size());
+            return MigrationResult.upToDate(keyspace);
+        }
+
+        if (!initialized) {
+            initialize(client);
+        }
+
+        Set<String> candidates = candidatesOf(migrations);
+        Map<String, String> appliedChecksums = client.getAppliedChecksums(candidates);
+        verifyChecksums(keyspace, migrations, appliedChecksums);
+        if (!hasPending(migrations, appliedChecksums.keySet())) {
+            log.debug("All migrations of keyspace {} are applied, skipping the lease", keyspace);
+            metricsRecorder.increment(MetricsRecorder.MIGRATION_SKIPPED, migrations.size());
+            client.saveFingerprint(fingerprint);
+            return MigrationResult.upToDate(keyspace);
+        }
+
+        log.debug("Getting lease to apply migrations");
+        LeaseManager leaseManager = new LeaseManager(client, leaseHeartbeatMillis, lockWaitTimeoutMillis, metricsRecorder);
+        Optional<LeaseManager.Lease> acquired = metricsRecorder.time(MetricsRecorder.LOCK_ACQUISITION,
+                () -> leaseManager.acquire(() -> hasPending(migrations, client.getAppliedMigrations(candidates))));
+        if (!acquired.isPresent()) {
+            if (lockWaitTimeoutMillis > 0) {
+                // the holder applied them
+                metricsRecorder.increment(MetricsRecorder.MIGRATION_SKIPPED, migrations.size());
             }
+            return lockWaitTimeoutMillis > 0 ? MigrationResult.upToDate(keyspace) : MigrationResult.locked(keyspace);
+        }
+
+        try (LeaseManager.Lease lease = acquired.get()) {
+            SortedSet<String> appliedMigrations = client.getAppliedMigrations(candidates);
+            List<Migration> pending = migrations.stream()
+                    .filter(wasAppliedWith(appliedMigrations).negate())
+                    .collect(toList());
+            metricsRecorder.increment(MetricsRecorder.MIGRATION_SKIPPED, migrations.size() - pending.size());
+            applyMigrations(client, new MigrationGraph(pending, appliedMigrations), lease);
+            lease.checkHeld();
+            client.saveFingerprint(fingerprint);
+            return MigrationResult.applied(keyspace, pending.size());
+        } catch (RuntimeException e) {
+            log.error("Error applying migrations", e);
+            throw e;
+        }
+    }
+
+    private void initialize(MigrationClient client) {
+        log.debug("Initializing cassandra schema");
+        metricsRecorder.time(MetricsRecorder.INIT, () -> {
+            client.init(replicationFactor);
+            return null;
+        });
+    }
+
+    private void applyMigrations(MigrationClient client, MigrationGraph graph, LeaseManager.Lease lease) {
+        if (parallelism <= 1) {
+            client.runMigrations(graph.topologicalOrder(), migration -> lease.checkHeld());
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            graph.run(executor, migration -> {
+                lease.checkHeld();
+                client.runMigration(migration);
+            });
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String fingerprintOf(List<Migration> migrations) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        migrations.forEach(migration -> hasher
+                .putString(migration.getName(), UTF_8)
+                .putByte((byte) 0)
+                .putString(migration.getChecksum(), UTF_8)
+                .putByte((byte) 0));
+        return hasher.hash().toString();
+    }
+
+    /**
+     * @return the names of the migrations and of their declared dependencies, the only history entries the migrator
+     * needs to look up.
+     */
+    private static Set<String> candidatesOf(List<Migration> migrations) {
+        Set<String> candidates = new LinkedHashSet<>();
+        migrations.forEach(migration -> {
+            candidates.add(migration.getName());
+            candidates.addAll(migration.getDependencies());
+        });
+        return candidates;
+    }
+
+    /**
+     * @throws IllegalStateException if an applied migration was edited afterwards. Migrations applied before checksums
+     *                               were recorded are not verified.
+     */
+    private static void verifyChecksums(String keyspace, List<Migration> migrations, Map<String, String> appliedChecksums) {
+        List<String> modified = migrations.stream()
+                .filter(migration -> {
+                    String checksum = appliedChecksums.get(migration.getName());
+                    return checksum != null && !checksum.equals(migration.getChecksum());
+                })
+                .map(Migration::getName)
+                .collect(toList());
+        if (!modified.isEmpty()) {
+            throw new IllegalStateException(
+                    String.format("Migrations %s of keyspace %s were modified after they were applied", modified, keyspace));
         }
     }
 
+    private static boolean hasPending(List<Migration> migrations, Set<String> appliedMigrations) {
+        return migrations.stream().anyMatch(migration -> !appliedMigrations.contains(migration.getName()));
+    }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwables.propagateIfPossible(e.getCause());
+            throw e;
+        }
+    }
+
+    private static String getUniqueId() {
+        return getHostname().orElseGet(() -> UUID.randomUUID().toString());
+    }
+
     private static Optional<String> getHostname() {
         try {
             return Optional.ofNullable(InetAddress.getLocalHost().getHostName());
@@ -148,7 +455,8 @@ public class Migrator {
         }
     }
 
-    private static Predicate<Migration> wasAppliedWith(Set<String> appliedMigrations) {
+    @VisibleForTesting
+    static Predicate<Migration> wasAppliedWith(Set<String> appliedMigrations) {
         return migration -> {
             if (appliedMigrations.contains(migration.getName())) {
                 log.debug("Skipping applied migration {}", migration.getName());
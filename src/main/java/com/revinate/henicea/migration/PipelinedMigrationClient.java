@@ -0,0 +1,166 @@
+package com.revinate.henicea.migration;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link DefaultMigrationClient} that runs the pending migrations with {@link Session#executeAsync(String)}.
+ *
+ * <p>The bookkeeping insert of each migration is sent together with its statement and the status update is not
+ * waited for before the next statement starts. Consecutive DDL statements form a group and the schema agreement is
+ * checked once per group, right before the first non DDL statement and at the end of the run. A DDL statement that
+ * names a table, type, view or index created or altered earlier in the group, for example an index on a table created
+ * just before, starts a new group: the agreement is awaited first, so its coordinator knows the object. Objects are
+ * matched by name only, a dependency the statement does not spell out (a function used by an aggregate created under
+ * another name, for instance) is not detected.
+ *
+ * <p>Migration files with several statements are not pipelined, their statements run one by one as in the
+ * {@link DefaultMigrationClient}. Neither are the migrations of a subclass that overrides
+ * {@link #addMigrationToTable(Migration)} or one of the <code>updateMigrationStatus</code> methods, so these
+ * extension points are still called.
+ *
+ * <p>The recorded duration of a pipelined migration runs from sending its statement to the response. The schema
+ * agreement of a DDL group is not part of any migration, so <code>schema_agreement_ms</code> is zero.
+ *
+ * <p>The driver also waits for schema agreement after every DDL response, which makes every statement of a group
+ * wait as well. Building the cluster used for migrations with
+ * <code>Cluster.builder().withMaxSchemaAgreementWaitSeconds(0)</code> removes that wait, but then only the dependency
+ * check above protects the statements of a group from a coordinator that does not have the new schema yet.
+ *
+ * <pre>
+ * migrator.setFactory(PipelinedMigrationClient::new);
+ * </pre>
+ */
+@Slf4j
+public class PipelinedMigrationClient extends DefaultMigrationClient {
+
+    private static final Pattern SCHEMA_OBJECT = Pattern.compile(
+            "\\b(?:CREATE|ALTER)\\s+(?:CUSTOM\\s+)?(?:TABLE|COLUMNFAMILY|TYPE|MATERIALIZED\\s+VIEW|INDEX)\\s+"
+                    + "(?:IF\\s+NOT\\s+EXISTS\\s+)?(?!ON\\b)([\\w.\"]+)",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern IDENTIFIER = Pattern.compile("\\w+");
+
+    private final boolean customBookkeeping = overrides("addMigrationToTable", Migration.class)
+            || overrides("updateMigrationStatus", Migration.class, String.class, Optional.class)
+            || overrides("updateMigrationStatus", Migration.class, String.class, Optional.class, Timing.class);
+
+    public PipelinedMigrationClient(Session session, String keyspace, String uniqueId) {
+        super(session, keyspace, uniqueId);
+    }
+
+    /**
+     * Runs the migrations in order, overlapping the bookkeeping writes with the statements. Every migration is still
+     * recorded as APPLIED or FAILED and the run stops on the first failure.
+     *
+     * @param migrations The pending migrations, already sorted.
+     * @param beforeEach Called with every migration before its statement is sent.
+     */
+    @Override
+    public void runMigrations(List<Migration> migrations, Consumer<Migration> beforeEach) {
+        useKeyspace();
+        List<ResultSetFuture> bookkeeping = new ArrayList<>();
+        boolean pendingSchemaChange = false;
+        Set<String> changedObjects = new HashSet<>();
+
+        try {
+            for (Migration migration : migrations) {
+                beforeEach.accept(migration);
+                if (customBookkeeping || migration.getStatements().size() != 1) {
+                    // statements of the same file depend on each other, they run one by one with their progress, and
+                    // overridden bookkeeping methods are only called by runMigration
+                    if (pendingSchemaChange) {
+                        awaitSchemaAgreement();
+                        changedObjects.clear();
+                    }
+                    runMigration(migration);
+                    pendingSchemaChange = migration.isSchemaChange();
+                    changedObjects.addAll(schemaObjectsOf(migration));
+                    continue;
+                }
+                if (pendingSchemaChange && (!migration.isSchemaChange() || references(migration, changedObjects))) {
+                    awaitSchemaAgreement();
+                    pendingSchemaChange = false;
+                    changedObjects.clear();
+                }
+                changedObjects.addAll(schemaObjectsOf(migration));
+
+                ResultSetFuture registration = session.executeAsync(addMigrationStatement(migration));
+                long start = nanoTime();
+                ResultSetFuture execution = executeMigrationStatementAsync(migration.getStatements().get(0));
+
+                MigrationStatus status;
+                Timing timing = new Timing();
+                try {
+                    registration.getUninterruptibly();
+                    ResultSet resultSet = execution.getUninterruptibly();
+                    timing.recordStatement(resultSet.getExecutionInfo(), nanoTime() - start);
+                    status = resultSet.wasApplied() ? MigrationStatus.APPLIED : MigrationStatus.FAILED;
+                } catch (Exception e) {
+                    log.error("Error applying migration {}", migration.getName(), e);
+                    recordMetrics(MigrationStatus.FAILED, timing);
+                    awaitAll(bookkeeping);
+                    updateMigrationStatus(migration, MigrationStatus.FAILED.name(), Optional.ofNullable(e.getMessage()),
+                            timing);
+                    throw e;
+                }
+
+                recordMetrics(status, timing);
+                bookkeeping.add(session.executeAsync(
+                        updateMigrationStatusStatement(migration, status.name(), Optional.empty(), timing)));
+                pendingSchemaChange |= migration.isSchemaChange();
+                log.debug("{} executed with status {}", migration, status);
+            }
+
+            if (pendingSchemaChange) {
+                awaitSchemaAgreement();
+            }
+        } finally {
+            awaitAll(bookkeeping);
+        }
+    }
+
+    /**
+     * @return the lower case names, without keyspace, of the tables, types, views and indexes the migration creates or
+     * alters.
+     */
+    private static Set<String> schemaObjectsOf(Migration migration) {
+        Set<String> objects = new HashSet<>();
+        migration.getStatements().forEach(statement -> {
+            Matcher matcher = SCHEMA_OBJECT.matcher(statement);
+            while (matcher.find()) {
+                String name = matcher.group(1).replace("\"", "");
+                objects.add(name.substring(name.lastIndexOf('.') + 1).toLowerCase());
+            }
+        });
+        return objects;
+    }
+
+    private static boolean references(Migration migration, Set<String> objects) {
+        if (objects.isEmpty()) {
+            return false;
+        }
+        Matcher matcher = IDENTIFIER.matcher(migration.getStatement());
+        while (matcher.find()) {
+            if (objects.contains(matcher.group().toLowerCase())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void awaitAll(List<ResultSetFuture> futures) {
+        futures.forEach(ResultSetFuture::getUninterruptibly);
+        futures.clear();
+    }
+}
@@ -0,0 +1,196 @@
+package com.revinate.henicea.spring;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Session;
+import com.revinate.henicea.migration.MigrationResult;
+import com.revinate.henicea.migration.Migrator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.io.Resource;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Runs the migration on a background thread as soon as the bean is initialized, so the rest of the Spring context is
+ * created while the DDL runs instead of waiting for it in the <code>cluster()</code> bean. Beans that need the schema
+ * call {@link #await()} before using Cassandra, and the {@link com.revinate.henicea.spring.actuator.MigrationHealthIndicator}
+ * reports the progress.
+ *
+ * <pre>
+ * &#064;Bean
+ * public BackgroundMigration migration() throws IOException {
+ *     return new BackgroundMigration(new Migrator(), cluster(), keyspace, getMigrations());
+ * }
+ *
+ * &#064;Bean
+ * public Session session() {
+ *     migration().await();
+ *     return cluster().connect(keyspace);
+ * }
+ * </pre>
+ */
+@Slf4j
+public class BackgroundMigration implements InitializingBean, DisposableBean {
+
+    public enum State {
+        /**
+         * The migration was not started or is running.
+         */
+        MIGRATING,
+        /**
+         * The migration completed, see {@link #getResult()}.
+         */
+        UP,
+        /**
+         * The migration failed, see {@link #getError()}.
+         */
+        FAILED
+    }
+
+    private final Supplier<MigrationResult> migration;
+    private final CompletableFuture<MigrationResult> result = new CompletableFuture<>();
+
+    private Thread thread;
+
+    /**
+     * Migrates the keyspace with a session opened for the migration and closed afterwards.
+     *
+     * @param migrator  The configured migrator
+     * @param cluster   A properly initialized {@link Cluster}
+     * @param keyspace  Cassandra' keyspace/column family
+     * @param resources The migration files
+     */
+    public BackgroundMigration(Migrator migrator, Cluster cluster, String keyspace, Resource... resources) {
+        this(() -> {
+            try (Session session = cluster.connect()) {
+                return migrator.execute(session, keyspace, resources);
+            }
+        });
+    }
+
+    /**
+     * @param migration Runs the migration, for example one of the <code>Migrator.execute</code> methods
+     */
+    public BackgroundMigration(Supplier<MigrationResult> migration) {
+        this.migration = migration;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        start();
+    }
+
+    /**
+     * Starts the migration thread, unless it was started already.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this::run, "henicea-migration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (thread != null && thread.isAlive()) {
+            thread.interrupt();
+        }
+    }
+
+    public State getState() {
+        if (!result.isDone()) {
+            return State.MIGRATING;
+        }
+        return result.isCompletedExceptionally() ? State.FAILED : State.UP;
+    }
+
+    /**
+     * @return the result of the migration, empty while it runs or if it failed.
+     */
+    public Optional<MigrationResult> getResult() {
+        return result.isDone() && !result.isCompletedExceptionally() ? Optional.of(result.join()) : Optional.empty();
+    }
+
+    /**
+     * @return the error of a failed migration.
+     */
+    public Optional<Throwable> getError() {
+        try {
+            result.getNow(null);
+            return Optional.empty();
+        } catch (RuntimeException e) {
+            return Optional.of(e.getCause() != null ? e.getCause() : e);
+        }
+    }
+
+    /**
+     * @return a future completed when the migration completes, for callers that should not block.
+     */
+    public CompletableFuture<MigrationResult> whenComplete() {
+        return result.thenApply(migrationResult -> migrationResult);
+    }
+
+    /**
+     * Blocks until the migration completes.
+     *
+     * @return the result of the migration.
+     * @throws IllegalStateException if the migration failed or the thread was interrupted
+     */
+    public MigrationResult await() {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the Cassandra migration", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Cassandra migration failed", e.getCause());
+        }
+    }
+
+    /**
+     * Blocks until the migration completes or the timeout expires.
+     *
+     * @return the result of the migration.
+     * @throws IllegalStateException if the migration failed, did not complete in time or the thread was interrupted
+     */
+    public MigrationResult await(long timeout, TimeUnit timeUnit) {
+        try {
+            return result.get(timeout, timeUnit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the Cassandra migration", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Cassandra migration failed", e.getCause());
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(
+                    String.format("Cassandra migration did not complete in %d %s", timeout, timeUnit), e);
+        }
+    }
+
+    private void run() {
+        log.info("Running Cassandra migrations in the background");
+        try {
+            MigrationResult migrationResult = migration.get();
+            if (migrationResult.getStatus() == MigrationResult.Status.FAILED) {
+                Throwable error = migrationResult.getError()
+                        .orElseGet(() -> new IllegalStateException("Migration of " + migrationResult.getKeyspace() + " failed"));
+                log.error("Cassandra migrations failed: {}", migrationResult, error);
+                result.completeExceptionally(error);
+            } else {
+                log.info("Cassandra migrations completed: {}", migrationResult);
+                result.complete(migrationResult);
+            }
+        } catch (Throwable t) {
+            log.error("Cassandra migrations failed", t);
+            result.completeExceptionally(t);
+        }
+    }
+}
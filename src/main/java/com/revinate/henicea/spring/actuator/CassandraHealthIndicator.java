@@ -1,32 +1,108 @@
 package com.revinate.henicea.spring.actuator;
 
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
 import com.datastax.driver.core.Session;
+import com.google.common.annotations.VisibleForTesting;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.actuate.health.AbstractHealthIndicator;
 import org.springframework.boot.actuate.health.Health;
 import org.springframework.boot.actuate.health.Status;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Simple health indicator for Spring Boot actuator. It shows the servers and open connections.
+ *
+ * <p>The server states are kept in a snapshot that is seeded from the connected hosts on the first health check and
+ * then updated by a {@link Host.StateListener} registered in the cluster. Events of hosts ignored by the load balancing
+ * policy, which the session has no connection pool for, are skipped. Host names are resolved once per host on a
+ * background thread, so neither a health check nor a driver event waits for a reverse DNS lookup; a host is reported
+ * by its IP address until its name is known.
+ *
+ * <p>If a {@link HostLatencyProber} is in the context the per-host latencies are added to the details and the status
+ * is {@link #DEGRADED} while the p99 latency of any host is above its threshold. If a {@link PoolSaturationMonitor} is
+ * in the context the pool usage of each host is added as well and the status is {@link Status#OUT_OF_SERVICE} while
+ * the pools stay saturated.
  */
 @Slf4j
-public class CassandraHealthIndicator extends AbstractHealthIndicator {
+public class CassandraHealthIndicator extends AbstractHealthIndicator implements DisposableBean {
+
+    public static final Status DEGRADED = new Status("DEGRADED", "Cassandra hosts are responding slowly");
 
     @Autowired
     private Session session;
 
+    @Autowired(required = false)
+    private HostLatencyProber latencyProber;
+
+    @Autowired(required = false)
+    private PoolSaturationMonitor poolMonitor;
+
+    private final ConcurrentMap<Host, String> hostNames = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Host, String> hostStates = new ConcurrentHashMap<>();
+    private final Set<Host> resolving = ConcurrentHashMap.newKeySet();
+    private final Host.StateListener listener = new HostStateListener();
+
+    private ExecutorService resolver = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "henicea-host-resolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile boolean registered = false;
+    private volatile Map<String, String> servers = Collections.emptyMap();
+
     @Override
     protected void doHealthCheck(Health.Builder builder) throws Exception {
+        Map<String, String> servers = getHostStatus();
         int openConnections = countOpenConnections();
 
         builder
                 .status(openConnections == 0 ? Status.DOWN : Status.UP)
-                .withDetail("servers", getHostStatus())
+                .withDetail("servers", servers)
                 .withDetail("openConnections", openConnections);
+
+        if (latencyProber != null) {
+            builder.withDetail("latency", byHostName(latencyProber.getLatencies()));
+            if (openConnections > 0 && latencyProber.isDegraded()) {
+                builder.status(DEGRADED);
+            }
+        }
+
+        if (poolMonitor != null) {
+            builder
+                    .withDetail("pools", byHostName(poolMonitor.getPools()))
+                    .withDetail("poolUtilization", poolMonitor.getUtilization());
+            if (openConnections > 0 && poolMonitor.isSaturated()) {
+                builder.status(Status.OUT_OF_SERVICE);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    void usingResolver(ExecutorService resolver) {
+        this.resolver = resolver;
+    }
+
+    @Override
+    public void destroy() {
+        if (registered) {
+            session.getCluster().unregister(listener);
+        }
+        resolver.shutdownNow();
     }
 
     private Integer countOpenConnections() {
@@ -34,13 +110,128 @@ public class CassandraHealthIndicator extends AbstractHealthIndicator {
     }
 
     private Map<String, String> getHostStatus() {
-        Map<String, String> statusMap = new HashMap<>();
+        if (!registered) {
+            register();
+        }
+        return servers;
+    }
+
+    private Map<String, Map<String, Object>> byHostName(Map<Host, Map<String, Object>> details) {
+        Map<String, Map<String, Object>> byHostName = new HashMap<>();
+        details.forEach((host, hostDetails) -> byHostName.put(getHostName(host), hostDetails));
+        return byHostName;
+    }
+
+    private synchronized void register() {
+        if (registered) {
+            return;
+        }
+        Cluster cluster = session.getCluster();
+        cluster.register(listener);
+        session.getState().getConnectedHosts().forEach(host -> hostStates.putIfAbsent(host, host.getState()));
+        publish();
+        registered = true;
+    }
+
+    /**
+     * Rebuilds the snapshot returned by the health checks. Only called on host events, which are rare. The names of
+     * new hosts are resolved afterwards, outside the lock, and the snapshot is rebuilt once they are known.
+     */
+    private void publish() {
+        List<Host> unresolved = new ArrayList<>();
+        synchronized (this) {
+            Map<String, String> statusMap = new HashMap<>();
+
+            // use a local map obj instead of collect to allow address collisions
+            // it can happen if the contact point is an A record
+            hostStates.forEach((host, state) -> {
+                if (!hostNames.containsKey(host)) {
+                    unresolved.add(host);
+                }
+                statusMap.put(getHostName(host), state);
+            });
+
+            servers = Collections.unmodifiableMap(statusMap);
+        }
+        unresolved.forEach(this::resolve);
+    }
+
+    private void resolve(Host host) {
+        if (!resolving.add(host)) {
+            return;
+        }
+        try {
+            resolver.execute(() -> {
+                try {
+                    String name = host.getAddress().getHostName();
+                    if (hostStates.containsKey(host)) {
+                        hostNames.put(host, name);
+                    }
+                } finally {
+                    resolving.remove(host);
+                }
+                publish();
+            });
+        } catch (RuntimeException e) {
+            resolving.remove(host);
+            log.debug("Could not resolve the name of {}", host, e);
+        }
+    }
+
+    private String getHostName(Host host) {
+        String name = hostNames.get(host);
+        return name != null ? name : host.getAddress().getHostAddress();
+    }
+
+    private boolean hasPool(Host host) {
+        return session.getCluster().getConfiguration().getPolicies().getLoadBalancingPolicy().distance(host)
+                != HostDistance.IGNORED;
+    }
+
+    private class HostStateListener implements Host.StateListener {
+
+        @Override
+        public void onAdd(Host host) {
+            update(host, host.getState());
+        }
+
+        @Override
+        public void onUp(Host host) {
+            update(host, "UP");
+        }
+
+        @Override
+        public void onDown(Host host) {
+            if (hostStates.replace(host, "DOWN") != null) {
+                publish();
+            }
+        }
+
+        private void update(Host host, String state) {
+            if (hasPool(host)) {
+                hostStates.put(host, state);
+                publish();
+            } else if (hostStates.remove(host) != null) {
+                hostNames.remove(host);
+                publish();
+            }
+        }
+
+        @Override
+        public void onRemove(Host host) {
+            hostStates.remove(host);
+            hostNames.remove(host);
+            publish();
+        }
 
-        // use a local map obj instead of collect to allow address collisions
-        // it can happen if the contact point is an A record
-        session.getState().getConnectedHosts()
-                .forEach(host -> statusMap.put(host.getAddress().getHostName(), host.getState()));
+        @Override
+        public void onRegister(Cluster cluster) {
+            log.debug("Cassandra health indicator listening to host events");
+        }
 
-        return statusMap;
+        @Override
+        public void onUnregister(Cluster cluster) {
+            log.debug("Cassandra health indicator stopped listening to host events");
+        }
     }
 }
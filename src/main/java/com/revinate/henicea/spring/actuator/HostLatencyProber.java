@@ -0,0 +1,278 @@
+package com.revinate.henicea.spring.actuator;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.SlidingTimeWindowReservoir;
+import com.codahale.metrics.Snapshot;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.LatencyTracker;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.SocketOptions;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.revinate.henicea.util.HostPinningPolicy;
+import com.revinate.henicea.util.HostPinningPolicy.PinnedStatement;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background prober that measures the latency of each Cassandra host with a lightweight query. Add it to the Spring
+ * context next to the {@link CassandraHealthIndicator} to get p50, p99 and max latencies per host in the health
+ * details and a <code>DEGRADED</code> status when the p99 of a host crosses the threshold. A failed probe is recorded
+ * as if it had taken the read timeout of the cluster, so a host that times out or fails every probe is degraded too:
+ *
+ * <pre>
+ * &#064;Bean
+ * public HostLatencyProber hostLatencyProber() {
+ *     HostLatencyProber prober = new HostLatencyProber();
+ *     prober.setDegradedThreshold(50, TimeUnit.MILLISECONDS);
+ *     return prober;
+ * }
+ * </pre>
+ *
+ * <p>Every round sends one probe to each host the session is connected to. The driver does not let a statement pick
+ * its coordinator, so the load balancing policy of the cluster must be wrapped in a {@link HostPinningPolicy} for the
+ * probes to reach their host; otherwise they are spread by the policy and some hosts may not be probed. The latencies
+ * are attributed to the host that actually served each probe through a {@link LatencyTracker}, so application
+ * queries are never counted. Probes run on a daemon thread and never on the health request thread, and removed hosts
+ * are dropped from the details.
+ */
+@Slf4j
+public class HostLatencyProber implements LatencyTracker, InitializingBean, DisposableBean {
+
+    public static final String DEFAULT_QUERY = "SELECT release_version FROM system.local";
+
+    @Autowired
+    private Session session;
+
+    private final ConcurrentMap<Host, HostLatency> latencies = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Host.StateListener hostListener = new HostRemovalListener();
+
+    private Statement probe = new SimpleStatement(DEFAULT_QUERY).setIdempotent(true);
+    private long intervalMillis = TimeUnit.SECONDS.toMillis(5);
+    private long windowMillis = TimeUnit.MINUTES.toMillis(1);
+    private long degradedThresholdMicros = TimeUnit.MILLISECONDS.toMicros(100);
+    private long failedProbeMicros = TimeUnit.MILLISECONDS.toMicros(SocketOptions.DEFAULT_READ_TIMEOUT_MILLIS);
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Sets the query sent to the hosts. Defaults to {@value #DEFAULT_QUERY}.
+     *
+     * @param query A cheap query that can be served by any host
+     */
+    public void setQuery(String query) {
+        this.probe = new SimpleStatement(query).setIdempotent(true);
+    }
+
+    /**
+     * Sets how often the hosts are probed. Defaults to 5 seconds.
+     *
+     * @param interval The interval between probe rounds
+     * @param timeUnit The unit of <code>interval</code>
+     */
+    public void setInterval(long interval, TimeUnit timeUnit) {
+        this.intervalMillis = timeUnit.toMillis(interval);
+    }
+
+    /**
+     * Sets how far back the percentiles look, so a host that recovers stops being reported as degraded. Defaults to
+     * 1 minute.
+     *
+     * @param window   The time window of the histograms
+     * @param timeUnit The unit of <code>window</code>
+     */
+    public void setWindow(long window, TimeUnit timeUnit) {
+        this.windowMillis = timeUnit.toMillis(window);
+    }
+
+    /**
+     * Sets the p99 latency above which a host is degraded. Defaults to 100 milliseconds.
+     *
+     * @param threshold The maximum p99 latency of a healthy host
+     * @param timeUnit  The unit of <code>threshold</code>
+     */
+    public void setDegradedThreshold(long threshold, TimeUnit timeUnit) {
+        this.degradedThresholdMicros = timeUnit.toMicros(threshold);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        Cluster cluster = session.getCluster();
+        if (!HostPinningPolicy.isInstalled(cluster)) {
+            log.warn("The load balancing policy is not wrapped in a HostPinningPolicy, latency probes are not sent to "
+                    + "every host");
+        }
+        int readTimeoutMillis = cluster.getConfiguration().getSocketOptions().getReadTimeoutMillis();
+        if (readTimeoutMillis > 0) {
+            failedProbeMicros = TimeUnit.MILLISECONDS.toMicros(readTimeoutMillis);
+        }
+        cluster.register(this);
+        cluster.register(hostListener);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "henicea-latency-prober");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::probe, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        session.getCluster().unregister(hostListener);
+        session.getCluster().unregister(this);
+    }
+
+    /**
+     * Sends one probe to each connected host. A round is skipped while probes of the previous one are still in
+     * flight, so a slow cluster does not pile up probes.
+     */
+    void probe() {
+        if (inFlight.get() > 0) {
+            log.debug("Skipping latency probe, {} probes still in flight", inFlight.get());
+            return;
+        }
+        try {
+            for (Host host : session.getState().getConnectedHosts()) {
+                inFlight.incrementAndGet();
+                ResultSetFuture future = session.executeAsync(HostPinningPolicy.pin(probe, host));
+                future.addListener(() -> completed(host, future), MoreExecutors.sameThreadExecutor());
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not probe cassandra hosts", e);
+        }
+    }
+
+    /**
+     * Called when a probe completes. A probe that never reached its host fails without a {@link LatencyTracker}
+     * update, so it is recorded here.
+     */
+    private void completed(Host host, ResultSetFuture future) {
+        inFlight.decrementAndGet();
+        try {
+            future.getUninterruptibly();
+        } catch (NoHostAvailableException e) {
+            if (!e.getErrors().containsKey(host.getSocketAddress())) {
+                record(host, e, 0);
+            }
+        } catch (RuntimeException e) {
+            log.debug("Latency probe of {} failed", host, e);
+        }
+    }
+
+    @Override
+    public void update(Host host, Statement statement, Exception exception, long newLatencyNanos) {
+        if (!(statement instanceof PinnedStatement) || ((PinnedStatement) statement).getStatement() != probe) {
+            return;
+        }
+        record(host, exception, newLatencyNanos);
+    }
+
+    private void record(Host host, Exception exception, long latencyNanos) {
+        HostLatency latency = latencies.computeIfAbsent(host, h -> new HostLatency(windowMillis));
+        long micros = TimeUnit.NANOSECONDS.toMicros(latencyNanos);
+        if (exception == null) {
+            latency.histogram.update(micros);
+        } else {
+            latency.histogram.update(Math.max(micros, failedProbeMicros));
+            latency.errors.inc();
+        }
+    }
+
+    @Override
+    public void onRegister(Cluster cluster) {
+        log.debug("Latency prober registered");
+    }
+
+    @Override
+    public void onUnregister(Cluster cluster) {
+        log.debug("Latency prober unregistered");
+    }
+
+    /**
+     * @return the latency details of every probed host: <code>p50</code>, <code>p99</code> and <code>max</code> in
+     * milliseconds and the number of failed probes in <code>errors</code>.
+     */
+    Map<Host, Map<String, Object>> getLatencies() {
+        Map<Host, Map<String, Object>> details = new HashMap<>();
+        latencies.forEach((host, latency) -> {
+            Snapshot snapshot = latency.histogram.getSnapshot();
+            Map<String, Object> hostDetails = new HashMap<>();
+            hostDetails.put("p50", toMillis(snapshot.getMedian()));
+            hostDetails.put("p99", toMillis(snapshot.get99thPercentile()));
+            hostDetails.put("max", toMillis(snapshot.getMax()));
+            hostDetails.put("errors", latency.errors.getCount());
+            details.put(host, Collections.unmodifiableMap(hostDetails));
+        });
+        return details;
+    }
+
+    /**
+     * @return true if the p99 latency of any host is above the threshold, counting failed probes at the read timeout.
+     */
+    boolean isDegraded() {
+        return latencies.values().stream()
+                .anyMatch(latency -> latency.histogram.getSnapshot().get99thPercentile() > degradedThresholdMicros);
+    }
+
+    private static double toMillis(double micros) {
+        return Math.round(micros) / 1000.0;
+    }
+
+    private class HostRemovalListener implements Host.StateListener {
+
+        @Override
+        public void onAdd(Host host) {
+        }
+
+        @Override
+        public void onUp(Host host) {
+        }
+
+        @Override
+        public void onDown(Host host) {
+        }
+
+        @Override
+        public void onRemove(Host host) {
+            latencies.remove(host);
+        }
+
+        @Override
+        public void onRegister(Cluster cluster) {
+        }
+
+        @Override
+        public void onUnregister(Cluster cluster) {
+        }
+    }
+
+    private static class HostLatency {
+        private final Histogram histogram;
+        private final Counter errors = new Counter();
+
+        private HostLatency(long windowMillis) {
+            this.histogram = new Histogram(new SlidingTimeWindowReservoir(windowMillis, TimeUnit.MILLISECONDS));
+        }
+    }
+}
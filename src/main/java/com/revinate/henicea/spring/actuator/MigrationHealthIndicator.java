@@ -0,0 +1,42 @@
+package com.revinate.henicea.spring.actuator;
+
+import com.revinate.henicea.spring.BackgroundMigration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+
+/**
+ * Reports the progress of a {@link BackgroundMigration}: {@link Status#OUT_OF_SERVICE} while it runs, {@link Status#UP}
+ * once it completed and {@link Status#DOWN} if it failed. The <code>state</code> detail has the
+ * {@link BackgroundMigration.State}.
+ *
+ * <p>{@link Status#OUT_OF_SERVICE} is part of the default order of the health aggregator, so the overall health is
+ * not UP while the migration runs without any further configuration.
+ */
+public class MigrationHealthIndicator extends AbstractHealthIndicator {
+
+    @Autowired
+    private BackgroundMigration migration;
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) throws Exception {
+        BackgroundMigration.State state = migration.getState();
+        builder.withDetail("state", state);
+
+        switch (state) {
+            case MIGRATING:
+                builder.outOfService();
+                break;
+            case UP:
+                builder.up();
+                migration.getResult().ifPresent(result -> builder
+                        .withDetail("result", result.getStatus())
+                        .withDetail("appliedMigrations", result.getAppliedMigrations()));
+                break;
+            default:
+                builder.down();
+                migration.getError().ifPresent(error -> builder.withDetail("error", String.valueOf(error.getMessage())));
+        }
+    }
+}
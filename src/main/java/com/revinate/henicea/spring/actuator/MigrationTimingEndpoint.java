@@ -0,0 +1,51 @@
+package com.revinate.henicea.spring.actuator;
+
+import com.datastax.driver.core.Session;
+import com.revinate.henicea.migration.DefaultMigrationClient;
+import com.revinate.henicea.migration.MigrationClient;
+import com.revinate.henicea.migration.MigrationExecution;
+import lombok.Setter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+
+import java.util.List;
+
+/**
+ * Actuator endpoint <code>/migrations</code> listing the migrations of a keyspace that took the longest to apply,
+ * read from the timings stored in its <code>migrations</code> table.
+ *
+ * <pre>
+ * &#064;Bean
+ * public MigrationTimingEndpoint migrationTimingEndpoint() {
+ *     return new MigrationTimingEndpoint("myapp");
+ * }
+ * </pre>
+ */
+public class MigrationTimingEndpoint extends AbstractEndpoint<List<MigrationExecution>> {
+
+    @Autowired
+    private Session session;
+
+    private final String keyspace;
+
+    /**
+     * Maximum number of migrations listed. Defaults to 10.
+     */
+    @Setter
+    private int limit = 10;
+
+    private volatile MigrationClient client;
+
+    public MigrationTimingEndpoint(String keyspace) {
+        super("migrations");
+        this.keyspace = keyspace;
+    }
+
+    @Override
+    public List<MigrationExecution> invoke() {
+        if (client == null) {
+            client = new DefaultMigrationClient(session, keyspace, "migration-endpoint");
+        }
+        return client.getSlowestMigrations(limit);
+    }
+}
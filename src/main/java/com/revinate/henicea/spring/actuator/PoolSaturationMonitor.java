@@ -0,0 +1,178 @@
+package com.revinate.henicea.spring.actuator;
+
+import com.datastax.driver.core.Configuration;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.Session;
+import com.google.common.annotations.VisibleForTesting;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Samples the connection pools of the session in the background. Add it to the Spring context next to the
+ * {@link CassandraHealthIndicator} to get the in-flight queries and utilization of each host pool in the health
+ * details and an <code>OUT_OF_SERVICE</code> status while the pools stay saturated:
+ *
+ * <pre>
+ * &#064;Bean
+ * public PoolSaturationMonitor poolSaturationMonitor() {
+ *     PoolSaturationMonitor monitor = new PoolSaturationMonitor();
+ *     monitor.setThreshold(0.8);
+ *     monitor.setSustainedFor(10, TimeUnit.SECONDS);
+ *     return monitor;
+ * }
+ * </pre>
+ *
+ * <p>The utilization is the number of in-flight queries over the capacity of the open connections, as given by
+ * {@link com.datastax.driver.core.PoolingOptions#getMaxRequestsPerConnection(HostDistance)}. The status uses the
+ * utilization of all the pools together, since every instance of the application shares the same hosts and a single
+ * hot host is not a reason to take this one out of the balancer.
+ */
+@Slf4j
+public class PoolSaturationMonitor implements InitializingBean, DisposableBean {
+
+    @Autowired
+    private Session session;
+
+    private long intervalMillis = TimeUnit.SECONDS.toMillis(1);
+    private double threshold = 0.8;
+    private long sustainedForMillis = TimeUnit.SECONDS.toMillis(10);
+    private LongSupplier clock = System::currentTimeMillis;
+
+    private volatile Map<Host, Map<String, Object>> pools = Collections.emptyMap();
+    private volatile double utilization = 0;
+    private volatile long saturatedSince = -1;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Sets how often the pools are sampled. Defaults to 1 second.
+     *
+     * @param interval The interval between samples
+     * @param timeUnit The unit of <code>interval</code>
+     */
+    public void setInterval(long interval, TimeUnit timeUnit) {
+        this.intervalMillis = timeUnit.toMillis(interval);
+    }
+
+    /**
+     * Sets the utilization, between 0 and 1, above which the pools are saturated. Defaults to 0.8.
+     *
+     * @param threshold The maximum utilization of healthy pools
+     */
+    public void setThreshold(double threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Sets how long the utilization must stay above the threshold before the instance is reported out of service,
+     * so short bursts do not flap the status. Defaults to 10 seconds.
+     *
+     * @param duration The minimum duration of the saturation
+     * @param timeUnit The unit of <code>duration</code>
+     */
+    public void setSustainedFor(long duration, TimeUnit timeUnit) {
+        this.sustainedForMillis = timeUnit.toMillis(duration);
+    }
+
+    @VisibleForTesting
+    void setClock(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "henicea-pool-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::sample, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    void sample() {
+        try {
+            Session.State state = session.getState();
+            Configuration configuration = session.getCluster().getConfiguration();
+
+            Map<Host, Map<String, Object>> pools = new HashMap<>();
+            long totalInFlight = 0;
+            long totalCapacity = 0;
+            for (Host host : state.getConnectedHosts()) {
+                HostDistance distance = configuration.getPolicies().getLoadBalancingPolicy().distance(host);
+                int inFlight = state.getInFlightQueries(host);
+                int openConnections = state.getOpenConnections(host);
+                long capacity = (long) openConnections *
+                        configuration.getPoolingOptions().getMaxRequestsPerConnection(distance);
+
+                Map<String, Object> pool = new HashMap<>();
+                pool.put("inFlightQueries", inFlight);
+                pool.put("openConnections", openConnections);
+                pool.put("trashedConnections", state.getTrashedConnections(host));
+                pool.put("utilization", utilization(inFlight, capacity));
+                pools.put(host, Collections.unmodifiableMap(pool));
+
+                totalInFlight += inFlight;
+                totalCapacity += capacity;
+            }
+
+            this.pools = Collections.unmodifiableMap(pools);
+            this.utilization = utilization(totalInFlight, totalCapacity);
+            if (utilization <= threshold) {
+                saturatedSince = -1;
+            } else if (saturatedSince < 0) {
+                log.warn("Cassandra connection pools are {}% utilized", Math.round(utilization * 100));
+                saturatedSince = clock.getAsLong();
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not sample cassandra connection pools", e);
+        }
+    }
+
+    /**
+     * @return the last sample of each host pool: <code>inFlightQueries</code>, <code>openConnections</code>,
+     * <code>trashedConnections</code> and <code>utilization</code>.
+     */
+    Map<Host, Map<String, Object>> getPools() {
+        return pools;
+    }
+
+    /**
+     * @return the utilization of all the pools together in the last sample.
+     */
+    double getUtilization() {
+        return utilization;
+    }
+
+    /**
+     * @return true if the utilization has been above the threshold for the configured duration.
+     */
+    boolean isSaturated() {
+        long since = saturatedSince;
+        return since >= 0 && clock.getAsLong() - since >= sustainedForMillis;
+    }
+
+    private static double utilization(long inFlight, long capacity) {
+        if (capacity == 0) {
+            return inFlight > 0 ? 1 : 0;
+        }
+        return Math.round(1000.0 * inFlight / capacity) / 1000.0;
+    }
+}
@@ -0,0 +1,64 @@
+package com.revinate.henicea.util;
+
+import com.datastax.driver.core.exceptions.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Classifies the exceptions of the DataStax driver. Unavailable replicas, timeouts, overloaded or bootstrapping
+ * coordinators and connection problems are retryable. Invalid queries, authentication and authorization errors and
+ * other driver errors are fatal, since the same request would fail again. Errors that are not driver exceptions are
+ * retryable, and wrapped driver exceptions are classified by their cause.
+ *
+ * <p>Write timeouts and failures are only retried by {@link #IDEMPOTENT}: the write may have been applied, so
+ * repeating a non-idempotent statement (a counter update, an append to a list) could apply it twice. The same goes
+ * for {@link OperationTimedOutException}, the client side timeout, since the request had reached the coordinator.
+ */
+public class CassandraExceptionClassifier implements ExceptionClassifier {
+
+    public static final CassandraExceptionClassifier DEFAULT = new CassandraExceptionClassifier(false);
+    public static final CassandraExceptionClassifier IDEMPOTENT = new CassandraExceptionClassifier(true);
+
+    private static final List<Class<? extends DriverException>> TRANSIENT = Arrays.asList(
+            NoHostAvailableException.class,
+            ConnectionException.class,
+            BusyConnectionException.class,
+            ReadTimeoutException.class,
+            UnavailableException.class,
+            OverloadedException.class,
+            BootstrappingException.class,
+            ServerError.class,
+            TruncateException.class
+    );
+
+    private static final List<Class<? extends DriverException>> WRITE_UNCERTAIN = Arrays.asList(
+            WriteTimeoutException.class,
+            WriteFailureException.class,
+            OperationTimedOutException.class
+    );
+
+    private final boolean idempotent;
+
+    private CassandraExceptionClassifier(boolean idempotent) {
+        this.idempotent = idempotent;
+    }
+
+    @Override
+    public boolean isRetryable(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DriverException) {
+                return isRetryable((DriverException) cause);
+            }
+        }
+        return true;
+    }
+
+    private boolean isRetryable(DriverException exception) {
+        // checked first: OperationTimedOutException is a ConnectionException
+        if (WRITE_UNCERTAIN.stream().anyMatch(type -> type.isInstance(exception))) {
+            return idempotent;
+        }
+        return TRANSIENT.stream().anyMatch(type -> type.isInstance(exception));
+    }
+}
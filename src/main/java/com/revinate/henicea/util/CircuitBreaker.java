@@ -0,0 +1,102 @@
+package com.revinate.henicea.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker shared by {@link Retryer}s calling the same dependency. After <code>failureThreshold</code>
+ * consecutive failures the circuit opens and attempts fail fast with a {@link CircuitBreakerOpenException}. Once
+ * <code>openDuration</code> has passed a single trial attempt is let through: success closes the circuit, failure
+ * opens it again.
+ */
+@Slf4j
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private LongSupplier clock = System::currentTimeMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+    private boolean trialInFlight = false;
+
+    /**
+     * @param failureThreshold The number of consecutive failures that opens the circuit
+     * @param openDuration     How long the circuit stays open before a trial attempt
+     * @param timeUnit         The unit of <code>openDuration</code>
+     */
+    public CircuitBreaker(int failureThreshold, long openDuration, TimeUnit timeUnit) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = timeUnit.toMillis(openDuration);
+    }
+
+    @VisibleForTesting
+    CircuitBreaker usingClock(LongSupplier clock) {
+        this.clock = clock;
+        return this;
+    }
+
+    /**
+     * @return true if an attempt may be made now.
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (clock.getAsLong() - openedAt < openMillis) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                trialInFlight = true;
+                return true;
+            default:
+                if (trialInFlight) {
+                    return false;
+                }
+                trialInFlight = true;
+                return true;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            log.info("Circuit breaker closed");
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        trialInFlight = false;
+    }
+
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        trialInFlight = false;
+        if (state == State.HALF_OPEN || state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            if (state == State.CLOSED) {
+                log.warn("Circuit breaker opened after {} consecutive failures", consecutiveFailures);
+            }
+            state = State.OPEN;
+            openedAt = clock.getAsLong();
+        }
+    }
+
+    /**
+     * Ends an attempt that neither succeeded nor failed, for example one that threw an {@link Error}. The state does
+     * not change, but a half-open circuit lets the next trial through.
+     */
+    public synchronized void onAbort() {
+        trialInFlight = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,13 @@
+package com.revinate.henicea.util;
+
+/**
+ * Thrown by the {@link Retryer} instead of making an attempt while its {@link CircuitBreaker} is open.
+ */
+public class CircuitBreakerOpenException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CircuitBreakerOpenException(Throwable lastError) {
+        super("Circuit breaker is open", lastError);
+    }
+}
@@ -0,0 +1,52 @@
+package com.revinate.henicea.util;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the metrics in a Dropwizard {@link MetricRegistry}: times as {@link com.codahale.metrics.Timer}s, counts as
+ * {@link com.codahale.metrics.Counter}s and values as {@link com.codahale.metrics.Histogram}s, named after the
+ * constants of {@link MetricsRecorder}.
+ *
+ * <pre>
+ * migrator.setMetricsRecorder(DropwizardMetricsRecorder.of(cluster));
+ * </pre>
+ */
+public class DropwizardMetricsRecorder implements MetricsRecorder {
+
+    private final MetricRegistry registry;
+
+    public DropwizardMetricsRecorder(MetricRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Records in the registry of the driver, next to its own metrics, so the reporters configured for the driver
+     * publish the migration metrics as well.
+     *
+     * @return a recorder on the registry of the cluster, or {@link MetricsRecorder#NONE} if the cluster was built
+     * with metrics disabled.
+     */
+    public static MetricsRecorder of(Cluster cluster) {
+        Metrics metrics = cluster.getMetrics();
+        return metrics == null ? NONE : new DropwizardMetricsRecorder(metrics.getRegistry());
+    }
+
+    @Override
+    public void recordTime(String name, long duration, TimeUnit timeUnit) {
+        registry.timer(name).update(duration, timeUnit);
+    }
+
+    @Override
+    public void increment(String name, long count) {
+        registry.counter(name).inc(count);
+    }
+
+    @Override
+    public void recordValue(String name, long value) {
+        registry.histogram(name).update(value);
+    }
+}
@@ -0,0 +1,21 @@
+package com.revinate.henicea.util;
+
+/**
+ * Decides whether a failed attempt of the {@link Retryer} is worth retrying.
+ */
+@FunctionalInterface
+public interface ExceptionClassifier {
+
+    /**
+     * @param error The error of the failed attempt
+     * @return true if the error is transient and the operation can be retried, false if retrying cannot help.
+     */
+    boolean isRetryable(Throwable error);
+
+    /**
+     * @return a classifier that retries every error, the default of the {@link Retryer}.
+     */
+    static ExceptionClassifier retryAll() {
+        return error -> true;
+    }
+}
@@ -0,0 +1,231 @@
+package com.revinate.henicea.util;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Cuts the tail latency of reads by hedging: if a statement has not completed after a delay, the same statement is
+ * sent a second time and the first response wins. The slower request is cancelled.
+ *
+ * <p>Only statements marked with {@link Statement#setIdempotent(boolean)} are hedged, every other statement is executed
+ * once. The delay is the rolling p95 latency of the last 1024 statements executed through this executor, bounded by a
+ * minimum, and is the configured initial delay until enough samples were seen. This is an application level
+ * alternative to the driver's <code>SpeculativeExecutionPolicy</code>, which applies to every statement of the cluster.
+ *
+ * <p>This is not a {@link Retryer}: its attempts run one after the other, and an attempt that outlives
+ * {@link Retryer#withAttemptTimeout(long, TimeUnit)} is failed and interrupted before the next one starts. A hedge
+ * has to keep the first request in flight next to the second one, and on the driver's futures without blocking a
+ * scheduler thread per statement. The executor shares the {@link RetryBudget} of the retryers instead, see
+ * {@link #withBudget(RetryBudget)}, so hedges and retries are capped together when the cluster struggles.
+ *
+ * <pre>
+ * HedgedQueryExecutor executor = new HedgedQueryExecutor(session, scheduler);
+ * ResultSet rows = executor.executeAsync(select.setIdempotent(true)).get();
+ * </pre>
+ */
+@Slf4j
+public class HedgedQueryExecutor {
+
+    private static final int MIN_SAMPLES = 100;
+    private static final long THRESHOLD_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Session session;
+    private final ScheduledExecutorService scheduler;
+    private final Histogram latencies = new Histogram(new SlidingWindowReservoir(1024));
+    private final AtomicLong hedgesSent = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    private long initialDelayNanos = TimeUnit.MILLISECONDS.toNanos(50);
+    private long minDelayNanos = TimeUnit.MILLISECONDS.toNanos(5);
+    private double percentile = 0.95;
+    private RetryBudget budget;
+    private LongSupplier nanoClock = System::nanoTime;
+
+    private volatile long delayNanos = initialDelayNanos;
+    private volatile boolean delayComputed = false;
+    private volatile long delayComputedAt;
+
+    /**
+     * @param session   The session executing the statements
+     * @param scheduler Sends the hedged requests. The tasks are short, one thread is usually enough.
+     */
+    public HedgedQueryExecutor(Session session, ScheduledExecutorService scheduler) {
+        this.session = session;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Sets the hedging delay used until 100 latencies were recorded. Defaults to 50 milliseconds.
+     */
+    public HedgedQueryExecutor withInitialDelay(long delay, TimeUnit timeUnit) {
+        this.initialDelayNanos = timeUnit.toNanos(delay);
+        this.delayNanos = initialDelayNanos;
+        return this;
+    }
+
+    /**
+     * Sets the lower bound of the hedging delay, so a very fast cluster is not sent every statement twice. Defaults
+     * to 5 milliseconds.
+     */
+    public HedgedQueryExecutor withMinDelay(long delay, TimeUnit timeUnit) {
+        this.minDelayNanos = timeUnit.toNanos(delay);
+        return this;
+    }
+
+    /**
+     * Sets the latency percentile, between 0 and 1, used as hedging delay. Defaults to 0.95.
+     */
+    public HedgedQueryExecutor withPercentile(double percentile) {
+        this.percentile = percentile;
+        return this;
+    }
+
+    /**
+     * Takes a token from a budget shared with {@link Retryer}s before every hedge. When it is empty the statement
+     * keeps waiting for its first request and no hedge is sent.
+     */
+    public HedgedQueryExecutor withBudget(RetryBudget budget) {
+        this.budget = budget;
+        return this;
+    }
+
+    @VisibleForTesting
+    HedgedQueryExecutor usingClock(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        return this;
+    }
+
+    /**
+     * Executes the statement, hedging it if it is idempotent.
+     *
+     * @param statement The statement to execute
+     * @return the result of the first request that succeeds, or the last error if every request failed.
+     */
+    public CompletableFuture<ResultSet> executeAsync(Statement statement) {
+        return new Execution(statement).start();
+    }
+
+    /**
+     * @return the number of second requests sent.
+     */
+    public long getHedgesSent() {
+        return hedgesSent.get();
+    }
+
+    /**
+     * @return the number of second requests that completed before the first one.
+     */
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    /**
+     * @return the current hedging delay in milliseconds.
+     */
+    public double getDelayMillis() {
+        return currentDelayNanos() / 1e6;
+    }
+
+    private long currentDelayNanos() {
+        long now = nanoClock.getAsLong();
+        boolean stale = !delayComputed || now - delayComputedAt >= THRESHOLD_REFRESH_NANOS;
+        if (stale && latencies.getCount() >= MIN_SAMPLES) {
+            long observed = (long) latencies.getSnapshot().getValue(percentile);
+            delayNanos = Math.max(minDelayNanos, observed);
+            delayComputedAt = now;
+            delayComputed = true;
+        }
+        return delayNanos;
+    }
+
+    private class Execution {
+
+        private final Statement statement;
+        private final long start = nanoClock.getAsLong();
+        private final CompletableFuture<ResultSet> result = new CompletableFuture<>();
+        private final ResultSetFuture[] requests = new ResultSetFuture[2];
+
+        private int inFlight = 0;
+        private ScheduledFuture<?> hedge;
+
+        private Execution(Statement statement) {
+            this.statement = statement;
+        }
+
+        private synchronized CompletableFuture<ResultSet> start() {
+            send(0);
+            if (Boolean.TRUE.equals(statement.isIdempotent()) && !result.isDone()) {
+                hedge = scheduler.schedule(this::sendHedge, currentDelayNanos(), TimeUnit.NANOSECONDS);
+            }
+            result.whenComplete((rows, error) -> cancelAll());
+            return result;
+        }
+
+        private synchronized void sendHedge() {
+            if (result.isDone()) {
+                return;
+            }
+            if (budget != null && !budget.tryAcquire()) {
+                log.trace("Retry budget exhausted, not hedging statement {}", statement);
+                return;
+            }
+            hedgesSent.incrementAndGet();
+            log.trace("Hedging statement {}", statement);
+            send(1);
+        }
+
+        private void send(int index) {
+            inFlight++;
+            ResultSetFuture request = session.executeAsync(statement);
+            requests[index] = request;
+            Futures.addCallback(request, new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet rows) {
+                    if (result.complete(rows)) {
+                        latencies.update(nanoClock.getAsLong() - start);
+                        if (index == 1) {
+                            hedgesWon.incrementAndGet();
+                        }
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable error) {
+                    // a failure is not hedged, the result only fails once no other request is left
+                    synchronized (Execution.this) {
+                        if (--inFlight == 0) {
+                            result.completeExceptionally(error);
+                        }
+                    }
+                }
+            });
+        }
+
+        private synchronized void cancelAll() {
+            ScheduledFuture<?> scheduled = hedge;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            for (ResultSetFuture request : requests) {
+                if (request != null && !request.isDone()) {
+                    request.cancel(true);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.revinate.henicea.util;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.StatementWrapper;
+import com.datastax.driver.core.policies.ChainableLoadBalancingPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.google.common.collect.Iterators;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Load balancing policy that sends the statements returned by {@link #pin(Statement, Host)} to their host only and
+ * every other statement to the child policy. The driver does not let a statement pick its coordinator, so this policy
+ * has to wrap the one given to the cluster:
+ *
+ * <pre>
+ * Cluster.builder()
+ *         .withLoadBalancingPolicy(new HostPinningPolicy(new TokenAwarePolicy(new DCAwareRoundRobinPolicy.Builder().build())))
+ *         ...
+ * </pre>
+ *
+ * <p>A pinned statement fails with a {@link com.datastax.driver.core.exceptions.NoHostAvailableException} when the
+ * session has no connection pool for its host, for example because the child policy ignores it.
+ */
+public class HostPinningPolicy implements ChainableLoadBalancingPolicy {
+
+    private final LoadBalancingPolicy childPolicy;
+
+    public HostPinningPolicy(LoadBalancingPolicy childPolicy) {
+        this.childPolicy = childPolicy;
+    }
+
+    /**
+     * Wraps a statement so that this policy sends it to the given host only.
+     *
+     * @param statement The statement to execute
+     * @param host      The coordinator of the statement
+     * @return the pinned statement
+     */
+    public static PinnedStatement pin(Statement statement, Host host) {
+        return new PinnedStatement(statement, host);
+    }
+
+    /**
+     * @param cluster The cluster to check
+     * @return true if the load balancing policy of the cluster is a {@link HostPinningPolicy} or wraps one.
+     */
+    public static boolean isInstalled(Cluster cluster) {
+        LoadBalancingPolicy policy = cluster.getConfiguration().getPolicies().getLoadBalancingPolicy();
+        while (policy != null) {
+            if (policy instanceof HostPinningPolicy) {
+                return true;
+            }
+            policy = policy instanceof ChainableLoadBalancingPolicy
+                    ? ((ChainableLoadBalancingPolicy) policy).getChildPolicy()
+                    : null;
+        }
+        return false;
+    }
+
+    @Override
+    public LoadBalancingPolicy getChildPolicy() {
+        return childPolicy;
+    }
+
+    @Override
+    public void init(Cluster cluster, Collection<Host> hosts) {
+        childPolicy.init(cluster, hosts);
+    }
+
+    @Override
+    public HostDistance distance(Host host) {
+        return childPolicy.distance(host);
+    }
+
+    @Override
+    public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement) {
+        if (statement instanceof PinnedStatement) {
+            return Iterators.singletonIterator(((PinnedStatement) statement).getHost());
+        }
+        return childPolicy.newQueryPlan(loggedKeyspace, statement);
+    }
+
+    @Override
+    public void onAdd(Host host) {
+        childPolicy.onAdd(host);
+    }
+
+    @Override
+    public void onUp(Host host) {
+        childPolicy.onUp(host);
+    }
+
+    @Override
+    public void onDown(Host host) {
+        childPolicy.onDown(host);
+    }
+
+    @Override
+    public void onRemove(Host host) {
+        childPolicy.onRemove(host);
+    }
+
+    @Override
+    public void close() {
+        childPolicy.close();
+    }
+
+    /**
+     * A statement that {@link HostPinningPolicy} sends to a single host.
+     */
+    public static class PinnedStatement extends StatementWrapper {
+
+        private final Statement statement;
+        private final Host host;
+
+        private PinnedStatement(Statement statement, Host host) {
+            super(statement);
+            this.statement = statement;
+            this.host = host;
+        }
+
+        /**
+         * @return the wrapped statement.
+         */
+        public Statement getStatement() {
+            return statement;
+        }
+
+        /**
+         * @return the host the statement is sent to.
+         */
+        public Host getHost() {
+            return host;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.revinate.henicea.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Receives the metrics of the migrator, the migration clients and the {@link Retryer}. Every method does nothing by
+ * default, so an implementation only overrides what its backend supports. See {@link DropwizardMetricsRecorder}.
+ *
+ * <p>Implementations are called from several threads and must be thread safe.
+ */
+public interface MetricsRecorder {
+
+    /**
+     * Records nothing, the default everywhere.
+     */
+    MetricsRecorder NONE = new MetricsRecorder() {
+    };
+
+    /**
+     * Time taken to acquire the migration lease, whether it was acquired or not.
+     */
+    String LOCK_ACQUISITION = "henicea.lock.acquisition";
+    /**
+     * Time the migration lease was held.
+     */
+    String LOCK_HOLD = "henicea.lock.hold";
+    /**
+     * Attempts to take the lease that found it held by another client.
+     */
+    String LOCK_CONTENTION = "henicea.lock.contention";
+    /**
+     * Time taken to create the keyspace and the bookkeeping tables.
+     */
+    String INIT = "henicea.init";
+    /**
+     * Time taken to apply one migration.
+     */
+    String MIGRATION = "henicea.migration";
+    /**
+     * Migrations that failed.
+     */
+    String MIGRATION_FAILURES = "henicea.migration.failures";
+    /**
+     * Migrations that were not applied because they already were.
+     */
+    String MIGRATION_SKIPPED = "henicea.migration.skipped";
+    /**
+     * Time taken by a whole <code>Migrator.execute</code> call.
+     */
+    String EXECUTE = "henicea.execute";
+    /**
+     * Number of attempts of each run of a {@link Retryer}.
+     */
+    String RETRY_ATTEMPTS = "henicea.retry.attempts";
+    /**
+     * Waits of a {@link Retryer} before a retry, in milliseconds.
+     */
+    String RETRY_BACKOFF = "henicea.retry.backoff";
+
+    default void recordTime(String name, long duration, TimeUnit timeUnit) {
+    }
+
+    default void increment(String name, long count) {
+    }
+
+    /**
+     * Adds a value to the distribution of a histogram.
+     */
+    default void recordValue(String name, long value) {
+    }
+
+    /**
+     * Runs the action and records its time, also if it fails.
+     */
+    default <T> T time(String name, Supplier<T> action) {
+        long start = System.nanoTime();
+        try {
+            return action.get();
+        } finally {
+            recordTime(name, System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.revinate.henicea.util;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket that limits the retries of every {@link Retryer} sharing it. Each retry takes a token. The bucket holds
+ * at most <code>maxTokens</code> and refills at a constant rate. When it is empty the retryers give up and fail with
+ * the last error instead of adding load to a cluster that is already struggling.
+ *
+ * <pre>
+ * RetryBudget budget = new RetryBudget(100, 10, TimeUnit.SECONDS); // bursts of 100 retries, then 10 per second
+ * </pre>
+ */
+public class RetryBudget {
+
+    private final double maxTokens;
+    private final double tokensPerNano;
+    private LongSupplier nanoClock = System::nanoTime;
+
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param maxTokens The maximum burst of retries
+     * @param tokens    The number of retries regained every <code>period</code>
+     * @param period    The refill period, in seconds, minutes...
+     */
+    public RetryBudget(int maxTokens, int tokens, TimeUnit period) {
+        this.maxTokens = maxTokens;
+        this.tokensPerNano = (double) tokens / period.toNanos(1);
+        this.tokens = maxTokens;
+        this.lastRefill = nanoClock.getAsLong();
+    }
+
+    @VisibleForTesting
+    synchronized RetryBudget usingClock(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        this.lastRefill = nanoClock.getAsLong();
+        return this;
+    }
+
+    /**
+     * @return true if a token was taken and the retry may proceed.
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    /**
+     * @return the number of retries currently available.
+     */
+    public synchronized int getAvailableTokens() {
+        refill();
+        return (int) tokens;
+    }
+
+    private void refill() {
+        long now = nanoClock.getAsLong();
+        tokens = Math.min(maxTokens, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
@@ -4,26 +4,78 @@ import com.google.common.annotations.VisibleForTesting;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 import static com.google.common.collect.Lists.newArrayList;
 
+/**
+ * Retries a supplier with the configured waits between attempts. The first attempt runs immediately and every wait
+ * adds one more attempt.
+ *
+ * <p>{@link #run(Supplier)} blocks the calling thread between attempts. {@link #runAsync(Supplier, ScheduledExecutorService)}
+ * schedules the attempts instead and returns a {@link CompletableFuture}. Both honour the {@link Jitter} and the
+ * overall deadline. The per-attempt timeout only applies to the asynchronous variant.
+ *
+ * <p>To protect a struggling cluster from retry storms, classify the errors with {@link #retryIf(ExceptionClassifier)}
+ * and share a {@link RetryBudget} and a {@link CircuitBreaker} between the retryers calling the same cluster.
+ *
+ * <p>With {@link #withMetrics(MetricsRecorder)} the number of attempts of every run and the waits before the retries
+ * are recorded as histograms.
+ */
 @Slf4j
 public class Retryer {
 
+    public enum Jitter {
+        /**
+         * Waits exactly the configured times.
+         */
+        NONE,
+        /**
+         * Waits a random time between zero and the configured wait.
+         */
+        FULL,
+        /**
+         * Waits a random time between the shortest configured wait and three times the previous wait, capped by the
+         * configured wait.
+         */
+        DECORRELATED
+    }
+
     private List<Long> waits = newArrayList(0L);
     private BiConsumer<Integer, Throwable> notifier = (i, t) -> {
     };
+    private Jitter jitter = Jitter.NONE;
+    private long deadlineMillis = 0;
+    private long attemptTimeoutMillis = 0;
+    private ExceptionClassifier classifier = ExceptionClassifier.retryAll();
+    private RetryBudget budget;
+    private CircuitBreaker circuitBreaker;
+    private MetricsRecorder metricsRecorder = MetricsRecorder.NONE;
+
+    private Supplier<Random> random = ThreadLocalRandom::current;
+    private LongSupplier clock = System::currentTimeMillis;
 
     private Consumer<Long> waitFunction = interval -> {
         try {
             Thread.sleep(interval);
         } catch (InterruptedException e) {
-            log.warn("Sleep was interrupted", e);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to retry", e);
         }
     };
 
@@ -33,6 +85,18 @@ public class Retryer {
         return this;
     }
 
+    @VisibleForTesting
+    Retryer usingRandom(Random random) {
+        this.random = () -> random;
+        return this;
+    }
+
+    @VisibleForTesting
+    Retryer usingClock(LongSupplier clock) {
+        this.clock = clock;
+        return this;
+    }
+
     public Retryer withWait(TimeUnit timeUnit, Integer... waitTime) {
         Stream.of(waitTime)
                 .mapToLong(timeUnit::toMillis)
@@ -40,23 +104,311 @@ public class Retryer {
         return this;
     }
 
+    /**
+     * Randomizes the waits so many clients retrying at the same time do not hit the server in lockstep.
+     */
+    public Retryer withJitter(Jitter jitter) {
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * Stops retrying once the deadline, counted from the start of the run, would be exceeded by the next wait. The
+     * last error is thrown.
+     */
+    public Retryer withDeadline(long deadline, TimeUnit timeUnit) {
+        this.deadlineMillis = timeUnit.toMillis(deadline);
+        return this;
+    }
+
+    /**
+     * Fails an attempt of {@link #runAsync(Supplier, ScheduledExecutorService)} with a {@link TimeoutException} and
+     * interrupts it if it takes longer than the timeout.
+     */
+    public Retryer withAttemptTimeout(long timeout, TimeUnit timeUnit) {
+        this.attemptTimeoutMillis = timeUnit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Only retries the errors the classifier considers transient, for example
+     * {@link CassandraExceptionClassifier#DEFAULT}. Other errors are thrown right away. Retries every error by default.
+     */
+    public Retryer retryIf(ExceptionClassifier classifier) {
+        this.classifier = classifier;
+        return this;
+    }
+
+    /**
+     * Takes a token from a budget shared with other retryers before every retry and gives up when it is empty.
+     */
+    public Retryer withBudget(RetryBudget budget) {
+        this.budget = budget;
+        return this;
+    }
+
+    /**
+     * Checks the circuit breaker before every attempt and reports the outcome of the attempt to it. Errors that are
+     * not retryable mean the server answered, so they do not count as failures.
+     */
+    public Retryer withCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    /**
+     * Records the attempts of every run as {@link MetricsRecorder#RETRY_ATTEMPTS} and the wait before every retry, in
+     * milliseconds, as {@link MetricsRecorder#RETRY_BACKOFF}.
+     */
+    public Retryer withMetrics(MetricsRecorder metricsRecorder) {
+        this.metricsRecorder = metricsRecorder;
+        return this;
+    }
+
     public Retryer onError(BiConsumer<Integer, Throwable> onError) {
         notifier = onError;
         return this;
     }
 
     public <T> T run(Supplier<T> supplier) {
+        long deadline = deadlineFrom(clock.getAsLong());
+        long wait = 0;
+        int attempts = 0;
         RuntimeException lastException = null;
-        for (int i = 0; i < waits.size(); i++) {
-            waitFunction.accept(waits.get(i));
+        try {
+            for (int i = 0; i < waits.size(); i++) {
+                wait = nextWait(i, wait);
+                if (i > 0) {
+                    if (!mayRetry(i, wait, deadline)) {
+                        break;
+                    }
+                    metricsRecorder.recordValue(MetricsRecorder.RETRY_BACKOFF, wait);
+                }
+                waitFunction.accept(wait);
+                checkCircuit(lastException);
+
+                attempts++;
+                boolean recorded = false;
+                try {
+                    T result = supplier.get();
+                    recordSuccess();
+                    recorded = true;
+                    return result;
+                } catch (RuntimeException t) {
+                    boolean retryable = recordFailure(t);
+                    recorded = true;
+                    notifier.accept(i + 1, t);
+                    lastException = t;
+                    if (!retryable) {
+                        throw t;
+                    }
+                } finally {
+                    if (!recorded) {
+                        recordAbort();
+                    }
+                }
+            }
+            throw lastException;
+        } finally {
+            metricsRecorder.recordValue(MetricsRecorder.RETRY_ATTEMPTS, attempts);
+        }
+    }
+
+    /**
+     * Runs the attempts on <code>scheduler</code> without blocking the caller. An attempt that does not respond to
+     * interruption keeps its scheduler thread busy after timing out, so use a scheduler with more than one thread
+     * together with {@link #withAttemptTimeout(long, TimeUnit)}.
+     *
+     * <p>Cancelling the returned future cancels the pending attempt and interrupts the running one.
+     *
+     * @param supplier  The operation to retry
+     * @param scheduler Runs the attempts and the timeouts
+     * @return a future completed with the first successful result or with the last error.
+     */
+    public <T> CompletableFuture<T> runAsync(Supplier<T> supplier, ScheduledExecutorService scheduler) {
+        AsyncRun<T> run = new AsyncRun<>(supplier, scheduler, deadlineFrom(clock.getAsLong()));
+        run.schedule(0, 0, null);
+        return run.result;
+    }
+
+    private boolean mayRetry(int attempt, long wait, long deadline) {
+        if (clock.getAsLong() + wait > deadline) {
+            log.debug("Retry deadline reached after {} attempts", attempt);
+            return false;
+        }
+        if (budget != null && !budget.tryAcquire()) {
+            log.debug("Retry budget exhausted after {} attempts", attempt);
+            return false;
+        }
+        return true;
+    }
+
+    private void checkCircuit(Throwable lastError) {
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            throw new CircuitBreakerOpenException(lastError);
+        }
+    }
+
+    private void recordSuccess() {
+        if (circuitBreaker != null) {
+            circuitBreaker.onSuccess();
+        }
+    }
+
+    private void recordAbort() {
+        if (circuitBreaker != null) {
+            circuitBreaker.onAbort();
+        }
+    }
+
+    /**
+     * @return true if the error is retryable.
+     */
+    private boolean recordFailure(Throwable error) {
+        boolean retryable = classifier.isRetryable(error);
+        if (circuitBreaker != null) {
+            if (retryable) {
+                circuitBreaker.onFailure();
+            } else {
+                circuitBreaker.onSuccess();
+            }
+        }
+        return retryable;
+    }
+
+    private long deadlineFrom(long start) {
+        return deadlineMillis > 0 ? start + deadlineMillis : Long.MAX_VALUE;
+    }
+
+    private long nextWait(int attempt, long previousWait) {
+        long wait = waits.get(attempt);
+        if (wait <= 0) {
+            return wait;
+        }
+        switch (jitter) {
+            case FULL:
+                return randomBetween(0, wait);
+            case DECORRELATED:
+                long base = waits.stream().filter(w -> w > 0).min(Long::compare).orElse(wait);
+                return Math.min(wait, randomBetween(base, Math.max(base, previousWait * 3)));
+            default:
+                return wait;
+        }
+    }
 
+    private long randomBetween(long min, long max) {
+        return Math.min(max, min + (long) (random.get().nextDouble() * (max - min + 1)));
+    }
+
+    private class AsyncRun<T> {
+
+        private final Supplier<T> supplier;
+        private final ScheduledExecutorService scheduler;
+        private final long deadline;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private volatile Future<?> current;
+        private volatile int attempts = 0;
+
+        private AsyncRun(Supplier<T> supplier, ScheduledExecutorService scheduler, long deadline) {
+            this.supplier = supplier;
+            this.scheduler = scheduler;
+            this.deadline = deadline;
+            result.whenComplete((value, error) -> {
+                metricsRecorder.recordValue(MetricsRecorder.RETRY_ATTEMPTS, attempts);
+                Future<?> attempt = current;
+                if (result.isCancelled() && attempt != null) {
+                    attempt.cancel(true);
+                }
+            });
+        }
+
+        private void schedule(int attempt, long previousWait, Throwable lastError) {
+            if (result.isDone()) {
+                return;
+            }
+            if (attempt >= waits.size()) {
+                result.completeExceptionally(lastError);
+                return;
+            }
+            long wait = nextWait(attempt, previousWait);
+            if (attempt > 0) {
+                if (!mayRetry(attempt, wait, deadline)) {
+                    result.completeExceptionally(lastError);
+                    return;
+                }
+                metricsRecorder.recordValue(MetricsRecorder.RETRY_BACKOFF, wait);
+            }
+            current = scheduler.schedule(() -> attempt(attempt, wait, lastError), wait, TimeUnit.MILLISECONDS);
+        }
+
+        private void attempt(int attempt, long wait, Throwable lastError) {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                checkCircuit(lastError);
+            } catch (CircuitBreakerOpenException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+
+            attempts++;
+            CompletableFuture<T> outcome = new CompletableFuture<>();
+            outcome.whenComplete((value, error) -> {
+                if (error == null) {
+                    recordSuccess();
+                    result.complete(value);
+                } else if (error instanceof RuntimeException || error instanceof TimeoutException) {
+                    notifier.accept(attempt + 1, error);
+                    if (recordFailure(error)) {
+                        schedule(attempt + 1, wait, error);
+                    } else {
+                        result.completeExceptionally(error);
+                    }
+                } else {
+                    recordAbort();
+                    result.completeExceptionally(error);
+                }
+            });
+
+            FutureTask<T> task = new FutureTask<>(supplier::get);
+            ScheduledFuture<?> timeout = scheduleTimeout(attempt, outcome, task);
             try {
-                return supplier.get();
-            } catch (RuntimeException t) {
-                notifier.accept(i + 1, t);
-                lastException = t;
+                task.run();
+                outcome.complete(task.get());
+            } catch (ExecutionException e) {
+                outcome.completeExceptionally(e.getCause());
+            } catch (CancellationException e) {
+                // timed out: clear the interrupt so it does not leak into the next task of this thread
+                Thread.interrupted();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                outcome.completeExceptionally(e);
+            } finally {
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+            }
+        }
+
+        /**
+         * Fails the attempt once it times out and cancels its task, which interrupts the worker only if the attempt
+         * is still running. The thread itself is never interrupted: by the time the timer runs it may have moved on
+         * to the next attempt or to an unrelated task of the scheduler.
+         */
+        private ScheduledFuture<?> scheduleTimeout(int attempt, CompletableFuture<T> outcome, FutureTask<T> task) {
+            long remaining = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - clock.getAsLong();
+            long timeout = Math.min(attemptTimeoutMillis > 0 ? attemptTimeoutMillis : Long.MAX_VALUE, remaining);
+            if (timeout == Long.MAX_VALUE) {
+                return null;
             }
+            return scheduler.schedule(() -> {
+                if (outcome.completeExceptionally(new TimeoutException(
+                        String.format("Attempt %d did not complete in %d ms", attempt + 1, timeout)))) {
+                    task.cancel(true);
+                }
+            }, Math.max(0, timeout), TimeUnit.MILLISECONDS);
         }
-        throw lastException;
     }
 }
@@ -0,0 +1,290 @@
+package com.revinate.henicea.migration;
+
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.Token;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static com.google.common.util.concurrent.Uninterruptibles.awaitUninterruptibly;
+import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterruptibly;
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Fail.fail;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BackfillRunnerTest {
+
+    @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+    Session session;
+
+    @Mock
+    KeyspaceMetadata keyspace;
+
+    @Mock
+    TableMetadata table;
+
+    @Mock
+    TableMetadata checkpointTable;
+
+    @Mock
+    ResultSetFuture write;
+
+    @Mock
+    Statement copy;
+
+    PreparedStatements preparedStatements;
+
+    BackfillRunner runner;
+
+    Backfill backfill;
+
+    @Before
+    public void setUp() throws Exception {
+        preparedStatements = new PreparedStatements(session);
+        runner = new BackfillRunner(session, "test")
+                .usingPlanner(metadata -> Arrays.asList(new BackfillRange(0, "-10", "0"), new BackfillRange(1, "0", null)));
+        runner.setParallelism(1);
+        backfill = new Backfill("users_by_email", "users", row -> Collections.singletonList(copy));
+
+        Metadata metadata = session.getCluster().getMetadata();
+        when(metadata.getKeyspace("test")).thenReturn(keyspace);
+        when(metadata.newToken(anyString())).thenAnswer(invocation -> token((String) invocation.getArguments()[0]));
+        when(keyspace.getTable("users")).thenReturn(table);
+        when(keyspace.getTable("backfills")).thenReturn(checkpointTable);
+        ColumnMetadata id = column("id");
+        ColumnMetadata email = column("email");
+        when(table.getPartitionKey()).thenReturn(Collections.singletonList(id));
+        when(table.getColumns()).thenReturn(Arrays.asList(id, email));
+
+        when(session.executeAsync(any(Statement.class))).thenReturn(write);
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArguments()[0]).run();
+            return null;
+        }).when(write).addListener(any(Runnable.class), any());
+        stubCheckpoints();
+    }
+
+    @Test
+    public void run_shouldPlanRangesAndCheckpointEveryPage() throws Exception {
+        stubScan("SELECT token(id),id,email FROM test.users WHERE token(id)>? AND token(id)<=?;", "-5", "-3", "-1");
+        stubScan("SELECT token(id),id,email FROM test.users WHERE token(id)>?;", "7");
+
+        assertThat(runner.run(backfill)).isEqualTo(4);
+
+        verify(session, times(4)).executeAsync(copy);
+        assertThat(executed()).containsSubsequence(
+                "INSERT INTO test.backfills (name,range_id,range_start,range_end,done,updated_at) VALUES (?,?,?,?,false,dateOf(now())); [users_by_email, 0, -10, 0]",
+                "INSERT INTO test.backfills (name,range_id,range_start,range_end,done,updated_at) VALUES (?,?,?,?,false,dateOf(now())); [users_by_email, 1, 0, null]",
+                "SELECT token(id),id,email FROM test.users WHERE token(id)>? AND token(id)<=?; [-10, 0]",
+                "UPDATE test.backfills SET position=?,updated_at=dateOf(now()) WHERE name=? AND range_id=?; [-3, users_by_email, 0]",
+                "UPDATE test.backfills SET position=?,done=true,updated_at=dateOf(now()) WHERE name=? AND range_id=?; [-1, users_by_email, 0]",
+                "SELECT token(id),id,email FROM test.users WHERE token(id)>?; [0]",
+                "UPDATE test.backfills SET position=?,done=true,updated_at=dateOf(now()) WHERE name=? AND range_id=?; [7, users_by_email, 1]");
+    }
+
+    @Test
+    public void run_shouldResumeFromCheckpointAndSkipFinishedRanges() throws Exception {
+        stubCheckpoints(new BackfillRange(0, "-10", "0", "0", true), new BackfillRange(1, "0", null, "5", false));
+        stubScan("SELECT token(id),id,email FROM test.users WHERE token(id)>=?;", "5", "9");
+
+        assertThat(runner.run(backfill)).isEqualTo(2);
+
+        assertThat(executed())
+                .doesNotContain("SELECT token(id),id,email FROM test.users WHERE token(id)>? AND token(id)<=?; [-10, 0]")
+                .contains("SELECT token(id),id,email FROM test.users WHERE token(id)>=?; [5]")
+                .filteredOn(cql -> cql.startsWith("INSERT INTO test.backfills"))
+                .isEmpty();
+    }
+
+    @Test
+    public void run_shouldReadSelectedColumns() throws Exception {
+        stubScan("SELECT token(id),email FROM test.users WHERE token(id)>? AND token(id)<=?;", "-5");
+        stubScan("SELECT token(id),email FROM test.users WHERE token(id)>?;");
+
+        runner.run(new Backfill("emails", "users", Collections.singletonList("email"), row -> Collections.emptyList()));
+
+        assertThat(executed()).contains("SELECT token(id),email FROM test.users WHERE token(id)>? AND token(id)<=?; [-10, 0]");
+        verify(session, never()).executeAsync(copy);
+    }
+
+    @Test
+    public void run_shouldKeepCheckpointWhenWriteFails() throws Exception {
+        stubScan("SELECT token(id),id,email FROM test.users WHERE token(id)>? AND token(id)<=?;", "-5");
+        when(write.getUninterruptibly()).thenThrow(new InvalidQueryException("unit test"));
+
+        try {
+            runner.run(backfill);
+            fail("Expected exception");
+        } catch (InvalidQueryException ignored) {
+        }
+
+        assertThat(executed()).filteredOn(cql -> cql.contains("done=true")).isEmpty();
+    }
+
+    @Test
+    public void run_shouldStopOtherScansBeforeRethrowing() throws Exception {
+        stubScan("SELECT token(id),id,email FROM test.users WHERE token(id)>? AND token(id)<=?;", "-5");
+        stubScan("SELECT token(id),id,email FROM test.users WHERE token(id)>?;", "1", "2", "3");
+        CountDownLatch scanning = new CountDownLatch(1);
+        List<String> transformed = new CopyOnWriteArrayList<>();
+        runner.setParallelism(2);
+
+        try {
+            runner.run(new Backfill("users_by_email", "users", row -> {
+                String token = row.getToken(0).toString();
+                transformed.add(token);
+                if (token.equals("-5")) {
+                    awaitUninterruptibly(scanning);
+                    throw new IllegalStateException("unit test");
+                }
+                scanning.countDown();
+                sleepUninterruptibly(200, TimeUnit.MILLISECONDS);
+                return Collections.singletonList(copy);
+            }));
+            fail("Expected exception");
+        } catch (IllegalStateException e) {
+            assertThat(e).hasMessage("unit test");
+        }
+
+        assertThat(transformed).containsOnly("-5", "1");
+        assertThat(executed()).filteredOn(cql -> cql.startsWith("UPDATE test.backfills")).isEmpty();
+        sleepUninterruptibly(50, TimeUnit.MILLISECONDS);
+        assertThat(transformed).hasSize(2);
+    }
+
+    @Test
+    public void run_shouldStopEarlierScansAsSoonAsALaterRangeFails() throws Exception {
+        stubScan("SELECT token(id),id,email FROM test.users WHERE token(id)>? AND token(id)<=?;", "-5", "-4", "-3");
+        stubScan("SELECT token(id),id,email FROM test.users WHERE token(id)>?;", "1");
+        CountDownLatch scanning = new CountDownLatch(1);
+        List<String> transformed = new CopyOnWriteArrayList<>();
+        runner.setParallelism(2);
+
+        try {
+            runner.run(new Backfill("users_by_email", "users", row -> {
+                String token = row.getToken(0).toString();
+                transformed.add(token);
+                if (token.equals("1")) {
+                    awaitUninterruptibly(scanning);
+                    throw new IllegalStateException("unit test");
+                }
+                scanning.countDown();
+                sleepUninterruptibly(200, TimeUnit.MILLISECONDS);
+                return Collections.singletonList(copy);
+            }));
+            fail("Expected exception");
+        } catch (IllegalStateException e) {
+            assertThat(e).hasMessage("unit test");
+        }
+
+        assertThat(transformed).containsOnly("-5", "1");
+        assertThat(executed()).filteredOn(cql -> cql.startsWith("UPDATE test.backfills")).isEmpty();
+    }
+
+    @Test
+    public void run_shouldCreateCheckpointTableWhenMissing() throws Exception {
+        when(keyspace.getTable("backfills")).thenReturn(null);
+        stubScan("SELECT token(id),id,email FROM test.users WHERE token(id)>? AND token(id)<=?;");
+        stubScan("SELECT token(id),id,email FROM test.users WHERE token(id)>?;");
+
+        runner.run(backfill);
+
+        verify(session).execute("CREATE TABLE IF NOT EXISTS test.backfills (name text, range_id int, range_start text, range_end text, position text, done boolean, updated_at timestamp, PRIMARY KEY (name, range_id))");
+    }
+
+    @Test
+    public void run_shouldFailForUnknownTable() throws Exception {
+        try {
+            runner.run(new Backfill("orders_by_day", "orders", row -> Collections.emptyList()));
+            fail("Expected exception");
+        } catch (IllegalArgumentException e) {
+            assertThat(e).hasMessage("Table test.orders of backfill orders_by_day does not exist");
+        }
+    }
+
+    private List<String> executed() {
+        ArgumentCaptor<Statement> sync = ArgumentCaptor.forClass(Statement.class);
+        ArgumentCaptor<Statement> async = ArgumentCaptor.forClass(Statement.class);
+        verify(session, atLeast(0)).execute(sync.capture());
+        verify(session, atLeast(0)).executeAsync(async.capture());
+        return Stream.concat(async.getAllValues().stream(), sync.getAllValues().stream())
+                .map(preparedStatements::describe)
+                .collect(toList());
+    }
+
+    private void stubCheckpoints(BackfillRange... ranges) {
+        ResultSet resultSet = mock(ResultSet.class);
+        List<Row> rows = Stream.of(ranges).map(range -> {
+            Row row = mock(Row.class);
+            when(row.getInt("range_id")).thenReturn(range.getId());
+            when(row.getString("range_start")).thenReturn(range.getStart());
+            when(row.getString("range_end")).thenReturn(range.getEnd());
+            when(row.getString("position")).thenReturn(range.getPosition());
+            when(row.getBool("done")).thenReturn(range.isDone());
+            return row;
+        }).collect(toList());
+        when(resultSet.iterator()).thenReturn(rows.iterator());
+        when(session.execute(preparedStatements.<Statement>startsWith("SELECT range_id"))).thenReturn(resultSet);
+    }
+
+    /**
+     * Stubs a scan returning rows with the given tokens in pages of two rows.
+     */
+    private void stubScan(String query, String... tokens) {
+        ResultSet resultSet = mock(ResultSet.class);
+        List<Row> rows = Stream.of(tokens).map(value -> {
+            Row row = mock(Row.class);
+            Token token = token(value);
+            when(row.getToken(0)).thenReturn(token);
+            return row;
+        }).collect(toList());
+        when(resultSet.iterator()).thenReturn(rows.iterator());
+        Integer[] available = new Integer[tokens.length];
+        Boolean[] fullyFetched = new Boolean[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            available[i] = i % 2 == 0 && i + 1 < tokens.length ? 1 : 0;
+            fullyFetched[i] = i + 2 >= tokens.length;
+        }
+        if (tokens.length > 0) {
+            when(resultSet.getAvailableWithoutFetching()).thenReturn(available[0], Arrays.copyOfRange(available, 1, available.length));
+            when(resultSet.isFullyFetched()).thenReturn(fullyFetched[0], Arrays.copyOfRange(fullyFetched, 1, fullyFetched.length));
+        }
+        when(session.execute(preparedStatements.<Statement>startsWith(query))).thenReturn(resultSet);
+    }
+
+    private static Token token(String value) {
+        Token token = mock(Token.class);
+        when(token.getValue()).thenReturn(Long.parseLong(value));
+        when(token.toString()).thenReturn(value);
+        return token;
+    }
+
+    private static ColumnMetadata column(String name) {
+        ColumnMetadata column = mock(ColumnMetadata.class);
+        when(column.getName()).thenReturn(name);
+        return column;
+    }
+}
@@ -0,0 +1,97 @@
+package com.revinate.henicea.migration;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Iterator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Fail.fail;
+
+public class CqlSplitterTest {
+
+    @Test
+    public void split_shouldKeepSingleStatementWithoutSeparator() throws Exception {
+        assertThat(CqlSplitter.split("create table foo (id uuid PRIMARY KEY)"))
+                .containsExactly("create table foo (id uuid PRIMARY KEY)");
+    }
+
+    @Test
+    public void split_shouldSplitOnSemicolonsAndTrim() throws Exception {
+        assertThat(CqlSplitter.split("create table foo (id uuid PRIMARY KEY);\n\n  insert into foo (id) values (now()) ;\n"))
+                .containsExactly("create table foo (id uuid PRIMARY KEY)", "insert into foo (id) values (now())");
+    }
+
+    @Test
+    public void split_shouldIgnoreSemicolonsInCommentsAndLiterals() throws Exception {
+        assertThat(CqlSplitter.split(
+                "-- depends: 001_foo.cql; 002_bar.cql\n" +
+                        "insert into foo (id, text) values (1, 'a;b''c;');\n" +
+                        "/* block; comment */ insert into \"Foo;\" (id) values (2);\n" +
+                        "// line; comment\n" +
+                        "create function f (x int) called on null input returns int language java as $$ return x; $$;"))
+                .containsExactly(
+                        "-- depends: 001_foo.cql; 002_bar.cql\ninsert into foo (id, text) values (1, 'a;b''c;')",
+                        "/* block; comment */ insert into \"Foo;\" (id) values (2)",
+                        "// line; comment\ncreate function f (x int) called on null input returns int language java as $$ return x; $$");
+    }
+
+    @Test
+    public void split_shouldDropPartsWithOnlyComments() throws Exception {
+        assertThat(CqlSplitter.split(";; -- nothing here\ncreate table foo (id uuid PRIMARY KEY);\n/* trailing */\n-- end"))
+                .containsExactly("-- nothing here\ncreate table foo (id uuid PRIMARY KEY)");
+        assertThat(CqlSplitter.split("-- only a comment")).isEmpty();
+    }
+
+    @Test
+    public void split_shouldFailOnUnterminatedLiteral() throws Exception {
+        try {
+            CqlSplitter.split("insert into foo (id, text) values (1, 'oops);");
+            fail("Expected exception");
+        } catch (IllegalArgumentException e) {
+            assertThat(e).hasMessage("Unterminated string literal in CQL script");
+        }
+    }
+
+    @Test
+    public void iterator_shouldReadLazily() throws Exception {
+        CountingReader reader = new CountingReader("insert into foo (id) values (1);insert into foo (id) values (2);");
+        Iterator<String> statements = new CqlSplitter(reader);
+
+        assertThat(statements.next()).isEqualTo("insert into foo (id) values (1)");
+        assertThat(reader.read).isLessThanOrEqualTo(33);
+        assertThat(statements.next()).isEqualTo("insert into foo (id) values (2)");
+        assertThat(statements.hasNext()).isFalse();
+    }
+
+    private static class CountingReader extends Reader {
+
+        private final StringReader reader;
+        private int read;
+
+        private CountingReader(String content) {
+            this.reader = new StringReader(content);
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            int count = reader.read(buffer, offset, length);
+            read += Math.max(count, 0);
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = reader.read();
+            read += c == -1 ? 0 : 1;
+            return c;
+        }
+
+        @Override
+        public void close() {
+            reader.close();
+        }
+    }
+}
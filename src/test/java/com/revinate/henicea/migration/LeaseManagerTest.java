@@ -0,0 +1,136 @@
+package com.revinate.henicea.migration;
+
+import com.codahale.metrics.MetricRegistry;
+import com.revinate.henicea.util.DropwizardMetricsRecorder;
+import com.revinate.henicea.util.MetricsRecorder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.util.Lists.newArrayList;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LeaseManagerTest {
+
+    @Mock
+    MigrationClient client;
+
+    @Test
+    public void acquire_shouldRenewLeaseUntilClosed() throws Exception {
+        when(client.acquireLock()).thenReturn(true);
+        when(client.renewLock()).thenReturn(true);
+
+        try (LeaseManager.Lease lease = new LeaseManager(client, 10, 0, MetricsRecorder.NONE).acquire(() -> true).get()) {
+            verify(client, timeout(1000).atLeast(2)).renewLock();
+            assertThat(lease.isLost()).isFalse();
+        }
+
+        verify(client, times(1)).releaseLock();
+    }
+
+    @Test
+    public void acquire_shouldFlagLeaseAsLostWhenRenewalFails() throws Exception {
+        when(client.acquireLock()).thenReturn(true);
+        when(client.renewLock()).thenReturn(false);
+
+        try (LeaseManager.Lease lease = new LeaseManager(client, 10, 0, MetricsRecorder.NONE).acquire(() -> true).get()) {
+            verify(client, timeout(1000)).renewLock();
+            TimeUnit.MILLISECONDS.sleep(50);
+
+            assertThat(lease.isLost()).isTrue();
+            assertThatThrownBy(lease::checkHeld).isInstanceOf(IllegalStateException.class);
+        }
+    }
+
+    @Test
+    public void acquire_shouldKeepLeaseWhileRenewalErrorsAreWithinExpiry() throws Exception {
+        when(client.acquireLock()).thenReturn(true);
+        when(client.renewLock()).thenThrow(new IllegalStateException("unit test"));
+
+        try (LeaseManager.Lease lease = new LeaseManager(client, 10, 0, MetricsRecorder.NONE).acquire(() -> true).get()) {
+            verify(client, timeout(1000).atLeast(2)).renewLock();
+
+            assertThat(lease.isLost()).isFalse();
+        }
+    }
+
+    @Test
+    public void acquire_shouldFlagLeaseAsLostWhenNotRenewedBeforeExpiry() throws Exception {
+        when(client.acquireLock()).thenReturn(true);
+        when(client.renewLock()).thenThrow(new IllegalStateException("unit test"));
+
+        try (LeaseManager.Lease lease = new LeaseManager(client, 10, 0, MetricsRecorder.NONE)
+                .usingExpiry(30)
+                .acquire(() -> true).get()) {
+            TimeUnit.MILLISECONDS.sleep(100);
+
+            assertThat(lease.isLost()).isTrue();
+            assertThatThrownBy(lease::checkHeld).isInstanceOf(IllegalStateException.class);
+            int renewals = mockingDetails(client).getInvocations().size();
+            TimeUnit.MILLISECONDS.sleep(50);
+            assertThat(mockingDetails(client).getInvocations()).hasSize(renewals);
+        }
+    }
+
+    @Test
+    public void acquire_shouldWaitWithBackoffUntilReleased() throws Exception {
+        List<Long> waits = newArrayList();
+        when(client.acquireLock()).thenReturn(false, true);
+        when(client.isLocked()).thenReturn(true, true, true, false);
+
+        Optional<LeaseManager.Lease> lease = new LeaseManager(client, 60000, 60000, MetricsRecorder.NONE)
+                .usingWaitFunction(waits::add)
+                .acquire(() -> true);
+
+        assertThat(lease).isPresent();
+        assertThat(waits).hasSize(4);
+        assertThat(waits.get(0)).isBetween(250L, 500L);
+        assertThat(waits.get(3)).isBetween(2000L, 4000L);
+        lease.get().close();
+    }
+
+    @Test
+    public void acquire_shouldRecordContentionAndHoldTime() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        when(client.acquireLock()).thenReturn(false, false, true);
+        when(client.isLocked()).thenReturn(false);
+
+        Optional<LeaseManager.Lease> lease = new LeaseManager(client, 60000, 60000, new DropwizardMetricsRecorder(registry))
+                .usingWaitFunction(wait -> {
+                })
+                .acquire(() -> true);
+        lease.get().close();
+
+        assertThat(registry.counter(MetricsRecorder.LOCK_CONTENTION).getCount()).isEqualTo(2);
+        assertThat(registry.timer(MetricsRecorder.LOCK_HOLD).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void acquire_shouldReturnEmptyWhenNothingIsLeftAfterWaiting() throws Exception {
+        when(client.acquireLock()).thenReturn(false);
+        when(client.isLocked()).thenReturn(false);
+
+        assertThat(new LeaseManager(client, 60000, 60000, MetricsRecorder.NONE).usingWaitFunction(i -> {
+        }).acquire(() -> false)).isEmpty();
+        verify(client, times(1)).acquireLock();
+    }
+
+    @Test
+    public void acquire_shouldFailAfterWaitTimeout() throws Exception {
+        when(client.acquireLock()).thenReturn(false);
+        when(client.isLocked()).thenReturn(true);
+
+        assertThatThrownBy(() -> new LeaseManager(client, 60000, 1, MetricsRecorder.NONE)
+                .acquire(() -> true))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("not released");
+    }
+}
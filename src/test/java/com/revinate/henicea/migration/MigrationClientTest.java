@@ -1,40 +1,74 @@
 package com.revinate.henicea.migration;
 
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
+import com.datastax.driver.core.QueryTrace;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TableMetadata;
 import com.datastax.driver.core.exceptions.InvalidQueryException;
-import com.datastax.driver.core.querybuilder.BuiltStatement;
-import com.datastax.driver.core.querybuilder.Insert;
-import org.assertj.core.api.Condition;
-import org.hamcrest.CustomMatcher;
+import com.revinate.henicea.util.DropwizardMetricsRecorder;
+import com.revinate.henicea.util.MetricsRecorder;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.Answers;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.assertj.core.api.Assertions.atIndex;
+import static org.assertj.core.api.Assertions.entry;
+import static java.util.stream.Collectors.toList;
 import static org.assertj.core.api.Fail.fail;
 import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
 public class MigrationClientTest {
 
+    private static final String CHECKSUM = "683215648e746e7a7420fdb5a30db03c636a4450f0b6fbcd08a02b905704920b";
+
     @Mock
     Session session;
 
+    @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+    Cluster cluster;
+
+    PreparedStatements preparedStatements;
+
+    AtomicLong nanoClock = new AtomicLong();
+
     MigrationClient client;
 
     @Before
     public void setUp() throws Exception {
-        client = new DefaultMigrationClient(session, "test", "unit-test-runner");
+        preparedStatements = new PreparedStatements(session);
+        client = new DefaultMigrationClient(session, "test", "unit-test-runner").usingClock(nanoClock::get);
+        when(session.getCluster()).thenReturn(cluster);
+        when(cluster.getMetadata().getKeyspace("test")).thenReturn(null);
+        when(cluster.getMetadata().checkSchemaAgreement()).thenReturn(true);
     }
 
     @Test
@@ -44,12 +78,11 @@ public class MigrationClientTest {
         ArgumentCaptor<String> statementCaptor = ArgumentCaptor.forClass(String.class);
         verify(session, atLeastOnce()).execute(statementCaptor.capture());
         assertThat(statementCaptor.getAllValues())
-                .hasSize(4)
-                .containsSequence(
+                .containsExactly(
                         "CREATE KEYSPACE IF NOT EXISTS test WITH replication = {'class': 'SimpleStrategy', 'replication_factor': 1}",
-                        "USE test",
                         "CREATE TABLE IF NOT EXISTS test.leases (name text PRIMARY KEY, owner text, value text) with default_time_to_live = 180",
-                        "CREATE TABLE IF NOT EXISTS test.migrations (name text PRIMARY KEY, created_at timestamp, status text, statement text, reason text)"
+                        "CREATE TABLE IF NOT EXISTS test.migrations (name text PRIMARY KEY, created_at timestamp, status text, statement text, reason text, checksum text, progress int, duration_ms bigint, schema_agreement_ms bigint, coordinator text, trace_id uuid)",
+                        "CREATE TABLE IF NOT EXISTS test.fingerprints (name text PRIMARY KEY, value text, updated_at timestamp)"
                 );
     }
 
@@ -65,47 +98,242 @@ public class MigrationClientTest {
     }
 
     @Test
-    public void acquireLock_shouldReturnTrueIfInsertSucceeds() throws Exception {
-        ResultSet leaseResultSet = mock(ResultSet.class);
+    public void init_shouldNotSendStatementsWhenSchemaExists() throws Exception {
+        KeyspaceMetadata keyspace = stubKeyspace("leases", "migrations", "fingerprints");
+        stubColumns(keyspace.getTable("migrations"), "checksum", "progress", "duration_ms", "schema_agreement_ms",
+                "coordinator", "trace_id");
 
-        when(session.execute(argThat(new CustomMatcher<Insert>("Get lease insert statement") {
-            @Override
-            public boolean matches(Object item) {
-                String cql = item.toString();
-                return cql.startsWith("INSERT INTO test.leases") && cql.contains("VALUES ('migration',");
-            }
-        }))).thenReturn(leaseResultSet);
-        when(leaseResultSet.wasApplied()).thenReturn(true);
+        client.init(Optional.empty());
+
+        verify(session, never()).execute(anyString());
+    }
+
+    @Test
+    public void init_shouldOnlyCreateMissingTables() throws Exception {
+        KeyspaceMetadata keyspace = stubKeyspace("leases", "migrations");
+        stubColumns(keyspace.getTable("migrations"), "checksum", "progress", "duration_ms", "schema_agreement_ms",
+                "coordinator", "trace_id");
+
+        client.init(Optional.empty());
+
+        ArgumentCaptor<String> statementCaptor = ArgumentCaptor.forClass(String.class);
+        verify(session, times(1)).execute(statementCaptor.capture());
+        assertThat(statementCaptor.getValue())
+                .isEqualTo("CREATE TABLE IF NOT EXISTS test.fingerprints (name text PRIMARY KEY, value text, updated_at timestamp)");
+    }
+
+    @Test
+    public void init_shouldAddChecksumColumnToOldMigrationsTable() throws Exception {
+        stubKeyspace("leases", "migrations", "fingerprints");
+
+        client.init(Optional.empty());
+
+        verify(session, times(1)).execute("ALTER TABLE test.migrations ADD checksum text");
+    }
+
+    @Test
+    public void init_shouldAddProgressColumnToOldMigrationsTable() throws Exception {
+        KeyspaceMetadata keyspace = stubKeyspace("leases", "migrations", "fingerprints");
+        stubColumns(keyspace.getTable("migrations"), "checksum", "duration_ms", "schema_agreement_ms", "coordinator",
+                "trace_id");
+
+        client.init(Optional.empty());
+
+        ArgumentCaptor<String> statementCaptor = ArgumentCaptor.forClass(String.class);
+        verify(session, times(1)).execute(statementCaptor.capture());
+        assertThat(statementCaptor.getValue()).isEqualTo("ALTER TABLE test.migrations ADD progress int");
+    }
+
+    @Test
+    public void init_shouldIgnoreExistingChecksumColumn() throws Exception {
+        stubKeyspace("leases", "migrations", "fingerprints");
+        when(session.execute("ALTER TABLE test.migrations ADD checksum text"))
+                .thenThrow(new InvalidQueryException("Invalid column name checksum because it conflicts with an existing column"));
+
+        client.init(Optional.empty());
+    }
+
+    @Test
+    public void runMigration_shouldApplyStatementsInOrderAndRecordProgress() throws Exception {
+        ResultSet migrationResultSet = appliedResultSet();
+        when(session.execute(anyString())).thenReturn(migrationResultSet);
+        stubProgress(null, null);
+
+        client.runMigration(new Migration("001_users.cql",
+                "create table users (id uuid PRIMARY KEY, email text);\ncreate index on users (email);"));
+
+        ArgumentCaptor<String> cql = ArgumentCaptor.forClass(String.class);
+        verify(session, atLeastOnce()).execute(cql.capture());
+        assertThat(cql.getAllValues()).containsSubsequence(
+                "create table users (id uuid PRIMARY KEY, email text)", "create index on users (email)");
+
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session, atLeastOnce()).execute(captor.capture());
+        assertThat(preparedStatements.describe(captor.getAllValues()))
+                .containsSubsequence(
+                        "UPDATE test.migrations SET progress=? WHERE name=?; [1, 001_users.cql]",
+                        "UPDATE test.migrations SET progress=? WHERE name=?; [2, 001_users.cql]",
+                        "UPDATE test.migrations SET status=?,reason=?,duration_ms=?,schema_agreement_ms=?,coordinator=?,trace_id=? WHERE name=?; [APPLIED, null, 0, 0, 10.0.0.1, null, 001_users.cql]");
+    }
+
+    @Test
+    public void runMigration_shouldResumeAfterLastAppliedStatement() throws Exception {
+        Migration migration = new Migration("001_users.cql",
+                "create table users (id uuid PRIMARY KEY, email text);\ncreate index on users (email);");
+        ResultSet migrationResultSet = appliedResultSet();
+        when(session.execute(anyString())).thenReturn(migrationResultSet);
+        stubProgress(migration.getChecksum(), 1);
+
+        client.runMigration(migration);
+
+        verify(session, never()).execute("create table users (id uuid PRIMARY KEY, email text)");
+        verify(session, times(1)).execute("create index on users (email)");
+    }
+
+    @Test
+    public void runMigration_shouldStartOverWhenFileWasEditedAfterFailure() throws Exception {
+        ResultSet migrationResultSet = appliedResultSet();
+        when(session.execute(anyString())).thenReturn(migrationResultSet);
+        stubProgress("stale", 1);
+
+        client.runMigration(new Migration("001_users.cql",
+                "create table users (id uuid PRIMARY KEY, email text);\ncreate index on users (email);"));
+
+        verify(session, times(1)).execute("create table users (id uuid PRIMARY KEY, email text)");
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session, atLeastOnce()).execute(captor.capture());
+        assertThat(preparedStatements.describe(captor.getAllValues()))
+                .contains("UPDATE test.migrations SET progress=? WHERE name=?; [0, 001_users.cql]");
+    }
+
+    @Test
+    public void runMigration_shouldKeepProgressOfFailedStatement() throws Exception {
+        ResultSet migrationResultSet = appliedResultSet();
+        when(session.execute(anyString())).thenReturn(migrationResultSet);
+        when(session.execute("create index on users (email)")).thenThrow(new InvalidQueryException("unit test"));
+        stubProgress(null, null);
+
+        try {
+            client.runMigration(new Migration("001_users.cql",
+                    "create table users (id uuid PRIMARY KEY, email text);\ncreate index on users (email);"));
+            fail("Expected exception");
+        } catch (InvalidQueryException ignored) {
+        }
+
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session, atLeastOnce()).execute(captor.capture());
+        assertThat(preparedStatements.describe(captor.getAllValues()))
+                .contains("UPDATE test.migrations SET progress=? WHERE name=?; [1, 001_users.cql]",
+                        "UPDATE test.migrations SET status=?,reason=?,duration_ms=?,schema_agreement_ms=?,coordinator=?,trace_id=? WHERE name=?; [FAILED, unit test, 0, 0, 10.0.0.1, null, 001_users.cql]")
+                .doesNotContain("UPDATE test.migrations SET progress=? WHERE name=?; [2, 001_users.cql]");
+    }
+
+    @Test
+    public void runMigration_shouldSwitchToKeyspaceOnlyWhenNotInUse() throws Exception {
+        ResultSet migrationResultSet = appliedResultSet();
+        when(session.execute(anyString())).thenReturn(migrationResultSet);
+
+        client.runMigration(new Migration("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"));
+        when(session.getLoggedKeyspace()).thenReturn("test");
+        client.runMigration(new Migration("002_bar.cql", "create table bar (id uuid PRIMARY KEY)"));
+
+        verify(session, times(1)).execute("USE test");
+    }
+
+    @Test
+    public void acquireLock_shouldReturnTrueIfInsertSucceeds() throws Exception {
+        stubLeaseRead(null);
+        stubResult("INSERT INTO test.leases (name,owner) VALUES (?,?) IF NOT EXISTS; [migration, unit-test-runner]", true);
 
         assertThat(client.acquireLock()).isTrue();
     }
 
     @Test
     public void acquireLock_shouldReturnFalseIfInsertFails() throws Exception {
-        ResultSet leaseResultSet = mock(ResultSet.class);
+        stubLeaseRead(null);
+        stubResult("INSERT INTO test.leases", false);
 
-        when(session.execute(argThat(new CustomMatcher<Insert>("Get lease insert statement") {
-            @Override
-            public boolean matches(Object item) {
-                String cql = item.toString();
-                return cql.startsWith("INSERT INTO test.leases") && cql.contains("VALUES ('migration',");
-            }
-        }))).thenReturn(leaseResultSet);
-        when(leaseResultSet.wasApplied()).thenReturn(false);
+        assertThat(client.acquireLock()).isFalse();
+    }
+
+    @Test
+    public void acquireLock_shouldSkipPaxosWhenLeaseIsHeld() throws Exception {
+        stubLeaseRead(mock(Row.class));
 
         assertThat(client.acquireLock()).isFalse();
+
+        verify(session, never()).execute(preparedStatements.<Statement>startsWith("INSERT INTO test.leases"));
+    }
+
+    @Test
+    public void acquireLock_shouldUseConfiguredSerialConsistency() throws Exception {
+        stubLeaseRead(null);
+        stubResult("INSERT INTO test.leases", true);
+
+        ((DefaultMigrationClient) client).setSerialConsistencyLevel(ConsistencyLevel.LOCAL_SERIAL);
+        client.acquireLock();
+
+        ArgumentCaptor<BoundStatement> captor = ArgumentCaptor.forClass(BoundStatement.class);
+        verify(session, times(2)).execute(captor.capture());
+        verify(captor.getAllValues().get(1)).setSerialConsistencyLevel(ConsistencyLevel.LOCAL_SERIAL);
+        verify(captor.getAllValues().get(0), never()).setSerialConsistencyLevel(any());
+    }
+
+    @Test
+    public void acquireLock_shouldUseConfiguredConsistencyPerQuery() throws Exception {
+        stubLeaseRead(null);
+        stubResult("INSERT INTO test.leases", true);
+
+        ((DefaultMigrationClient) client).setConsistencyLevel(DefaultMigrationClient.Query.READ_LEASE, ConsistencyLevel.QUORUM);
+        client.acquireLock();
+
+        ArgumentCaptor<BoundStatement> captor = ArgumentCaptor.forClass(BoundStatement.class);
+        verify(session, times(2)).execute(captor.capture());
+        verify(captor.getAllValues().get(0)).setConsistencyLevel(ConsistencyLevel.QUORUM);
+        verify(captor.getAllValues().get(1), never()).setConsistencyLevel(any());
+    }
+
+    @Test
+    public void acquireLock_shouldPrepareStatementsOnlyOnce() throws Exception {
+        stubLeaseRead(null);
+        stubResult("INSERT INTO test.leases", false);
+
+        client.acquireLock();
+        client.acquireLock();
+        client.acquireLock();
+
+        assertThat(preparedStatements.prepareCount("SELECT owner FROM test.leases")).isEqualTo(1);
+        assertThat(preparedStatements.prepareCount("INSERT INTO test.leases")).isEqualTo(1);
+        verify(session, times(6)).execute(any(Statement.class));
     }
 
     @Test
     public void releaseLock_shouldDeleteLease() throws Exception {
         client.releaseLock();
 
-        ArgumentCaptor<BuiltStatement> captor = ArgumentCaptor.forClass(BuiltStatement.class);
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
         verify(session, times(1)).execute(captor.capture());
-        assertThat(captor.getAllValues())
-                .hasSize(1)
-                .extracting(BuiltStatement::toString)
-                .containsOnly("DELETE FROM test.leases WHERE name='migration' IF owner='unit-test-runner';");
+        assertThat(preparedStatements.describe(captor.getAllValues()))
+                .containsOnly("DELETE FROM test.leases WHERE name=? IF owner=?; [migration, unit-test-runner]");
+    }
+
+    @Test
+    public void renewLock_shouldResetTtlWhenStillOwner() throws Exception {
+        stubResult("UPDATE test.leases", true);
+
+        assertThat(client.renewLock()).isTrue();
+
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session, times(1)).execute(captor.capture());
+        assertThat(preparedStatements.describe(captor.getValue()))
+                .isEqualTo("UPDATE test.leases USING TTL 180 SET owner=? WHERE name=? IF owner=?; [unit-test-runner, migration, unit-test-runner]");
+    }
+
+    @Test
+    public void isLocked_shouldReadLeaseRow() throws Exception {
+        stubLeaseRead(mock(Row.class));
+
+        assertThat(client.isLocked()).isTrue();
     }
 
     @Test
@@ -113,13 +341,9 @@ public class MigrationClientTest {
         ResultSet appliedMigrationResultSet = mock(ResultSet.class);
         Row row = mock(Row.class);
 
-        when(session.execute(argThat(new CustomMatcher<Insert>("Get applied migrations") {
-            @Override
-            public boolean matches(Object item) {
-                return "SELECT name,status FROM test.migrations;".equals(item.toString());
-            }
-        }))).thenReturn(appliedMigrationResultSet);
-        when(appliedMigrationResultSet.all()).thenReturn(Collections.singletonList(row));
+        when(session.execute(preparedStatements.<Statement>startsWith("SELECT name,status FROM test.migrations;")))
+                .thenReturn(appliedMigrationResultSet);
+        when(appliedMigrationResultSet.iterator()).thenReturn(Collections.singletonList(row).iterator());
         when(row.getString(0)).thenReturn("001_initial_migration.cql");
         when(row.getString(1)).thenReturn("APPLIED");
 
@@ -132,13 +356,9 @@ public class MigrationClientTest {
         Row row1 = mock(Row.class);
         Row row2 = mock(Row.class);
 
-        when(session.execute(argThat(new CustomMatcher<Insert>("Get applied migrations") {
-            @Override
-            public boolean matches(Object item) {
-                return "SELECT name,status FROM test.migrations;".equals(item.toString());
-            }
-        }))).thenReturn(appliedMigrationResultSet);
-        when(appliedMigrationResultSet.all()).thenReturn(Arrays.asList(row1, row2));
+        when(session.execute(preparedStatements.<Statement>startsWith("SELECT name,status FROM test.migrations;")))
+                .thenReturn(appliedMigrationResultSet);
+        when(appliedMigrationResultSet.iterator()).thenReturn(Arrays.asList(row1, row2).iterator());
 
         when(row1.getString(0)).thenReturn("001_initial_migration.cql");
         when(row1.getString(1)).thenReturn("APPLIED");
@@ -148,46 +368,98 @@ public class MigrationClientTest {
         assertThat(client.getAppliedMigrations()).containsOnly("001_initial_migration.cql");
     }
 
+    @Test
+    public void getAppliedMigrations_shouldPageThroughTheHistory() throws Exception {
+        ResultSet appliedMigrationResultSet = mock(ResultSet.class);
+        when(session.execute(any(Statement.class))).thenReturn(appliedMigrationResultSet);
+        when(appliedMigrationResultSet.iterator()).thenReturn(Collections.<Row>emptyIterator());
+        ((DefaultMigrationClient) client).setFetchSize(250);
+
+        client.getAppliedMigrations();
+
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session).execute(captor.capture());
+        verify(captor.getValue()).setFetchSize(250);
+        verify(appliedMigrationResultSet, never()).all();
+    }
+
+    @Test
+    public void getAppliedMigrations_shouldLookUpCandidatesInBatches() throws Exception {
+        ResultSetFuture lookup = mock(ResultSetFuture.class);
+        ResultSet lookupResultSet = mock(ResultSet.class);
+        Row row = mock(Row.class);
+        when(session.executeAsync(any(Statement.class))).thenReturn(lookup);
+        when(lookup.getUninterruptibly()).thenReturn(lookupResultSet);
+        when(lookupResultSet.iterator())
+                .thenReturn(Collections.singletonList(row).iterator())
+                .thenReturn(Collections.<Row>emptyIterator());
+        when(row.getString(0)).thenReturn("042.cql");
+        when(row.getString(1)).thenReturn("APPLIED");
+        when(row.getString(2)).thenReturn("abc");
+
+        List<String> candidates = IntStream.range(0, 150).mapToObj(i -> String.format("%03d.cql", i)).collect(toList());
+
+        assertThat(client.getAppliedChecksums(candidates)).containsOnly(entry("042.cql", "abc"));
+
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session, times(2)).executeAsync(captor.capture());
+        assertThat(preparedStatements.describe(captor.getAllValues()))
+                .filteredOn(cql -> cql.startsWith("SELECT name,status,checksum FROM test.migrations WHERE name IN ?;"))
+                .hasSize(2);
+        verify(session, never()).execute(any(Statement.class));
+    }
+
     @Test
     public void runMigration_shouldApplyMigrationAndLog() throws Exception {
-        ResultSet migrationResultSet = mock(ResultSet.class);
+        ResultSet migrationResultSet = appliedResultSet();
         when(session.execute(anyString())).thenReturn(migrationResultSet);
-        when(migrationResultSet.wasApplied()).thenReturn(true);
 
         client.runMigration(new Migration("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"));
 
         verify(session, times(1)).execute("create table foo (id uuid PRIMARY KEY)");
 
-        ArgumentCaptor<BuiltStatement> captor = ArgumentCaptor.forClass(BuiltStatement.class);
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
         verify(session, times(2)).execute(captor.capture());
-        assertThat(captor.getAllValues())
-                .hasSize(2)
-                .extracting(BuiltStatement::toString)
-                .has(containsSubstr("INSERT INTO test.migrations"), atIndex(0))
-                .has(containsSubstr("'001_initial_migration.cql',dateOf(now()),'APPLYING','create table foo (id uuid PRIMARY KEY)')"), atIndex(0))
-                .has(containsSubstr("UPDATE test.migrations SET status='APPLIED'"), atIndex(1))
-                .has(containsSubstr("IF status IN ('APPLYING','FAILED')"), atIndex(1));
+        assertThat(preparedStatements.describe(captor.getAllValues()))
+                .containsExactly(
+                        "INSERT INTO test.migrations (name,created_at,status,statement,checksum) VALUES (?,dateOf(now()),?,?,?); [001_initial_migration.cql, APPLYING, create table foo (id uuid PRIMARY KEY), " + CHECKSUM + "]",
+                        "UPDATE test.migrations SET status=?,reason=?,duration_ms=?,schema_agreement_ms=?,coordinator=?,trace_id=? WHERE name=?; [APPLIED, null, 0, 0, 10.0.0.1, null, 001_initial_migration.cql]");
     }
 
     @Test
-    public void runMigration_shouldOverrideBrokenMigrations() throws Exception {
-        ResultSet migrationResultSet = mock(ResultSet.class);
+    @SuppressWarnings("deprecation")
+    public void runMigration_shouldStillCallDeprecatedStatusUpdateOverride() throws Exception {
+        ResultSet migrationResultSet = appliedResultSet();
         when(session.execute(anyString())).thenReturn(migrationResultSet);
-        when(migrationResultSet.wasApplied()).thenReturn(true);
+        List<String> statuses = new ArrayList<>();
+        client = new DefaultMigrationClient(session, "test", "unit-test-runner") {
+            @Override
+            protected void updateMigrationStatus(Migration migration, String status, Optional<String> reason) {
+                statuses.add(migration.getName() + " " + status);
+            }
+        };
 
         client.runMigration(new Migration("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"));
 
-        verify(session, times(1)).execute("create table foo (id uuid PRIMARY KEY)");
+        assertThat(statuses).containsExactly("001_initial_migration.cql APPLIED");
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session, times(1)).execute(captor.capture());
+        assertThat(preparedStatements.describe(captor.getValue())).startsWith("INSERT INTO test.migrations");
+    }
 
-        ArgumentCaptor<BuiltStatement> captor = ArgumentCaptor.forClass(BuiltStatement.class);
+    @Test
+    public void runMigration_shouldNotUseLightweightTransactionsForBookkeeping() throws Exception {
+        ResultSet migrationResultSet = appliedResultSet();
+        when(session.execute(anyString())).thenReturn(migrationResultSet);
+
+        client.runMigration(new Migration("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"));
+
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
         verify(session, times(2)).execute(captor.capture());
-        assertThat(captor.getAllValues())
+        assertThat(preparedStatements.describe(captor.getAllValues()))
                 .hasSize(2)
-                .extracting(BuiltStatement::toString)
-                .has(containsSubstr("INSERT INTO test.migrations"), atIndex(0))
-                .has(containsSubstr("IF NOT EXISTS"), atIndex(0))
-                .has(containsSubstr("UPDATE test.migrations SET status='APPLIED'"), atIndex(1))
-                .has(containsSubstr("IF status IN ('APPLYING','FAILED')"), atIndex(1));
+                .filteredOn(cql -> cql.contains(" IF "))
+                .isEmpty();
     }
 
     @Test
@@ -204,18 +476,203 @@ public class MigrationClientTest {
 
         verify(session, times(1)).execute(invalidMigrationStatement);
 
-        ArgumentCaptor<BuiltStatement> captor = ArgumentCaptor.forClass(BuiltStatement.class);
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
         verify(session, times(2)).execute(captor.capture());
-        assertThat(captor.getAllValues())
-                .hasSize(2)
-                .extracting(BuiltStatement::toString)
-                .has(containsSubstr("UPDATE test.migrations SET status='FAILED'"), atIndex(1))
-                .has(containsSubstr("reason='unit test'"), atIndex(1))
-                .has(containsSubstr("IF status IN ('APPLYING','FAILED')"), atIndex(1));
+        assertThat(preparedStatements.describe(captor.getAllValues().get(1)))
+                .isEqualTo("UPDATE test.migrations SET status=?,reason=?,duration_ms=?,schema_agreement_ms=?,coordinator=?,trace_id=? WHERE name=?; [FAILED, unit test, 0, 0, null, null, 001_initial_migration.cql]");
     }
 
-    private static Condition<String> containsSubstr(String expected) {
-        return new Condition<>((String s) -> s.contains(expected), "Contains substr " + expected);
+    @Test
+    public void runMigration_shouldRecordDurationAndCoordinatorOfSlowestStatement() throws Exception {
+        ResultSet fast = appliedResultSet();
+        ResultSet slow = appliedResultSet("10.0.0.2");
+        when(session.execute("create table users (id uuid PRIMARY KEY, email text)")).thenAnswer(invocation -> {
+            nanoClock.addAndGet(TimeUnit.MILLISECONDS.toNanos(30));
+            return fast;
+        });
+        when(session.execute("create index on users (email)")).thenAnswer(invocation -> {
+            nanoClock.addAndGet(TimeUnit.MILLISECONDS.toNanos(120));
+            return slow;
+        });
+        stubProgress(null, null);
+
+        client.runMigration(new Migration("001_users.cql",
+                "create table users (id uuid PRIMARY KEY, email text);\ncreate index on users (email);"));
+
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session, atLeastOnce()).execute(captor.capture());
+        assertThat(preparedStatements.describe(captor.getAllValues()))
+                .contains("UPDATE test.migrations SET status=?,reason=?,duration_ms=?,schema_agreement_ms=?,coordinator=?,trace_id=? WHERE name=?; [APPLIED, null, 150, 0, 10.0.0.2, null, 001_users.cql]");
+    }
+
+    @Test
+    public void runMigration_shouldMeasureSchemaAgreementWhenDriverDidNotWait() throws Exception {
+        ResultSet migrationResultSet = appliedResultSet();
+        when(migrationResultSet.getExecutionInfo().isSchemaInAgreement()).thenReturn(false);
+        when(session.execute(anyString())).thenReturn(migrationResultSet);
+        when(cluster.getMetadata().checkSchemaAgreement()).thenAnswer(invocation -> {
+            nanoClock.addAndGet(TimeUnit.MILLISECONDS.toNanos(40));
+            return true;
+        });
+
+        client.runMigration(new Migration("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"));
+
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session, times(2)).execute(captor.capture());
+        assertThat(preparedStatements.describe(captor.getAllValues().get(1)))
+                .isEqualTo("UPDATE test.migrations SET status=?,reason=?,duration_ms=?,schema_agreement_ms=?,coordinator=?,trace_id=? WHERE name=?; [APPLIED, null, 40, 40, 10.0.0.1, null, 001_initial_migration.cql]");
     }
 
-}
\ No newline at end of file
+    @Test
+    public void runMigration_shouldTraceStatementsWhenEnabled() throws Exception {
+        UUID traceId = UUID.fromString("4f0ac6a0-5a1e-11e6-8b77-86f30ca893d3");
+        QueryTrace trace = mock(QueryTrace.class);
+        when(trace.getTraceId()).thenReturn(traceId);
+        ResultSet migrationResultSet = appliedResultSet();
+        when(migrationResultSet.getExecutionInfo().getQueryTrace()).thenReturn(trace);
+        when(session.execute(any(SimpleStatement.class))).thenReturn(migrationResultSet);
+        ((DefaultMigrationClient) client).setTracing(true);
+
+        client.runMigration(new Migration("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"));
+
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session, times(3)).execute(captor.capture());
+        Statement traced = captor.getAllValues().get(1);
+        assertThat(traced.isTracing()).isTrue();
+        assertThat(((SimpleStatement) traced).getQueryString()).isEqualTo("create table foo (id uuid PRIMARY KEY)");
+        assertThat(preparedStatements.describe(captor.getAllValues().get(2)))
+                .endsWith("[APPLIED, null, 0, 0, 10.0.0.1, " + traceId + ", 001_initial_migration.cql]");
+    }
+
+    @Test
+    public void runMigration_shouldRecordTimeAndFailures() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        client.setMetricsRecorder(new DropwizardMetricsRecorder(registry));
+        ResultSet migrationResultSet = appliedResultSet();
+        when(session.execute(anyString())).thenReturn(migrationResultSet);
+        when(session.execute("invalid migration")).thenThrow(new InvalidQueryException("unit test"));
+
+        client.runMigration(new Migration("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"));
+        try {
+            client.runMigration(new Migration("002_invalid.cql", "invalid migration"));
+            fail("Expected exception");
+        } catch (InvalidQueryException ignored) {
+        }
+
+        assertThat(registry.timer(MetricsRecorder.MIGRATION).getCount()).isEqualTo(2);
+        assertThat(registry.counter(MetricsRecorder.MIGRATION_FAILURES).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void getSlowestMigrations_shouldReturnSlowestFirst() throws Exception {
+        ResultSet timings = mock(ResultSet.class);
+        List<Row> rows = Arrays.asList(timingRow("001_foo.cql", 5L), timingRow("002_old.cql", null),
+                timingRow("003_bar.cql", 300L), timingRow("004_baz.cql", 40L));
+        when(session.execute(preparedStatements.<Statement>startsWith(
+                "SELECT name,status,created_at,duration_ms,schema_agreement_ms,coordinator,trace_id FROM test.migrations;")))
+                .thenReturn(timings);
+        when(timings.iterator()).thenReturn(rows.iterator());
+
+        List<MigrationExecution> slowest = client.getSlowestMigrations(2);
+
+        assertThat(slowest).extracting(MigrationExecution::getName).containsExactly("003_bar.cql", "004_baz.cql");
+        assertThat(slowest.get(0).getDurationMillis()).isEqualTo(300L);
+        assertThat(slowest.get(0).getCoordinator()).isEqualTo("10.0.0.1");
+    }
+
+    @Test
+    public void getFingerprint_shouldReadStoredValue() throws Exception {
+        ResultSet fingerprintResultSet = mock(ResultSet.class);
+        Row row = mock(Row.class);
+
+        when(session.execute(preparedStatements.<Statement>startsWith(
+                "SELECT value FROM test.fingerprints WHERE name=?; [migration]"))).thenReturn(fingerprintResultSet);
+        when(fingerprintResultSet.one()).thenReturn(row);
+        when(row.getString(0)).thenReturn("abc123");
+
+        assertThat(client.getFingerprint()).contains("abc123");
+    }
+
+    @Test
+    public void getFingerprint_shouldBeEmptyWhenTableDoesNotExist() throws Exception {
+        reset(session);
+        when(session.prepare(any(com.datastax.driver.core.RegularStatement.class)))
+                .thenThrow(new InvalidQueryException("unconfigured table fingerprints"));
+
+        assertThat(client.getFingerprint()).isEmpty();
+    }
+
+    @Test
+    public void saveFingerprint_shouldUpsertValue() throws Exception {
+        client.saveFingerprint("abc123");
+
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session, times(1)).execute(captor.capture());
+        assertThat(preparedStatements.describe(captor.getValue()))
+                .isEqualTo("INSERT INTO test.fingerprints (name,value,updated_at) VALUES (?,?,dateOf(now())); [migration, abc123]");
+    }
+
+    private void stubLeaseRead(Row lease) {
+        ResultSet leaseReadResultSet = mock(ResultSet.class);
+        when(session.execute(preparedStatements.<Statement>startsWith("SELECT owner FROM test.leases WHERE name=?; [migration]")))
+                .thenReturn(leaseReadResultSet);
+        when(leaseReadResultSet.one()).thenReturn(lease);
+    }
+
+    private void stubResult(String statementPrefix, boolean applied) {
+        ResultSet resultSet = mock(ResultSet.class);
+        when(session.execute(preparedStatements.<Statement>startsWith(statementPrefix))).thenReturn(resultSet);
+        when(resultSet.wasApplied()).thenReturn(applied);
+    }
+
+    private ResultSet appliedResultSet() throws Exception {
+        return appliedResultSet("10.0.0.1");
+    }
+
+    private ResultSet appliedResultSet(String coordinator) throws Exception {
+        Host host = mock(Host.class);
+        when(host.getAddress()).thenReturn(InetAddress.getByName(coordinator));
+        ExecutionInfo executionInfo = mock(ExecutionInfo.class);
+        when(executionInfo.getQueriedHost()).thenReturn(host);
+        when(executionInfo.isSchemaInAgreement()).thenReturn(true);
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.wasApplied()).thenReturn(true);
+        when(resultSet.getExecutionInfo()).thenReturn(executionInfo);
+        return resultSet;
+    }
+
+    private Row timingRow(String name, Long durationMillis) {
+        Row row = mock(Row.class);
+        when(row.getString("name")).thenReturn(name);
+        when(row.getString("status")).thenReturn("APPLIED");
+        when(row.getTimestamp("created_at")).thenReturn(new Date());
+        when(row.isNull("duration_ms")).thenReturn(durationMillis == null);
+        when(row.getLong("duration_ms")).thenReturn(durationMillis == null ? 0 : durationMillis);
+        when(row.isNull("schema_agreement_ms")).thenReturn(true);
+        when(row.getString("coordinator")).thenReturn("10.0.0.1");
+        return row;
+    }
+
+    private KeyspaceMetadata stubKeyspace(String... tables) {
+        KeyspaceMetadata keyspace = mock(KeyspaceMetadata.class);
+        Arrays.stream(tables).forEach(table -> when(keyspace.getTable(table)).thenReturn(mock(TableMetadata.class)));
+        when(cluster.getMetadata().getKeyspace("test")).thenReturn(keyspace);
+        return keyspace;
+    }
+
+    private void stubColumns(TableMetadata table, String... columns) {
+        Arrays.stream(columns).forEach(column -> when(table.getColumn(column)).thenReturn(mock(ColumnMetadata.class)));
+    }
+
+    private void stubProgress(String checksum, Integer progress) {
+        ResultSet resultSet = mock(ResultSet.class);
+        when(session.execute(preparedStatements.<Statement>startsWith("SELECT checksum,progress FROM test.migrations")))
+                .thenReturn(resultSet);
+        if (progress != null) {
+            Row row = mock(Row.class);
+            when(resultSet.one()).thenReturn(row);
+            when(row.getString("checksum")).thenReturn(checksum);
+            when(row.getInt("progress")).thenReturn(progress);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.revinate.henicea.migration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static java.util.Collections.emptySet;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MigrationGraphTest {
+
+    ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void getDependencies_shouldReadHeaderComments() throws Exception {
+        Migration migration = new Migration("003_c.cql",
+                "-- depends: 001_a.cql, 002_b.cql\n// depends: 000_base.cql\ncreate table c (id uuid PRIMARY KEY)\n-- depends: ignored.cql");
+
+        assertThat(migration.getDependencies()).containsExactly("001_a.cql", "002_b.cql", "000_base.cql");
+    }
+
+    @Test
+    public void topologicalOrder_shouldKeepSortOrderWithoutDeclarations() throws Exception {
+        List<Migration> migrations = Arrays.asList(
+                new Migration("001_a.cql", "create table a (id uuid PRIMARY KEY)"),
+                new Migration("002_b.cql", "create table b (id uuid PRIMARY KEY)"),
+                new Migration("003_c.cql", "create table c (id uuid PRIMARY KEY)"));
+
+        assertThat(new MigrationGraph(migrations, emptySet()).topologicalOrder()).containsExactlyElementsOf(migrations);
+    }
+
+    @Test
+    public void topologicalOrder_shouldRespectDeclaredDependencies() throws Exception {
+        Migration a = new Migration("001_a.cql", "-- depends: 002_b.cql\ncreate table a (id uuid PRIMARY KEY)");
+        Migration b = new Migration("002_b.cql", "-- depends: 000_applied.cql\ncreate table b (id uuid PRIMARY KEY)");
+
+        assertThat(new MigrationGraph(Arrays.asList(a, b), Collections.singleton("000_applied.cql")).topologicalOrder())
+                .containsExactly(b, a);
+    }
+
+    @Test
+    public void constructor_shouldRejectUnknownDependencies() throws Exception {
+        Migration a = new Migration("001_a.cql", "-- depends: 000_missing.cql\ncreate table a (id uuid PRIMARY KEY)");
+
+        assertThatThrownBy(() -> new MigrationGraph(Collections.singletonList(a), emptySet()))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("000_missing.cql");
+    }
+
+    @Test
+    public void constructor_shouldRejectCycles() throws Exception {
+        Migration a = new Migration("001_a.cql", "-- depends: 002_b.cql\ncreate table a (id uuid PRIMARY KEY)");
+        Migration b = new Migration("002_b.cql", "-- depends: 001_a.cql\ncreate table b (id uuid PRIMARY KEY)");
+
+        assertThatThrownBy(() -> new MigrationGraph(Arrays.asList(a, b), emptySet()))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void run_shouldApplyIndependentMigrationsConcurrently() throws Exception {
+        Migration a = new Migration("001_a.cql", "-- depends: 000_base.cql\ncreate table a (id uuid PRIMARY KEY)");
+        Migration b = new Migration("002_b.cql", "-- depends: 000_base.cql\ncreate table b (id uuid PRIMARY KEY)");
+        Migration c = new Migration("003_c.cql", "create table c (id uuid PRIMARY KEY)");
+        CyclicBarrier bothStarted = new CyclicBarrier(2);
+        List<String> applied = new CopyOnWriteArrayList<>();
+
+        new MigrationGraph(Arrays.asList(a, b, c), Collections.singleton("000_base.cql")).run(executor, migration -> {
+            if (migration != c) {
+                try {
+                    bothStarted.await(5, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            applied.add(migration.getName());
+        });
+
+        assertThat(applied).hasSize(3).endsWith("003_c.cql");
+    }
+
+    @Test
+    public void run_shouldStopSchedulingAfterFailure() throws Exception {
+        Migration a = new Migration("001_a.cql", "create table a (id uuid PRIMARY KEY)");
+        Migration b = new Migration("002_b.cql", "create table b (id uuid PRIMARY KEY)");
+        List<String> applied = new CopyOnWriteArrayList<>();
+
+        assertThatThrownBy(() -> new MigrationGraph(Arrays.asList(a, b), emptySet()).run(executor, migration -> {
+            if (migration == a) {
+                throw new IllegalArgumentException("unit test");
+            }
+            applied.add(migration.getName());
+        })).isInstanceOf(IllegalArgumentException.class).hasMessage("unit test");
+
+        assertThat(applied).isEmpty();
+    }
+}
@@ -0,0 +1,79 @@
+package com.revinate.henicea.migration;
+
+import org.junit.Test;
+import org.springframework.core.io.Resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Comparator.comparing;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Fail.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MigrationLoaderTest {
+
+    MigrationLoader loader = new MigrationLoader(comparing(Resource::getFilename), 4);
+
+    @Test
+    public void load_shouldSortByComparator() throws Exception {
+        List<Migration> migrations = loader.load(
+                resource("003_c.cql", "create table c (id uuid PRIMARY KEY)".getBytes(UTF_8)),
+                resource("001_a.cql", "create table a (id uuid PRIMARY KEY)".getBytes(UTF_8)),
+                resource("002_b.cql", "create table b (id uuid PRIMARY KEY)".getBytes(UTF_8)));
+
+        assertThat(migrations).extracting(Migration::getName).containsExactly("001_a.cql", "002_b.cql", "003_c.cql");
+    }
+
+    @Test
+    public void load_shouldReadUtf8AndComputeChecksum() throws Exception {
+        String statement = "insert into greetings (id, text) values (1, 'ol\u00e1')";
+
+        List<Migration> migrations = loader.load(resource("001_a.cql", statement.getBytes(UTF_8)));
+
+        assertThat(migrations).containsExactly(new Migration("001_a.cql", statement));
+    }
+
+    @Test
+    public void load_shouldIgnoreMissingResources() throws Exception {
+        Resource missing = mock(Resource.class);
+
+        assertThat(loader.load(missing, resource("001_a.cql", "select now() from system.local".getBytes(UTF_8))))
+                .hasSize(1);
+    }
+
+    @Test
+    public void load_shouldFailOnUnreadableResource() throws Exception {
+        Resource broken = resource("002_b.cql", new byte[0]);
+        when(broken.getInputStream()).thenThrow(new IOException("unit test"));
+
+        try {
+            loader.load(resource("001_a.cql", "select now() from system.local".getBytes(UTF_8)), broken);
+            fail("Expected exception");
+        } catch (IllegalStateException e) {
+            assertThat(e).hasMessage("Could not read migration 002_b.cql");
+        }
+    }
+
+    @Test
+    public void load_shouldFailOnInvalidUtf8() throws Exception {
+        try {
+            loader.load(resource("001_a.cql", "'ol\u00e1'".getBytes(ISO_8859_1)));
+            fail("Expected exception");
+        } catch (IllegalStateException e) {
+            assertThat(e).hasMessage("Could not read migration 001_a.cql");
+        }
+    }
+
+    private static Resource resource(String filename, byte[] content) throws Exception {
+        Resource resource = mock(Resource.class);
+        when(resource.exists()).thenReturn(true);
+        when(resource.getFilename()).thenReturn(filename);
+        when(resource.getInputStream()).thenReturn(new ByteArrayInputStream(content));
+        return resource;
+    }
+}
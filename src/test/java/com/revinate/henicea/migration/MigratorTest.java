@@ -1,22 +1,41 @@
 package com.revinate.henicea.migration;
 
+import com.codahale.metrics.MetricRegistry;
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.revinate.henicea.util.DropwizardMetricsRecorder;
+import com.revinate.henicea.util.MetricsRecorder;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.springframework.core.io.Resource;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.SortedSet;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 import static java.util.Collections.emptySortedSet;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Fail.fail;
 import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -31,6 +50,9 @@ public class MigratorTest {
     @Mock
     Session session;
 
+    @Captor
+    ArgumentCaptor<List<Migration>> migrationsCaptor;
+
     Migrator migrator;
 
     @Before
@@ -38,6 +60,8 @@ public class MigratorTest {
         migrator = new Migrator();
         migrator.setFactory((x, y, z) -> client);
         when(cluster.connect()).thenReturn(session);
+        when(client.getFingerprint()).thenReturn(Optional.empty());
+        when(client.getAppliedMigrations(anyCollectionOf(String.class))).thenReturn(emptySortedSet());
     }
 
     @Test
@@ -50,6 +74,22 @@ public class MigratorTest {
         verify(session, times(1)).close();
     }
 
+    @Test
+    public void executeSession_shouldReuseSessionWithoutClosingIt() throws Exception {
+        Resource resource = mock(Resource.class);
+
+        when(client.acquireLock()).thenReturn(true);
+        when(resource.exists()).thenReturn(true);
+        when(resource.getFilename()).thenReturn("001_initial_migration.cql");
+        when(resource.getInputStream()).thenReturn(new ByteArrayInputStream("create table foo (id uuid PRIMARY KEY)".getBytes()));
+
+        migrator.execute(session, "test", resource);
+
+        assertThat(appliedMigrations()).hasSize(1);
+        verify(cluster, never()).connect();
+        verify(session, never()).close();
+    }
+
     @Test
     public void execute_shouldCallInitOnClientWithCustomRf() throws Exception {
         when(client.acquireLock()).thenReturn(false);
@@ -65,16 +105,14 @@ public class MigratorTest {
         Resource resource = mock(Resource.class);
 
         when(client.acquireLock()).thenReturn(true);
-        when(client.getAppliedMigrations()).thenReturn(emptySortedSet());
+        when(client.getAppliedMigrations(anyCollectionOf(String.class))).thenReturn(emptySortedSet());
         when(resource.exists()).thenReturn(true);
         when(resource.getFilename()).thenReturn("001_initial_migration.cql");
         when(resource.getInputStream()).thenReturn(new ByteArrayInputStream("create table foo (id uuid PRIMARY KEY)".getBytes()));
 
         migrator.execute(cluster, "test", resource);
 
-        ArgumentCaptor<Migration> captor = ArgumentCaptor.forClass(Migration.class);
-        verify(client).runMigration(captor.capture());
-        assertThat(captor.getAllValues())
+        assertThat(appliedMigrations())
                 .hasSize(1).contains(new Migration("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"));
 
         verify(client, times(1)).releaseLock();
@@ -88,7 +126,7 @@ public class MigratorTest {
 
         migrator.execute(cluster, "test", resource);
 
-        verify(client, never()).runMigration(any());
+        verify(client, never()).runMigrations(any(), any());
         verify(client, never()).releaseLock();
     }
 
@@ -96,19 +134,329 @@ public class MigratorTest {
     public void execute_shouldIgnoreAppliedMigrations() throws Exception {
         Resource resource = mock(Resource.class);
 
-        SortedSet<String> appliedMigrations = new TreeSet<>();
-        appliedMigrations.add("001_initial_migration.cql");
-
         when(client.acquireLock()).thenReturn(true);
-        when(client.getAppliedMigrations()).thenReturn(appliedMigrations);
+        stubApplied(client, "001_initial_migration.cql");
         when(resource.exists()).thenReturn(true);
         when(resource.getFilename()).thenReturn("001_initial_migration.cql");
         when(resource.getInputStream()).thenReturn(new ByteArrayInputStream("create table foo (id uuid PRIMARY KEY)".getBytes()));
 
         migrator.execute(cluster, "test", resource);
 
-        verify(client, never()).runMigration(any());
+        verify(client, never()).runMigrations(any(), any());
+        verify(client, never()).acquireLock();
+        verify(client, never()).releaseLock();
+        verify(client, times(1)).saveFingerprint(any());
+    }
+
+    @Test
+    public void execute_shouldIgnoreAppliedMigrationsWhenOthersArePending() throws Exception {
+        when(client.acquireLock()).thenReturn(true);
+        stubApplied(client, "001_initial_migration.cql");
+
+        migrator.execute(cluster, "test",
+                mockResource("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"),
+                mockResource("002_add_bar.cql", "create table bar (id uuid PRIMARY KEY)"));
+
+        assertThat(appliedMigrations()).extracting(Migration::getName).containsExactly("002_add_bar.cql");
+        verify(client, times(1)).releaseLock();
+    }
+
+    @Test
+    public void execute_shouldRecordMetrics() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        MetricsRecorder recorder = new DropwizardMetricsRecorder(registry);
+        migrator.setMetricsRecorder(recorder);
+        when(client.acquireLock()).thenReturn(true);
+        stubApplied(client, "001_initial_migration.cql");
+
+        migrator.execute(cluster, "test",
+                mockResource("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"),
+                mockResource("002_add_bar.cql", "create table bar (id uuid PRIMARY KEY)"));
+
+        verify(client).setMetricsRecorder(recorder);
+        assertThat(registry.timer(MetricsRecorder.EXECUTE).getCount()).isEqualTo(1);
+        assertThat(registry.timer(MetricsRecorder.INIT).getCount()).isEqualTo(1);
+        assertThat(registry.timer(MetricsRecorder.LOCK_ACQUISITION).getCount()).isEqualTo(1);
+        assertThat(registry.timer(MetricsRecorder.LOCK_HOLD).getCount()).isEqualTo(1);
+        assertThat(registry.counter(MetricsRecorder.MIGRATION_SKIPPED).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void execute_shouldSaveFingerprintAfterMigrations() throws Exception {
+        Resource resource = mockResource("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)");
+
+        when(client.acquireLock()).thenReturn(true);
+        when(client.getAppliedMigrations(anyCollectionOf(String.class))).thenReturn(emptySortedSet());
+
+        migrator.execute(cluster, "test", resource);
+
+        ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        verify(client).saveFingerprint(captor.capture());
+        assertThat(captor.getValue()).isNotEmpty();
+    }
+
+    @Test
+    public void execute_shouldSkipInitAndLockWhenFingerprintMatches() throws Exception {
+        when(client.acquireLock()).thenReturn(true);
+        when(client.getAppliedMigrations(anyCollectionOf(String.class))).thenReturn(emptySortedSet());
+
+        migrator.execute(cluster, "test",
+                mockResource("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"));
+
+        ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        verify(client).saveFingerprint(captor.capture());
+        reset(client);
+        when(client.getFingerprint()).thenReturn(Optional.of(captor.getValue()));
+
+        migrator.execute(cluster, "test",
+                mockResource("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"));
+
+        verify(client, never()).init(any());
+        verify(client, never()).acquireLock();
+        verify(client, never()).runMigrations(any(), any());
+    }
+
+    @Test
+    public void execute_shouldRunFullPathWhenFingerprintDiffers() throws Exception {
+        when(client.getFingerprint()).thenReturn(Optional.of("stale"));
+        when(client.acquireLock()).thenReturn(true);
+        when(client.getAppliedMigrations(anyCollectionOf(String.class))).thenReturn(emptySortedSet());
+
+        migrator.execute(cluster, "test",
+                mockResource("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"));
+
+        verify(client, times(1)).init(Optional.empty());
+        assertThat(appliedMigrations()).hasSize(1);
+    }
+
+    @Test
+    public void execute_shouldInitWhileLoadingMigrationsWhenNoFingerprintIsStored() throws Exception {
+        CountDownLatch initialized = new CountDownLatch(1);
+        AtomicBoolean loadedAfterInit = new AtomicBoolean();
+        Resource resource = mock(Resource.class);
+
+        doAnswer(invocation -> {
+            initialized.countDown();
+            return null;
+        }).when(client).init(any());
+        when(client.acquireLock()).thenReturn(true);
+        when(resource.exists()).thenReturn(true);
+        when(resource.getFilename()).thenReturn("001_initial_migration.cql");
+        when(resource.getInputStream()).thenAnswer(invocation -> {
+            loadedAfterInit.set(initialized.await(5, TimeUnit.SECONDS));
+            return new ByteArrayInputStream("create table foo (id uuid PRIMARY KEY)".getBytes());
+        });
+
+        migrator.execute(cluster, "test", resource);
+
+        assertThat(loadedAfterInit.get()).isTrue();
+        verify(client, times(1)).init(Optional.empty());
+        assertThat(appliedMigrations()).hasSize(1);
+    }
+
+    @Test
+    public void execute_shouldFailAndCloseSessionWhenMigrationCannotBeRead() throws Exception {
+        Resource resource = mock(Resource.class);
+
+        when(resource.exists()).thenReturn(true);
+        when(resource.getFilename()).thenReturn("001_initial_migration.cql");
+        when(resource.getInputStream()).thenThrow(new IOException("unit test"));
+
+        try {
+            migrator.execute(cluster, "test", resource);
+            fail("Expected exception");
+        } catch (IllegalStateException e) {
+            assertThat(e).hasMessageContaining("001_initial_migration.cql");
+        }
+
+        verify(client, never()).acquireLock();
+        verify(session, times(1)).close();
+    }
+
+    @Test
+    public void execute_shouldWaitForHolderAndTakeLeaseWhenWorkIsLeft() throws Exception {
+        when(client.acquireLock()).thenReturn(false, true);
+        when(client.isLocked()).thenReturn(false);
+
+        migrator.execute(cluster, "test",
+                mockResource("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"));
+
+        verify(client, times(2)).acquireLock();
+        assertThat(appliedMigrations()).hasSize(1);
+        verify(client, times(1)).releaseLock();
+    }
+
+    @Test
+    public void execute_shouldNotTakeLeaseWhenHolderAppliedEverything() throws Exception {
+        when(client.acquireLock()).thenReturn(false);
+        when(client.isLocked()).thenReturn(false);
+        when(client.getAppliedMigrations(anyCollectionOf(String.class)))
+                .thenReturn(new TreeSet<>(singletonList("001_initial_migration.cql")));
+
+        Map<String, MigrationResult> results = migrator.execute(cluster, singletonList("test"),
+                mockResource("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"));
+
+        assertThat(results.get("test").getStatus()).isEqualTo(MigrationResult.Status.UP_TO_DATE);
+        verify(client, times(1)).acquireLock();
+        verify(client, never()).runMigrations(any(), any());
+    }
+
+    @Test
+    public void execute_shouldReportLockedWithoutWaitTimeout() throws Exception {
+        when(client.acquireLock()).thenReturn(false);
+
+        migrator.setLockWaitTimeout(0, TimeUnit.SECONDS);
+        Map<String, MigrationResult> results = migrator.execute(cluster, singletonList("test"),
+                mockResource("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"));
+
+        assertThat(results.get("test").getStatus()).isEqualTo(MigrationResult.Status.LOCKED);
+        verify(client, never()).isLocked();
+    }
+
+    @Test
+    public void execute_shouldFailBeforeApplyingWhenAppliedMigrationWasModified() throws Exception {
+        when(client.acquireLock()).thenReturn(true);
+        when(client.getAppliedChecksums(anyCollectionOf(String.class)))
+                .thenReturn(new TreeMap<>(singletonMap("001_initial_migration.cql", "checksum of the original file")));
+
+        try {
+            migrator.execute(cluster, "test",
+                    mockResource("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY, name text)"),
+                    mockResource("002_add_bar.cql", "create table bar (id uuid PRIMARY KEY)"));
+            fail("Expected exception");
+        } catch (IllegalStateException e) {
+            assertThat(e).hasMessageContaining("001_initial_migration.cql");
+        }
+
+        verify(client, never()).acquireLock();
+        verify(client, never()).runMigrations(any(), any());
+        verify(client, never()).saveFingerprint(any());
+    }
+
+    @Test
+    public void execute_shouldAcceptAppliedMigrationsWithoutChecksum() throws Exception {
+        when(client.acquireLock()).thenReturn(true);
+        stubApplied(client, "001_initial_migration.cql");
+
+        migrator.execute(cluster, "test",
+                mockResource("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"),
+                mockResource("002_add_bar.cql", "create table bar (id uuid PRIMARY KEY)"));
+
+        assertThat(appliedMigrations()).extracting(Migration::getName).containsExactly("002_add_bar.cql");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void execute_shouldStopWhenLeaseIsLostBetweenMigrations() throws Exception {
+        CountDownLatch renewed = new CountDownLatch(1);
+        when(client.acquireLock()).thenReturn(true);
+        when(client.renewLock()).thenAnswer(invocation -> {
+            renewed.countDown();
+            return false;
+        });
+        doAnswer(invocation -> {
+            List<Migration> migrations = (List<Migration>) invocation.getArguments()[0];
+            Consumer<Migration> beforeEach = (Consumer<Migration>) invocation.getArguments()[1];
+            migrations.forEach(migration -> {
+                beforeEach.accept(migration);
+                client.runMigration(migration);
+            });
+            return null;
+        }).when(client).runMigrations(any(), any());
+        doAnswer(invocation -> {
+            renewed.await(1, TimeUnit.SECONDS);
+            TimeUnit.MILLISECONDS.sleep(50);
+            return null;
+        }).when(client).runMigration(any());
+
+        migrator.setLeaseHeartbeatInterval(10, TimeUnit.MILLISECONDS);
+        try {
+            migrator.execute(cluster, "test",
+                    mockResource("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"),
+                    mockResource("002_add_bar.cql", "create table bar (id uuid PRIMARY KEY)"),
+                    mockResource("003_add_baz.cql", "create table baz (id uuid PRIMARY KEY)"));
+            fail("Expected the lost lease to stop the migrations");
+        } catch (IllegalStateException e) {
+            assertThat(e).hasMessageContaining("lease was lost");
+        }
 
+        verify(client, times(1)).runMigration(any());
+        verify(client, never()).saveFingerprint(any());
         verify(client, times(1)).releaseLock();
     }
+
+    @Test
+    public void executeKeyspaces_shouldAggregateResultPerKeyspace() throws Exception {
+        MigrationClient upToDate = mock(MigrationClient.class);
+        MigrationClient failing = mock(MigrationClient.class);
+        Map<String, MigrationClient> clients = new HashMap<>();
+        clients.put("tenant1", client);
+        clients.put("tenant2", upToDate);
+        clients.put("tenant3", failing);
+        migrator.setFactory((session, keyspace, id) -> clients.get(keyspace));
+
+        when(client.acquireLock()).thenReturn(true);
+        when(client.getAppliedMigrations(anyCollectionOf(String.class))).thenReturn(emptySortedSet());
+        when(upToDate.getFingerprint()).thenReturn(Optional.of("unknown"));
+        when(upToDate.acquireLock()).thenReturn(true);
+        stubApplied(upToDate, "001_initial_migration.cql");
+        when(failing.getFingerprint()).thenReturn(Optional.empty());
+        doThrow(new IllegalStateException("unit test")).when(failing).init(any());
+
+        Map<String, MigrationResult> results = migrator.execute(cluster, Arrays.asList("tenant1", "tenant2", "tenant3"),
+                mockResource("001_initial_migration.cql", "create table foo (id uuid PRIMARY KEY)"));
+
+        assertThat(results.keySet()).containsExactly("tenant1", "tenant2", "tenant3");
+        assertThat(results.get("tenant1").getStatus()).isEqualTo(MigrationResult.Status.APPLIED);
+        assertThat(results.get("tenant1").getAppliedMigrations()).isEqualTo(1);
+        assertThat(results.get("tenant2").getStatus()).isEqualTo(MigrationResult.Status.UP_TO_DATE);
+        assertThat(results.get("tenant3").getStatus()).isEqualTo(MigrationResult.Status.FAILED);
+        assertThat(results.get("tenant3").getError().get()).hasMessage("unit test");
+    }
+
+    @Test
+    public void executeKeyspaces_shouldFailOnlyKeyspaceWhoseSessionCouldNotConnect() throws Exception {
+        when(cluster.connect()).thenThrow(new NoHostAvailableException(Collections.emptyMap())).thenReturn(session);
+        when(client.acquireLock()).thenReturn(false);
+
+        migrator.setKeyspaceParallelism(1);
+        Map<String, MigrationResult> results = migrator.execute(cluster, Arrays.asList("tenant1", "tenant2"));
+
+        assertThat(results.get("tenant1").getStatus()).isEqualTo(MigrationResult.Status.FAILED);
+        assertThat(results.get("tenant1").getError().get()).isInstanceOf(NoHostAvailableException.class);
+        assertThat(results.get("tenant2").getStatus()).isEqualTo(MigrationResult.Status.UP_TO_DATE);
+        verify(session, times(1)).close();
+    }
+
+    @Test
+    public void executeKeyspaces_shouldReuseSessionsAcrossKeyspaces() throws Exception {
+        when(client.acquireLock()).thenReturn(false);
+
+        migrator.setKeyspaceParallelism(1);
+        migrator.execute(cluster, Arrays.asList("tenant1", "tenant2", "tenant3"));
+
+        verify(cluster, times(1)).connect();
+        verify(client, times(3)).init(Optional.empty());
+        verify(session, times(1)).close();
+    }
+
+    private List<Migration> appliedMigrations() {
+        verify(client).runMigrations(migrationsCaptor.capture(), any());
+        return migrationsCaptor.getValue();
+    }
+
+    private static void stubApplied(MigrationClient client, String... names) {
+        SortedMap<String, String> checksums = new TreeMap<>();
+        Arrays.stream(names).forEach(name -> checksums.put(name, null));
+        when(client.getAppliedChecksums(anyCollectionOf(String.class))).thenReturn(checksums);
+        when(client.getAppliedMigrations(anyCollectionOf(String.class))).thenReturn(new TreeSet<>(checksums.keySet()));
+    }
+
+    private static Resource mockResource(String filename, String content) throws Exception {
+        Resource resource = mock(Resource.class);
+        when(resource.exists()).thenReturn(true);
+        when(resource.getFilename()).thenReturn(filename);
+        when(resource.getInputStream()).thenReturn(new ByteArrayInputStream(content.getBytes()));
+        return resource;
+    }
 }
\ No newline at end of file
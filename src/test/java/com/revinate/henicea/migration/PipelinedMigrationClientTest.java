@@ -0,0 +1,153 @@
+package com.revinate.henicea.migration;
+
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Fail.fail;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PipelinedMigrationClientTest {
+
+    @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+    Session session;
+
+    @Mock
+    ResultSetFuture future;
+
+    @Mock
+    ResultSet resultSet;
+
+    @Mock
+    ExecutionInfo executionInfo;
+
+    PreparedStatements preparedStatements;
+
+    PipelinedMigrationClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        preparedStatements = new PreparedStatements(session);
+        client = new PipelinedMigrationClient(session, "test", "unit-test-runner");
+        when(session.executeAsync(anyString())).thenReturn(future);
+        when(session.executeAsync(any(Statement.class))).thenReturn(future);
+        when(future.getUninterruptibly()).thenReturn(resultSet);
+        when(resultSet.wasApplied()).thenReturn(true);
+        when(resultSet.getExecutionInfo()).thenReturn(executionInfo);
+        when(executionInfo.isSchemaInAgreement()).thenReturn(true);
+        when(session.getCluster().getMetadata().checkSchemaAgreement()).thenReturn(true);
+    }
+
+    @Test
+    public void runMigrations_shouldCheckSchemaAgreementOncePerDdlGroup() throws Exception {
+        client.runMigrations(Arrays.asList(
+                new Migration("001_foo.cql", "create table foo (id uuid PRIMARY KEY)"),
+                new Migration("002_bar.cql", "create table bar (id uuid PRIMARY KEY)"),
+                new Migration("003_baz.cql", "create type baz (name text)")));
+
+        verify(session.getCluster().getMetadata(), times(1)).checkSchemaAgreement();
+        verify(session, times(3)).executeAsync(anyString());
+        verify(session, never()).execute(any(Statement.class));
+    }
+
+    @Test
+    public void runMigrations_shouldWaitForSchemaAgreementBeforeDdlDependingOnGroup() throws Exception {
+        client.runMigrations(Arrays.asList(
+                new Migration("001_foo.cql", "create table test.\"Foo\" (id uuid PRIMARY KEY, name text)"),
+                new Migration("002_bar.cql", "create table bar (id uuid PRIMARY KEY)"),
+                new Migration("003_foo_name.cql", "create index on foo (name)"),
+                new Migration("004_baz.cql", "create table baz (id uuid PRIMARY KEY)")));
+
+        InOrder inOrder = inOrder(session, session.getCluster().getMetadata());
+        inOrder.verify(session).executeAsync("create table bar (id uuid PRIMARY KEY)");
+        inOrder.verify(session.getCluster().getMetadata()).checkSchemaAgreement();
+        inOrder.verify(session).executeAsync("create index on foo (name)");
+        verify(session.getCluster().getMetadata(), times(2)).checkSchemaAgreement();
+    }
+
+    @Test
+    public void runMigrations_shouldWaitForSchemaAgreementBeforeDataStatements() throws Exception {
+        client.runMigrations(Arrays.asList(
+                new Migration("001_foo.cql", "create table foo (id uuid PRIMARY KEY)"),
+                new Migration("002_data.cql", "insert into foo (id) values (now())"),
+                new Migration("003_bar.cql", "create table bar (id uuid PRIMARY KEY)")));
+
+        verify(session.getCluster().getMetadata(), times(2)).checkSchemaAgreement();
+    }
+
+    @Test
+    public void runMigrations_shouldRecordStatusForEachMigration() throws Exception {
+        client.runMigrations(Arrays.asList(
+                new Migration("001_foo.cql", "create table foo (id uuid PRIMARY KEY)"),
+                new Migration("002_bar.cql", "create table bar (id uuid PRIMARY KEY)")));
+
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session, times(4)).executeAsync(captor.capture());
+        assertThat(preparedStatements.describe(captor.getAllValues()))
+                .filteredOn(cql -> cql.startsWith("UPDATE test.migrations SET status=?,reason=?,duration_ms=?,schema_agreement_ms=?,coordinator=?,trace_id=? WHERE name=?; [APPLIED"))
+                .hasSize(2);
+    }
+
+    @Test
+    public void runMigrations_shouldCallOverriddenBookkeepingOfSubclass() throws Exception {
+        ResultSet migrationResultSet = mock(ResultSet.class);
+        when(session.execute(anyString())).thenReturn(migrationResultSet);
+        when(migrationResultSet.wasApplied()).thenReturn(true);
+        when(migrationResultSet.getExecutionInfo()).thenReturn(executionInfo);
+        List<String> added = new ArrayList<>();
+        client = new PipelinedMigrationClient(session, "test", "unit-test-runner") {
+            @Override
+            protected void addMigrationToTable(Migration migration) {
+                added.add(migration.getName());
+            }
+        };
+
+        client.runMigrations(Arrays.asList(
+                new Migration("001_foo.cql", "create table foo (id uuid PRIMARY KEY)"),
+                new Migration("002_bar.cql", "create table bar (id uuid PRIMARY KEY)")));
+
+        assertThat(added).containsExactly("001_foo.cql", "002_bar.cql");
+        verify(session).execute("create table foo (id uuid PRIMARY KEY)");
+        verify(session).execute("create table bar (id uuid PRIMARY KEY)");
+        verify(session, never()).executeAsync(anyString());
+    }
+
+    @Test
+    public void runMigrations_shouldMarkFailedAndStop() throws Exception {
+        ResultSetFuture failed = mock(ResultSetFuture.class);
+        when(session.executeAsync("invalid migration")).thenReturn(failed);
+        when(failed.getUninterruptibly()).thenThrow(new InvalidQueryException("unit test"));
+
+        try {
+            client.runMigrations(Arrays.asList(
+                    new Migration("001_foo.cql", "invalid migration"),
+                    new Migration("002_bar.cql", "create table bar (id uuid PRIMARY KEY)")));
+            fail("Excepted exception");
+        } catch (InvalidQueryException ignored) {
+        }
+
+        verify(session, never()).executeAsync("create table bar (id uuid PRIMARY KEY)");
+
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session, times(1)).execute(captor.capture());
+        assertThat(preparedStatements.describe(captor.getValue()))
+                .isEqualTo("UPDATE test.migrations SET status=?,reason=?,duration_ms=?,schema_agreement_ms=?,coordinator=?,trace_id=? WHERE name=?; [FAILED, unit test, 0, 0, null, null, 001_foo.cql]");
+    }
+}
@@ -0,0 +1,74 @@
+package com.revinate.henicea.migration;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.Session;
+import org.hamcrest.CustomMatcher;
+import org.mockito.Matchers;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Test helper that stubs {@link Session#prepare(RegularStatement)} on a mocked session and keeps track of the bound
+ * statements, so tests can refer to them by query text and bound values.
+ */
+class PreparedStatements {
+
+    private final Map<Object, String> descriptions = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final Map<String, Integer> prepareCounts = Collections.synchronizedMap(new HashMap<>());
+
+    PreparedStatements(Session session) {
+        when(session.prepare(any(RegularStatement.class))).thenAnswer(invocation -> {
+            String query = invocation.getArguments()[0].toString();
+            prepareCounts.merge(query, 1, Integer::sum);
+            return prepared(query);
+        });
+    }
+
+    /**
+     * @return the query text followed by the bound values, e.g.
+     * <code>SELECT owner FROM test.leases WHERE name=?; [migration]</code>, or <code>toString()</code> for
+     * statements that were not bound through this helper.
+     */
+    String describe(Object statement) {
+        return Optional.ofNullable(descriptions.get(statement)).orElseGet(() -> String.valueOf(statement));
+    }
+
+    List<String> describe(List<?> statements) {
+        return statements.stream().map(this::describe).collect(Collectors.toList());
+    }
+
+    int prepareCount(String queryPrefix) {
+        return prepareCounts.entrySet().stream()
+                .filter(entry -> entry.getKey().startsWith(queryPrefix))
+                .mapToInt(Map.Entry::getValue)
+                .sum();
+    }
+
+    /**
+     * @return a Mockito matcher for statements whose description starts with <code>prefix</code>.
+     */
+    <T> T startsWith(String prefix) {
+        return Matchers.argThat(new CustomMatcher<T>("Statement starting with " + prefix) {
+            @Override
+            public boolean matches(Object item) {
+                return describe(item).startsWith(prefix);
+            }
+        });
+    }
+
+    private PreparedStatement prepared(String query) {
+        PreparedStatement prepared = mock(PreparedStatement.class);
+        when(prepared.getQueryString()).thenReturn(query);
+        when(prepared.bind(Matchers.<Object>anyVararg())).thenAnswer(invocation -> {
+            BoundStatement bound = mock(BoundStatement.class);
+            descriptions.put(bound, query + " " + Arrays.toString(invocation.getArguments()));
+            return bound;
+        });
+        return prepared;
+    }
+}
@@ -0,0 +1,92 @@
+package com.revinate.henicea.spring;
+
+import com.revinate.henicea.migration.MigrationResult;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Fail.fail;
+
+public class BackgroundMigrationTest {
+
+    private static final MigrationResult APPLIED = new MigrationResult("test", MigrationResult.Status.APPLIED, 2, null);
+
+    @Test
+    public void await_shouldReturnResultOfBackgroundThread() throws Exception {
+        BackgroundMigration migration = new BackgroundMigration(() -> {
+            assertThat(Thread.currentThread().getName()).isEqualTo("henicea-migration");
+            return APPLIED;
+        });
+
+        migration.afterPropertiesSet();
+
+        assertThat(migration.await()).isEqualTo(APPLIED);
+        assertThat(migration.getState()).isEqualTo(BackgroundMigration.State.UP);
+        assertThat(migration.getResult()).contains(APPLIED);
+        assertThat(migration.getError()).isEmpty();
+    }
+
+    @Test
+    public void getState_shouldBeMigratingUntilCompletion() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        BackgroundMigration migration = new BackgroundMigration(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return APPLIED;
+        });
+
+        migration.afterPropertiesSet();
+
+        assertThat(migration.getState()).isEqualTo(BackgroundMigration.State.MIGRATING);
+        assertThat(migration.getResult()).isEmpty();
+        try {
+            migration.await(10, TimeUnit.MILLISECONDS);
+            fail("Expected exception");
+        } catch (IllegalStateException e) {
+            assertThat(e).hasMessage("Cassandra migration did not complete in 10 MILLISECONDS");
+        }
+
+        release.countDown();
+        assertThat(migration.await(5, TimeUnit.SECONDS)).isEqualTo(APPLIED);
+    }
+
+    @Test
+    public void await_shouldThrowWhenMigrationFailed() throws Exception {
+        IllegalStateException error = new IllegalStateException("unit test");
+        BackgroundMigration migration = new BackgroundMigration(() -> {
+            throw error;
+        });
+
+        migration.afterPropertiesSet();
+
+        try {
+            migration.await();
+            fail("Expected exception");
+        } catch (IllegalStateException e) {
+            assertThat(e).hasMessage("Cassandra migration failed").hasCause(error);
+        }
+        assertThat(migration.getState()).isEqualTo(BackgroundMigration.State.FAILED);
+        assertThat(migration.getError()).contains(error);
+    }
+
+    @Test
+    public void await_shouldThrowWhenResultIsFailed() throws Exception {
+        IllegalStateException error = new IllegalStateException("unit test");
+        BackgroundMigration migration = new BackgroundMigration(
+                () -> new MigrationResult("test", MigrationResult.Status.FAILED, 0, error));
+
+        migration.start();
+
+        try {
+            migration.await();
+            fail("Expected exception");
+        } catch (IllegalStateException e) {
+            assertThat(e.getCause()).isSameAs(error);
+        }
+    }
+}
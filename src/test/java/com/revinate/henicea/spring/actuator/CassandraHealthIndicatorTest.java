@@ -1,22 +1,27 @@
 package com.revinate.henicea.spring.actuator;
 
 import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
 import com.datastax.driver.core.Session;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.springframework.boot.actuate.health.Health;
 import org.springframework.boot.actuate.health.Status;
 
+import java.util.concurrent.ExecutorService;
+
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.data.MapEntry.entry;
 import static org.assertj.core.util.Lists.newArrayList;
-import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
 public class CassandraHealthIndicatorTest {
@@ -30,10 +35,18 @@ public class CassandraHealthIndicatorTest {
     @Mock(answer = Answers.RETURNS_DEEP_STUBS)
     Host host;
 
+    @Mock
+    HostLatencyProber latencyProber;
+
+    @Mock
+    PoolSaturationMonitor poolMonitor;
+
     @Before
     public void setUp() throws Exception {
         when(session.getState().getConnectedHosts()).thenReturn(newArrayList(host));
         when(host.getAddress().getHostName()).thenReturn("server");
+        when(host.getAddress().getHostAddress()).thenReturn("10.0.0.1");
+        indicator.usingResolver(MoreExecutors.sameThreadExecutor());
     }
 
     @Test
@@ -63,4 +76,145 @@ public class CassandraHealthIndicatorTest {
                 .contains(entry("openConnections", 0))
                 .contains(entry("servers", ImmutableMap.of("server", "DOWN")));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void health_shouldReadCachedSnapshotOnSubsequentChecks() throws Exception {
+        when(session.getCluster().getMetrics().getOpenConnections().getValue()).thenReturn(2);
+        when(host.getState()).thenReturn("UP");
+
+        indicator.health();
+        indicator.health();
+        Health health = indicator.health();
+
+        assertThat(health.getDetails()).contains(entry("servers", ImmutableMap.of("server", "UP")));
+        verify(session.getState(), times(1)).getConnectedHosts();
+        verify(host.getAddress(), times(1)).getHostName();
+    }
+
+    @Test
+    public void health_shouldFollowHostEvents() throws Exception {
+        when(session.getCluster().getMetrics().getOpenConnections().getValue()).thenReturn(2);
+        when(host.getState()).thenReturn("UP");
+        indicator.health();
+
+        ArgumentCaptor<Host.StateListener> captor = ArgumentCaptor.forClass(Host.StateListener.class);
+        verify(session.getCluster()).register(captor.capture());
+        Host.StateListener listener = captor.getValue();
+
+        Host added = mock(Host.class, Answers.RETURNS_DEEP_STUBS.get());
+        when(added.getAddress().getHostName()).thenReturn("added");
+        when(added.getState()).thenReturn("ADDED");
+        listener.onDown(host);
+        listener.onAdd(added);
+
+        assertThat(indicator.health().getDetails())
+                .contains(entry("servers", ImmutableMap.of("server", "DOWN", "added", "ADDED")));
+
+        listener.onRemove(added);
+
+        assertThat(indicator.health().getDetails())
+                .contains(entry("servers", ImmutableMap.of("server", "DOWN")));
+    }
+
+    @Test
+    public void health_shouldResolveHostNamesInTheBackground() throws Exception {
+        ExecutorService resolver = mock(ExecutorService.class);
+        indicator.usingResolver(resolver);
+        when(session.getCluster().getMetrics().getOpenConnections().getValue()).thenReturn(2);
+        when(host.getState()).thenReturn("UP");
+
+        assertThat(indicator.health().getDetails()).contains(entry("servers", ImmutableMap.of("10.0.0.1", "UP")));
+
+        ArgumentCaptor<Host.StateListener> listener = ArgumentCaptor.forClass(Host.StateListener.class);
+        verify(session.getCluster()).register(listener.capture());
+        Host added = mock(Host.class, Answers.RETURNS_DEEP_STUBS.get());
+        when(added.getAddress().getHostAddress()).thenReturn("10.0.0.2");
+        when(added.getState()).thenReturn("UP");
+        listener.getValue().onAdd(added);
+
+        assertThat(indicator.health().getDetails())
+                .contains(entry("servers", ImmutableMap.of("10.0.0.1", "UP", "10.0.0.2", "UP")));
+        verify(host.getAddress(), never()).getHostName();
+        verify(added.getAddress(), never()).getHostName();
+
+        ArgumentCaptor<Runnable> lookups = ArgumentCaptor.forClass(Runnable.class);
+        verify(resolver, times(2)).execute(lookups.capture());
+        lookups.getAllValues().get(0).run();
+
+        assertThat(indicator.health().getDetails())
+                .contains(entry("servers", ImmutableMap.of("server", "UP", "10.0.0.2", "UP")));
+    }
+
+    @Test
+    public void health_shouldIgnoreEventsOfHostsWithoutPool() throws Exception {
+        when(session.getCluster().getMetrics().getOpenConnections().getValue()).thenReturn(2);
+        when(host.getState()).thenReturn("UP");
+        indicator.health();
+
+        ArgumentCaptor<Host.StateListener> captor = ArgumentCaptor.forClass(Host.StateListener.class);
+        verify(session.getCluster()).register(captor.capture());
+        Host.StateListener listener = captor.getValue();
+
+        Host remote = mock(Host.class, Answers.RETURNS_DEEP_STUBS.get());
+        when(remote.getAddress().getHostName()).thenReturn("remote");
+        when(remote.getState()).thenReturn("UP");
+        when(session.getCluster().getConfiguration().getPolicies().getLoadBalancingPolicy().distance(remote))
+                .thenReturn(HostDistance.IGNORED);
+        listener.onAdd(remote);
+        listener.onUp(remote);
+        listener.onDown(remote);
+
+        assertThat(indicator.health().getDetails()).contains(entry("servers", ImmutableMap.of("server", "UP")));
+    }
+
+    @Test
+    public void health_shouldBeDegraded_whenProberReportsSlowHosts() throws Exception {
+        when(session.getCluster().getMetrics().getOpenConnections().getValue()).thenReturn(2);
+        when(host.getState()).thenReturn("UP");
+        when(latencyProber.isDegraded()).thenReturn(true);
+        when(latencyProber.getLatencies()).thenReturn(ImmutableMap.of(host, ImmutableMap.of("p99", 250.0)));
+
+        Health health = indicator.health();
+
+        assertThat(health.getStatus()).isEqualTo(CassandraHealthIndicator.DEGRADED);
+        assertThat(health.getDetails())
+                .contains(entry("latency", ImmutableMap.of("server", ImmutableMap.of("p99", 250.0))));
+    }
+
+    @Test
+    public void health_shouldBeDown_whenDegradedWithoutConnections() throws Exception {
+        when(session.getCluster().getMetrics().getOpenConnections().getValue()).thenReturn(0);
+        when(host.getState()).thenReturn("DOWN");
+        when(latencyProber.isDegraded()).thenReturn(true);
+
+        assertThat(indicator.health().getStatus()).isEqualTo(Status.DOWN);
+    }
+
+    @Test
+    public void health_shouldBeOutOfService_whenPoolsStaySaturated() throws Exception {
+        when(session.getCluster().getMetrics().getOpenConnections().getValue()).thenReturn(2);
+        when(host.getState()).thenReturn("UP");
+        when(latencyProber.isDegraded()).thenReturn(true);
+        when(poolMonitor.isSaturated()).thenReturn(true);
+        when(poolMonitor.getUtilization()).thenReturn(0.95);
+        when(poolMonitor.getPools()).thenReturn(ImmutableMap.of(host, ImmutableMap.of("inFlightQueries", 1900)));
+
+        Health health = indicator.health();
+
+        assertThat(health.getStatus()).isEqualTo(Status.OUT_OF_SERVICE);
+        assertThat(health.getDetails())
+                .contains(entry("poolUtilization", 0.95))
+                .contains(entry("pools", ImmutableMap.of("server", ImmutableMap.of("inFlightQueries", 1900))));
+    }
+
+    @Test
+    public void destroy_shouldUnregisterListener() throws Exception {
+        when(session.getCluster().getMetrics().getOpenConnections().getValue()).thenReturn(2);
+        when(host.getState()).thenReturn("UP");
+        indicator.health();
+
+        indicator.destroy();
+
+        verify(session.getCluster()).unregister(any(Host.StateListener.class));
+    }
+}
@@ -0,0 +1,168 @@
+package com.revinate.henicea.spring.actuator;
+
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.revinate.henicea.util.HostPinningPolicy.PinnedStatement;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.data.MapEntry.entry;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HostLatencyProberTest {
+
+    @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+    Session session;
+
+    @InjectMocks
+    HostLatencyProber prober;
+
+    @Mock
+    Host host1;
+
+    @Mock
+    Host host2;
+
+    @Mock
+    ResultSetFuture future;
+
+    @Before
+    public void setUp() throws Exception {
+        when(session.getState().getConnectedHosts()).thenReturn(Arrays.asList(host1, host2));
+        when(session.executeAsync(any(Statement.class))).thenReturn(future);
+    }
+
+    @Test
+    public void probe_shouldPinOneProbeToEachConnectedHost() throws Exception {
+        prober.probe();
+
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session, times(2)).executeAsync(captor.capture());
+        assertThat(captor.getAllValues()).hasOnlyElementsOfType(PinnedStatement.class);
+        assertThat(captor.getAllValues()).extracting("host").containsExactly(host1, host2);
+
+        Statement probe = ((PinnedStatement) captor.getValue()).getStatement();
+        assertThat(probe).isInstanceOf(SimpleStatement.class);
+        assertThat(((SimpleStatement) probe).getQueryString()).isEqualTo(HostLatencyProber.DEFAULT_QUERY);
+        assertThat(captor.getValue().isIdempotent()).isTrue();
+    }
+
+    @Test
+    public void probe_shouldRecordProbesThatReachNoHost() throws Exception {
+        when(future.getUninterruptibly()).thenThrow(new NoHostAvailableException(Collections.emptyMap()));
+        prober.probe();
+
+        ArgumentCaptor<Runnable> listener = ArgumentCaptor.forClass(Runnable.class);
+        verify(future, times(2)).addListener(listener.capture(), any(Executor.class));
+        listener.getAllValues().forEach(Runnable::run);
+
+        assertThat(prober.getLatencies().get(host1)).contains(entry("errors", 1L));
+        assertThat(prober.getLatencies().get(host2)).contains(entry("errors", 1L));
+        assertThat(prober.isDegraded()).isTrue();
+    }
+
+    @Test
+    public void probe_shouldSkipRoundWhileProbesAreInFlight() throws Exception {
+        prober.probe();
+        prober.probe();
+
+        verify(session, times(2)).executeAsync(any(Statement.class));
+
+        ArgumentCaptor<Runnable> listener = ArgumentCaptor.forClass(Runnable.class);
+        verify(future, times(2)).addListener(listener.capture(), any(Executor.class));
+        listener.getAllValues().forEach(Runnable::run);
+        prober.probe();
+
+        verify(session, times(4)).executeAsync(any(Statement.class));
+    }
+
+    @Test
+    public void update_shouldRecordProbeLatencyPerHost() throws Exception {
+        Statement probe = sentProbe();
+
+        prober.update(host1, probe, null, TimeUnit.MILLISECONDS.toNanos(2));
+        prober.update(host1, probe, null, TimeUnit.MILLISECONDS.toNanos(4));
+        prober.update(host2, probe, new RuntimeException("unit test"), TimeUnit.MILLISECONDS.toNanos(1));
+
+        Map<Host, Map<String, Object>> latencies = prober.getLatencies();
+        assertThat(latencies.get(host1)).contains(entry("max", 4.0), entry("errors", 0L));
+        assertThat(latencies.get(host2)).contains(entry("errors", 1L));
+    }
+
+    @Test
+    public void isDegraded_shouldBeTrue_whenEveryProbeOfAHostFails() throws Exception {
+        Statement probe = sentProbe();
+        prober.setDegradedThreshold(10, TimeUnit.MILLISECONDS);
+
+        prober.update(host1, probe, null, TimeUnit.MILLISECONDS.toNanos(1));
+        for (int i = 0; i < 10; i++) {
+            prober.update(host2, probe, new RuntimeException("unit test"), TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        assertThat(prober.getLatencies().get(host2)).contains(entry("errors", 10L));
+        assertThat(prober.isDegraded()).isTrue();
+    }
+
+    @Test
+    public void onRemove_shouldDropTheHostFromTheDetails() throws Exception {
+        Statement probe = sentProbe();
+        prober.update(host1, probe, null, TimeUnit.MILLISECONDS.toNanos(2));
+        prober.update(host2, probe, null, TimeUnit.MILLISECONDS.toNanos(2));
+
+        prober.afterPropertiesSet();
+        ArgumentCaptor<Host.StateListener> listener = ArgumentCaptor.forClass(Host.StateListener.class);
+        try {
+            verify(session.getCluster()).register(listener.capture());
+        } finally {
+            prober.destroy();
+        }
+        listener.getValue().onRemove(host2);
+
+        assertThat(prober.getLatencies()).containsOnlyKeys(host1);
+    }
+
+    @Test
+    public void update_shouldIgnoreApplicationQueries() throws Exception {
+        prober.update(host1, new SimpleStatement("SELECT * FROM users"), null, TimeUnit.SECONDS.toNanos(1));
+
+        assertThat(prober.getLatencies()).isEmpty();
+        assertThat(prober.isDegraded()).isFalse();
+    }
+
+    @Test
+    public void isDegraded_shouldCompareP99WithThreshold() throws Exception {
+        Statement probe = sentProbe();
+        prober.setDegradedThreshold(10, TimeUnit.MILLISECONDS);
+
+        prober.update(host1, probe, null, TimeUnit.MILLISECONDS.toNanos(5));
+        assertThat(prober.isDegraded()).isFalse();
+
+        prober.update(host2, probe, null, TimeUnit.MILLISECONDS.toNanos(50));
+        assertThat(prober.isDegraded()).isTrue();
+    }
+
+    private Statement sentProbe() {
+        prober.probe();
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session, atLeastOnce()).executeAsync(captor.capture());
+        return captor.getValue();
+    }
+}
@@ -0,0 +1,78 @@
+package com.revinate.henicea.spring.actuator;
+
+import com.revinate.henicea.migration.MigrationResult;
+import com.revinate.henicea.spring.BackgroundMigration;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.OrderedHealthAggregator;
+import org.springframework.boot.actuate.health.Status;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.data.MapEntry.entry;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MigrationHealthIndicatorTest {
+
+    @Mock
+    BackgroundMigration migration;
+
+    @InjectMocks
+    MigrationHealthIndicator indicator;
+
+    @Test
+    public void health_shouldBeOutOfServiceWhileRunning() throws Exception {
+        when(migration.getState()).thenReturn(BackgroundMigration.State.MIGRATING);
+
+        Health health = indicator.health();
+
+        assertThat(health.getStatus()).isEqualTo(Status.OUT_OF_SERVICE);
+        assertThat(health.getDetails()).contains(entry("state", BackgroundMigration.State.MIGRATING));
+    }
+
+    @Test
+    public void health_shouldNotAggregateToUpWhileRunning() throws Exception {
+        when(migration.getState()).thenReturn(BackgroundMigration.State.MIGRATING);
+        Map<String, Health> healths = new LinkedHashMap<>();
+        healths.put("db", Health.up().build());
+        healths.put("migration", indicator.health());
+        healths.put("diskSpace", Health.up().build());
+
+        assertThat(new OrderedHealthAggregator().aggregate(healths).getStatus()).isEqualTo(Status.OUT_OF_SERVICE);
+    }
+
+    @Test
+    public void health_shouldBeUpWithResultWhenCompleted() throws Exception {
+        when(migration.getState()).thenReturn(BackgroundMigration.State.UP);
+        when(migration.getResult()).thenReturn(
+                Optional.of(new MigrationResult("test", MigrationResult.Status.APPLIED, 3, null)));
+
+        Health health = indicator.health();
+
+        assertThat(health.getStatus()).isEqualTo(Status.UP);
+        assertThat(health.getDetails())
+                .contains(entry("result", MigrationResult.Status.APPLIED))
+                .contains(entry("appliedMigrations", 3));
+    }
+
+    @Test
+    public void health_shouldBeDownWithErrorWhenFailed() throws Exception {
+        when(migration.getState()).thenReturn(BackgroundMigration.State.FAILED);
+        when(migration.getError()).thenReturn(Optional.of(new IllegalStateException("unit test")));
+
+        Health health = indicator.health();
+
+        assertThat(health.getStatus()).isEqualTo(Status.DOWN);
+        assertThat(health.getDetails())
+                .contains(entry("state", BackgroundMigration.State.FAILED))
+                .contains(entry("error", "unit test"));
+    }
+}
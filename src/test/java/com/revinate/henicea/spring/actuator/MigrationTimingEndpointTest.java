@@ -0,0 +1,74 @@
+package com.revinate.henicea.spring.actuator;
+
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.revinate.henicea.migration.MigrationExecution;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MigrationTimingEndpointTest {
+
+    @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+    Session session;
+
+    @Mock
+    ResultSet resultSet;
+
+    MigrationTimingEndpoint endpoint;
+
+    @Before
+    public void setUp() throws Exception {
+        endpoint = new MigrationTimingEndpoint("test");
+        ReflectionTestUtils.setField(endpoint, "session", session);
+        when(session.execute(any(Statement.class))).thenReturn(resultSet);
+    }
+
+    @Test
+    public void invoke_shouldListSlowestMigrationsOfKeyspace() throws Exception {
+        Row fast = row("001_foo.cql", 12);
+        Row slow = row("002_bar.cql", 4500);
+        when(resultSet.iterator()).thenReturn(Arrays.asList(fast, slow).iterator());
+        endpoint.setLimit(1);
+
+        List<MigrationExecution> migrations = endpoint.invoke();
+
+        assertThat(endpoint.getId()).isEqualTo("migrations");
+        assertThat(migrations).extracting(MigrationExecution::getName).containsExactly("002_bar.cql");
+        assertThat(migrations.get(0).getDurationMillis()).isEqualTo(4500L);
+    }
+
+    @Test
+    public void invoke_shouldPrepareQueryOnce() throws Exception {
+        when(resultSet.iterator()).thenReturn(Collections.<Row>emptyIterator()).thenReturn(Collections.<Row>emptyIterator());
+
+        endpoint.invoke();
+        endpoint.invoke();
+
+        verify(session, times(1)).prepare(any(RegularStatement.class));
+    }
+
+    private static Row row(String name, long durationMillis) {
+        Row row = mock(Row.class);
+        when(row.getString("name")).thenReturn(name);
+        when(row.getLong("duration_ms")).thenReturn(durationMillis);
+        when(row.isNull("schema_agreement_ms")).thenReturn(true);
+        return row;
+    }
+}
@@ -0,0 +1,102 @@
+package com.revinate.henicea.spring.actuator;
+
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.Session;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.data.MapEntry.entry;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PoolSaturationMonitorTest {
+
+    @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+    Session session;
+
+    @InjectMocks
+    PoolSaturationMonitor monitor;
+
+    @Mock
+    Host host1;
+
+    @Mock
+    Host host2;
+
+    AtomicLong now = new AtomicLong(1000);
+
+    @Before
+    public void setUp() throws Exception {
+        monitor.setClock(now::get);
+        monitor.setThreshold(0.8);
+        monitor.setSustainedFor(10, TimeUnit.SECONDS);
+        when(session.getState().getConnectedHosts()).thenReturn(Arrays.asList(host1, host2));
+        when(session.getState().getOpenConnections(any(Host.class))).thenReturn(2);
+        when(session.getState().getTrashedConnections(any(Host.class))).thenReturn(1);
+        when(session.getCluster().getConfiguration().getPoolingOptions()
+                .getMaxRequestsPerConnection(any(HostDistance.class))).thenReturn(100);
+    }
+
+    @Test
+    public void sample_shouldReportPoolUsagePerHost() throws Exception {
+        stubInFlight(50, 150);
+
+        monitor.sample();
+
+        assertThat(monitor.getPools().get(host1)).contains(
+                entry("inFlightQueries", 50),
+                entry("openConnections", 2),
+                entry("trashedConnections", 1),
+                entry("utilization", 0.25));
+        assertThat(monitor.getPools().get(host2)).contains(entry("utilization", 0.75));
+        assertThat(monitor.getUtilization()).isEqualTo(0.5);
+    }
+
+    @Test
+    public void isSaturated_shouldRequireSustainedUtilization() throws Exception {
+        stubInFlight(190, 190);
+
+        monitor.sample();
+        assertThat(monitor.isSaturated()).isFalse();
+
+        now.addAndGet(TimeUnit.SECONDS.toMillis(5));
+        monitor.sample();
+        assertThat(monitor.isSaturated()).isFalse();
+
+        now.addAndGet(TimeUnit.SECONDS.toMillis(5));
+        monitor.sample();
+        assertThat(monitor.isSaturated()).isTrue();
+    }
+
+    @Test
+    public void isSaturated_shouldResetWhenUtilizationDrops() throws Exception {
+        stubInFlight(190, 190);
+        monitor.sample();
+        now.addAndGet(TimeUnit.SECONDS.toMillis(5));
+
+        stubInFlight(10, 10);
+        monitor.sample();
+        stubInFlight(190, 190);
+        monitor.sample();
+        now.addAndGet(TimeUnit.SECONDS.toMillis(5));
+
+        assertThat(monitor.isSaturated()).isFalse();
+    }
+
+    private void stubInFlight(int host1InFlight, int host2InFlight) {
+        when(session.getState().getInFlightQueries(host1)).thenReturn(host1InFlight);
+        when(session.getState().getInFlightQueries(host2)).thenReturn(host2InFlight);
+    }
+}
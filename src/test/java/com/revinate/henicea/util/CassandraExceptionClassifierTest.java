@@ -0,0 +1,61 @@
+package com.revinate.henicea.util;
+
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.WriteType;
+import com.datastax.driver.core.exceptions.*;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CassandraExceptionClassifierTest {
+
+    InetSocketAddress address = new InetSocketAddress("127.0.0.1", 9042);
+
+    @Test
+    public void isRetryable_shouldRetryTransientErrors() throws Exception {
+        ExceptionClassifier classifier = CassandraExceptionClassifier.DEFAULT;
+
+        assertThat(classifier.isRetryable(new NoHostAvailableException(Collections.emptyMap()))).isTrue();
+        assertThat(classifier.isRetryable(new ConnectionException(address, "unit test"))).isTrue();
+        assertThat(classifier.isRetryable(new ReadTimeoutException(ConsistencyLevel.QUORUM, 1, 2, true))).isTrue();
+        assertThat(classifier.isRetryable(new UnavailableException(ConsistencyLevel.QUORUM, 2, 1))).isTrue();
+    }
+
+    @Test
+    public void isRetryable_shouldNotRetryInvalidRequests() throws Exception {
+        ExceptionClassifier classifier = CassandraExceptionClassifier.DEFAULT;
+
+        assertThat(classifier.isRetryable(new SyntaxError(address, "unit test"))).isFalse();
+        assertThat(classifier.isRetryable(new InvalidQueryException("unit test"))).isFalse();
+        assertThat(classifier.isRetryable(new UnauthorizedException(address, "unit test"))).isFalse();
+    }
+
+    @Test
+    public void isRetryable_shouldOnlyRetryWriteTimeoutsWhenIdempotent() throws Exception {
+        WriteTimeoutException timeout = new WriteTimeoutException(ConsistencyLevel.QUORUM, WriteType.SIMPLE, 1, 2);
+
+        assertThat(CassandraExceptionClassifier.DEFAULT.isRetryable(timeout)).isFalse();
+        assertThat(CassandraExceptionClassifier.IDEMPOTENT.isRetryable(timeout)).isTrue();
+    }
+
+    @Test
+    public void isRetryable_shouldOnlyRetryClientTimeoutsWhenIdempotent() throws Exception {
+        OperationTimedOutException timeout = new OperationTimedOutException(address);
+
+        assertThat(CassandraExceptionClassifier.DEFAULT.isRetryable(timeout)).isFalse();
+        assertThat(CassandraExceptionClassifier.IDEMPOTENT.isRetryable(timeout)).isTrue();
+    }
+
+    @Test
+    public void isRetryable_shouldClassifyByDriverCause() throws Exception {
+        ExceptionClassifier classifier = CassandraExceptionClassifier.DEFAULT;
+
+        assertThat(classifier.isRetryable(new UncheckedExecutionException(new SyntaxError(address, "unit test"))))
+                .isFalse();
+        assertThat(classifier.isRetryable(new IllegalStateException("unit test"))).isTrue();
+    }
+}
@@ -0,0 +1,64 @@
+package com.revinate.henicea.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CircuitBreakerTest {
+
+    AtomicLong now = new AtomicLong();
+
+    CircuitBreaker breaker = new CircuitBreaker(3, 10, TimeUnit.SECONDS).usingClock(now::get);
+
+    @Test
+    public void shouldOpenAfterConsecutiveFailures() throws Exception {
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        assertThat(breaker.allowRequest()).isTrue();
+
+        breaker.onFailure();
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.allowRequest()).isFalse();
+    }
+
+    @Test
+    public void shouldLetOneTrialThroughAfterOpenDuration() throws Exception {
+        open();
+
+        now.addAndGet(TimeUnit.SECONDS.toMillis(10));
+
+        assertThat(breaker.allowRequest()).isTrue();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        assertThat(breaker.allowRequest()).isFalse();
+
+        breaker.onSuccess();
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(breaker.allowRequest()).isTrue();
+    }
+
+    @Test
+    public void shouldReopenWhenTrialFails() throws Exception {
+        open();
+        now.addAndGet(TimeUnit.SECONDS.toMillis(10));
+        breaker.allowRequest();
+
+        breaker.onFailure();
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.allowRequest()).isFalse();
+    }
+
+    private void open() {
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onFailure();
+    }
+}
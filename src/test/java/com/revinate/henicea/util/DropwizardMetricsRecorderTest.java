@@ -0,0 +1,69 @@
+package com.revinate.henicea.util;
+
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Metrics;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DropwizardMetricsRecorderTest {
+
+    MetricRegistry registry = new MetricRegistry();
+
+    DropwizardMetricsRecorder recorder = new DropwizardMetricsRecorder(registry);
+
+    @Test
+    public void recordTime_shouldUpdateTimer() throws Exception {
+        recorder.recordTime(MetricsRecorder.INIT, 250, TimeUnit.MILLISECONDS);
+
+        assertThat(registry.timer(MetricsRecorder.INIT).getCount()).isEqualTo(1);
+        assertThat(registry.timer(MetricsRecorder.INIT).getSnapshot().getMax()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(250));
+    }
+
+    @Test
+    public void increment_shouldIncrementCounter() throws Exception {
+        recorder.increment(MetricsRecorder.MIGRATION_SKIPPED, 3);
+        recorder.increment(MetricsRecorder.MIGRATION_SKIPPED, 1);
+
+        assertThat(registry.counter(MetricsRecorder.MIGRATION_SKIPPED).getCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void recordValue_shouldUpdateHistogram() throws Exception {
+        recorder.recordValue(MetricsRecorder.RETRY_ATTEMPTS, 2);
+
+        assertThat(registry.histogram(MetricsRecorder.RETRY_ATTEMPTS).getSnapshot().getValues()).containsExactly(2L);
+    }
+
+    @Test
+    public void time_shouldRecordFailedActions() throws Exception {
+        assertThatThrownBy(() -> recorder.time(MetricsRecorder.EXECUTE, () -> {
+            throw new IllegalStateException("unit test");
+        })).hasMessage("unit test");
+
+        assertThat(registry.timer(MetricsRecorder.EXECUTE).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void of_shouldUseRegistryOfDriver() throws Exception {
+        Cluster cluster = mock(Cluster.class);
+        Metrics metrics = mock(Metrics.class);
+        when(cluster.getMetrics()).thenReturn(metrics);
+        when(metrics.getRegistry()).thenReturn(registry);
+
+        DropwizardMetricsRecorder.of(cluster).increment(MetricsRecorder.LOCK_CONTENTION, 1);
+
+        assertThat(registry.counter(MetricsRecorder.LOCK_CONTENTION).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void of_shouldRecordNothingWhenDriverMetricsAreDisabled() throws Exception {
+        assertThat(DropwizardMetricsRecorder.of(mock(Cluster.class))).isSameAs(MetricsRecorder.NONE);
+    }
+}
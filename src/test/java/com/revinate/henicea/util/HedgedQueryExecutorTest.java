@@ -0,0 +1,185 @@
+package com.revinate.henicea.util;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.AbstractFuture;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HedgedQueryExecutorTest {
+
+    @Mock
+    Session session;
+
+    @Mock
+    ScheduledExecutorService scheduler;
+
+    @Mock
+    ScheduledFuture<?> scheduledHedge;
+
+    @Mock
+    ResultSet rows;
+
+    TestResultSetFuture first = new TestResultSetFuture();
+    TestResultSetFuture second = new TestResultSetFuture();
+
+    AtomicLong now = new AtomicLong();
+
+    HedgedQueryExecutor executor;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        executor = new HedgedQueryExecutor(session, scheduler).usingClock(now::get);
+        when(session.executeAsync(any(Statement.class))).thenReturn(first, second);
+        doReturn(scheduledHedge).when(scheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void executeAsync_shouldNotHedgeStatementsNotMarkedIdempotent() throws Exception {
+        CompletableFuture<ResultSet> result = executor.executeAsync(new SimpleStatement("SELECT * FROM users"));
+        first.set(rows);
+
+        assertThat(result.get()).isSameAs(rows);
+        verifyZeroInteractions(scheduler);
+        assertThat(executor.getHedgesSent()).isEqualTo(0);
+    }
+
+    @Test
+    public void executeAsync_shouldSendHedgeAfterDelayAndTakeFirstResponse() throws Exception {
+        CompletableFuture<ResultSet> result = executor.executeAsync(idempotent());
+
+        ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+        verify(scheduler).schedule(hedgeTask(), delay.capture(), eq(TimeUnit.NANOSECONDS));
+        assertThat(delay.getValue()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+
+        runHedge();
+        second.set(rows);
+
+        assertThat(result.get()).isSameAs(rows);
+        assertThat(first.isCancelled()).isTrue();
+        assertThat(executor.getHedgesSent()).isEqualTo(1);
+        assertThat(executor.getHedgesWon()).isEqualTo(1);
+    }
+
+    @Test
+    public void executeAsync_shouldCancelHedgeWhenFirstRequestIsFast() throws Exception {
+        CompletableFuture<ResultSet> result = executor.executeAsync(idempotent());
+        first.set(rows);
+
+        assertThat(result.get()).isSameAs(rows);
+        verify(scheduledHedge).cancel(false);
+
+        runHedge();
+        verify(session, times(1)).executeAsync(any(Statement.class));
+        assertThat(executor.getHedgesSent()).isEqualTo(0);
+    }
+
+    @Test
+    public void executeAsync_shouldWaitForHedgeWhenFirstRequestFails() throws Exception {
+        CompletableFuture<ResultSet> result = executor.executeAsync(idempotent());
+        runHedge();
+
+        first.setException(new RuntimeException("unit test"));
+        assertThat(result.isDone()).isFalse();
+
+        second.set(rows);
+        assertThat(result.get()).isSameAs(rows);
+    }
+
+    @Test
+    public void executeAsync_shouldFailWhenEveryRequestFailed() throws Exception {
+        CompletableFuture<ResultSet> result = executor.executeAsync(idempotent());
+        runHedge();
+
+        first.setException(new RuntimeException("first"));
+        second.setException(new RuntimeException("second"));
+
+        assertThat(result.isCompletedExceptionally()).isTrue();
+    }
+
+    @Test
+    public void executeAsync_shouldNotHedgeWhenBudgetIsExhausted() throws Exception {
+        RetryBudget budget = new RetryBudget(1, 1, TimeUnit.HOURS);
+        assertThat(budget.tryAcquire()).isTrue();
+
+        CompletableFuture<ResultSet> result = executor.withBudget(budget).executeAsync(idempotent());
+        runHedge();
+
+        verify(session, times(1)).executeAsync(any(Statement.class));
+        assertThat(executor.getHedgesSent()).isEqualTo(0);
+        first.set(rows);
+        assertThat(result.get()).isSameAs(rows);
+    }
+
+    @Test
+    public void getDelayMillis_shouldFollowObservedPercentile() throws Exception {
+        when(session.executeAsync(any(Statement.class))).thenAnswer(invocation -> {
+            TestResultSetFuture future = new TestResultSetFuture();
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(20));
+            future.set(rows);
+            return future;
+        });
+        for (int i = 0; i < 100; i++) {
+            executor.executeAsync(new SimpleStatement("SELECT * FROM users"));
+        }
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+
+        assertThat(executor.getDelayMillis()).isEqualTo(20.0);
+    }
+
+    private static Statement idempotent() {
+        return new SimpleStatement("SELECT * FROM users").setIdempotent(true);
+    }
+
+    private static Runnable hedgeTask() {
+        return any(Runnable.class);
+    }
+
+    private void runHedge() {
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(task.capture(), anyLong(), any(TimeUnit.class));
+        task.getValue().run();
+    }
+
+    private static class TestResultSetFuture extends AbstractFuture<ResultSet> implements ResultSetFuture {
+
+        @Override
+        public boolean set(ResultSet value) {
+            return super.set(value);
+        }
+
+        @Override
+        public boolean setException(Throwable throwable) {
+            return super.setException(throwable);
+        }
+
+        @Override
+        public ResultSet getUninterruptibly() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ResultSet getUninterruptibly(long timeout, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
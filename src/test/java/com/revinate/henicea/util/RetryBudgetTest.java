@@ -0,0 +1,39 @@
+package com.revinate.henicea.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RetryBudgetTest {
+
+    AtomicLong now = new AtomicLong();
+
+    @Test
+    public void tryAcquire_shouldAllowBurstUpToMaxTokens() throws Exception {
+        RetryBudget budget = new RetryBudget(3, 1, TimeUnit.SECONDS).usingClock(now::get);
+
+        assertThat(budget.tryAcquire()).isTrue();
+        assertThat(budget.tryAcquire()).isTrue();
+        assertThat(budget.tryAcquire()).isTrue();
+        assertThat(budget.tryAcquire()).isFalse();
+    }
+
+    @Test
+    public void tryAcquire_shouldRefillOverTime() throws Exception {
+        RetryBudget budget = new RetryBudget(2, 1, TimeUnit.SECONDS).usingClock(now::get);
+        budget.tryAcquire();
+        budget.tryAcquire();
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        assertThat(budget.tryAcquire()).isFalse();
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        assertThat(budget.tryAcquire()).isTrue();
+
+        now.addAndGet(TimeUnit.MINUTES.toNanos(1));
+        assertThat(budget.getAvailableTokens()).isEqualTo(2);
+    }
+}
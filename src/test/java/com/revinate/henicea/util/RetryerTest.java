@@ -1,11 +1,24 @@
 package com.revinate.henicea.util;
 
+import com.codahale.metrics.MetricRegistry;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.After;
 import org.junit.Test;
 
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -14,6 +27,8 @@ import static org.assertj.core.util.Lists.newArrayList;
 
 public class RetryerTest {
 
+    ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+
     @Test
     public void run_shouldReturnResultFromSupplier() throws Exception {
         String result = new Retryer()
@@ -62,4 +77,315 @@ public class RetryerTest {
         assertThat(retries).contains(1, 2, 3);
         assertThat(intervals).containsExactly(0L, 1000L, 2000L, 4000L);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void run_shouldApplyFullJitter() throws Exception {
+        List<Long> intervals = newArrayList();
+
+        assertThatThrownBy(() ->
+                new Retryer()
+                        .withWait(TimeUnit.SECONDS, 1, 2)
+                        .withJitter(Retryer.Jitter.FULL)
+                        .usingRandom(fixedRandom(0.5))
+                        .usingWaitFunction(intervals::add)
+                        .run(() -> {
+                            throw new RuntimeException("unit test");
+                        }))
+                .hasMessage("unit test");
+        assertThat(intervals).containsExactly(0L, 500L, 1000L);
+    }
+
+    @Test
+    public void run_shouldApplyDecorrelatedJitter() throws Exception {
+        List<Long> intervals = newArrayList();
+
+        assertThatThrownBy(() ->
+                new Retryer()
+                        .withWait(TimeUnit.SECONDS, 1, 10, 10)
+                        .withJitter(Retryer.Jitter.DECORRELATED)
+                        .usingRandom(fixedRandom(0.5))
+                        .usingWaitFunction(intervals::add)
+                        .run(() -> {
+                            throw new RuntimeException("unit test");
+                        }))
+                .hasMessage("unit test");
+        // first wait is between the base and the base itself, then between the base and 3x the previous wait
+        assertThat(intervals).containsExactly(0L, 1000L, 2000L, 3500L);
+    }
+
+    @Test
+    public void run_shouldStopAtDeadline() throws Exception {
+        AtomicLong now = new AtomicLong();
+        List<Integer> retries = newArrayList();
+
+        assertThatThrownBy(() ->
+                new Retryer()
+                        .withWait(TimeUnit.SECONDS, 1, 2, 4, 8)
+                        .withDeadline(5, TimeUnit.SECONDS)
+                        .usingClock(now::get)
+                        .usingWaitFunction(now::addAndGet)
+                        .onError((i, ex) -> retries.add(i))
+                        .run(() -> {
+                            throw new RuntimeException("unit test");
+                        }))
+                .hasMessage("unit test");
+        assertThat(retries).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    public void run_shouldPropagateInterruption() throws Exception {
+        Thread.currentThread().interrupt();
+        try {
+            assertThatThrownBy(() ->
+                    new Retryer()
+                            .withWait(TimeUnit.SECONDS, 1)
+                            .run(() -> {
+                                throw new RuntimeException("unit test");
+                            }))
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasMessage("Interrupted while waiting to retry");
+            assertThat(Thread.currentThread().isInterrupted()).isTrue();
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    public void run_shouldNotRetryFatalErrors() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThatThrownBy(() ->
+                new Retryer()
+                        .withWait(TimeUnit.SECONDS, 1, 2)
+                        .retryIf(CassandraExceptionClassifier.DEFAULT)
+                        .usingWaitFunction(interval -> {
+                        })
+                        .run(() -> {
+                            attempts.incrementAndGet();
+                            throw new InvalidQueryException("unit test");
+                        }))
+                .isInstanceOf(InvalidQueryException.class);
+        assertThat(attempts.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void run_shouldStopWhenSharedBudgetIsExhausted() throws Exception {
+        RetryBudget budget = new RetryBudget(1, 1, TimeUnit.HOURS);
+        AtomicInteger attempts = new AtomicInteger();
+        Supplier<String> failing = () -> {
+            attempts.incrementAndGet();
+            throw new RuntimeException("unit test");
+        };
+
+        Retryer first = new Retryer().withWait(TimeUnit.SECONDS, 1, 1).withBudget(budget).usingWaitFunction(i -> {
+        });
+        Retryer second = new Retryer().withWait(TimeUnit.SECONDS, 1, 1).withBudget(budget).usingWaitFunction(i -> {
+        });
+
+        assertThatThrownBy(() -> first.run(failing)).hasMessage("unit test");
+        assertThatThrownBy(() -> second.run(failing)).hasMessage("unit test");
+        assertThat(attempts.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void run_shouldFailFastWhenCircuitIsOpen() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(2, 1, TimeUnit.MINUTES);
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThatThrownBy(() ->
+                new Retryer()
+                        .withWait(TimeUnit.SECONDS, 1, 1, 1)
+                        .withCircuitBreaker(breaker)
+                        .usingWaitFunction(interval -> {
+                        })
+                        .run(() -> {
+                            attempts.incrementAndGet();
+                            throw new RuntimeException("unit test");
+                        }))
+                .isInstanceOf(CircuitBreakerOpenException.class)
+                .hasCauseInstanceOf(RuntimeException.class);
+        assertThat(attempts.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void run_shouldReleaseHalfOpenTrialWhenAttemptThrowsError() throws Exception {
+        AtomicLong now = new AtomicLong();
+        CircuitBreaker breaker = new CircuitBreaker(1, 1, TimeUnit.MINUTES).usingClock(now::get);
+        breaker.onFailure();
+        now.addAndGet(TimeUnit.MINUTES.toMillis(1));
+
+        assertThatThrownBy(() -> new Retryer()
+                .withCircuitBreaker(breaker)
+                .run(() -> {
+                    throw new AssertionError("unit test");
+                }))
+                .isInstanceOf(AssertionError.class);
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        assertThat(breaker.allowRequest()).isTrue();
+    }
+
+    @Test
+    public void run_shouldRecordAttemptsAndBackoff() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = new Retryer()
+                .withWait(TimeUnit.MILLISECONDS, 100, 200, 400)
+                .withMetrics(new DropwizardMetricsRecorder(registry))
+                .usingWaitFunction(wait -> {
+                })
+                .run(() -> {
+                    if (attempts.incrementAndGet() < 3) {
+                        throw new RuntimeException("unit test");
+                    }
+                    return "success";
+                });
+
+        assertThat(result).isEqualTo("success");
+        assertThat(registry.histogram(MetricsRecorder.RETRY_ATTEMPTS).getSnapshot().getValues()).containsExactly(3L);
+        assertThat(registry.histogram(MetricsRecorder.RETRY_BACKOFF).getSnapshot().getValues()).containsExactly(100L, 200L);
+    }
+
+    @Test
+    public void runAsync_shouldReturnOnFirstSuccess() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+
+        CompletableFuture<String> result = new Retryer()
+                .withWait(TimeUnit.MILLISECONDS, 10, 10)
+                .runAsync(() -> {
+                    if (attempts.incrementAndGet() < 3) {
+                        throw new RuntimeException("unit test");
+                    }
+                    return "success";
+                }, scheduler);
+
+        assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo("success");
+        assertThat(attempts.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void runAsync_shouldFailWithLastError() throws Exception {
+        List<Integer> retries = new CopyOnWriteArrayList<>();
+
+        CompletableFuture<String> result = new Retryer()
+                .withWait(TimeUnit.MILLISECONDS, 10)
+                .onError((i, ex) -> retries.add(i))
+                .runAsync(() -> {
+                    throw new RuntimeException("attempt " + (retries.size() + 1));
+                }, scheduler);
+
+        assertThatThrownBy(() -> result.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(RuntimeException.class)
+                .hasMessageContaining("attempt 2");
+        assertThat(retries).containsExactly(1, 2);
+    }
+
+    @Test
+    public void runAsync_shouldTimeOutAndInterruptSlowAttempts() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        CountDownLatch interrupted = new CountDownLatch(1);
+
+        CompletableFuture<String> result = new Retryer()
+                .withWait(TimeUnit.MILLISECONDS, 10)
+                .withAttemptTimeout(50, TimeUnit.MILLISECONDS)
+                .runAsync(() -> {
+                    if (attempts.incrementAndGet() == 1) {
+                        sleepUntilInterrupted(interrupted);
+                    }
+                    return "success";
+                }, scheduler);
+
+        assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo("success");
+        assertThat(interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void runAsync_shouldNotInterruptTheWorkerOnceTheTimedOutAttemptReturned() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch unrelatedStarted = new CountDownLatch(1);
+        CompletableFuture<Boolean> unrelatedInterrupted = new CompletableFuture<>();
+
+        CompletableFuture<String> result = new Retryer()
+                .withWait(TimeUnit.MILLISECONDS, 10)
+                .withAttemptTimeout(50, TimeUnit.MILLISECONDS)
+                .onError((attempt, error) -> {
+                    // runs on the timer thread: let the slow attempt return and its thread pick up another task
+                    release.countDown();
+                    scheduler.execute(() -> {
+                        unrelatedStarted.countDown();
+                        try {
+                            Thread.sleep(200);
+                            unrelatedInterrupted.complete(false);
+                        } catch (InterruptedException e) {
+                            unrelatedInterrupted.complete(true);
+                        }
+                    });
+                    Uninterruptibles.awaitUninterruptibly(unrelatedStarted, 5, TimeUnit.SECONDS);
+                })
+                .runAsync(() -> {
+                    if (attempts.incrementAndGet() == 1) {
+                        Uninterruptibles.awaitUninterruptibly(release);
+                    }
+                    return "success";
+                }, scheduler);
+
+        assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo("success");
+        assertThat(unrelatedInterrupted.get(5, TimeUnit.SECONDS)).isFalse();
+    }
+
+    @Test
+    public void runAsync_shouldInterruptRunningAttemptWhenCancelled() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+
+        CompletableFuture<String> result = new Retryer()
+                .withWait(TimeUnit.MILLISECONDS, 10)
+                .runAsync(() -> {
+                    started.countDown();
+                    sleepUntilInterrupted(interrupted);
+                    return "unreachable";
+                }, scheduler);
+
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        result.cancel(true);
+
+        assertThat(interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(result.isCancelled()).isTrue();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.shutdownNow();
+    }
+
+    private static void sleepUntilInterrupted(CountDownLatch interrupted) {
+        try {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            interrupted.countDown();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Random fixedRandom(double value) {
+        return new FixedRandom(value);
+    }
+
+    private static class FixedRandom extends Random {
+        private static final long serialVersionUID = 1L;
+
+        private final double value;
+
+        private FixedRandom(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return value;
+        }
+    }
+}